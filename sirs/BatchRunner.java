@@ -0,0 +1,426 @@
+package sirs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Properties;
+
+/**
+ * Headless entry point for running an SIRSModel without the UI, e.g. on compute nodes or in benchmarks.
+ * Loads no AWT or Swing classes.
+ *
+ * Options are given as --name=value, optionally on top of a properties file given with --config=file using the same names:
+ * 		size, width, height		lattice dimensions (default 100x100)
+ * 		infection, recovery, relapse	transition probabilities (default 0.5)
+ * 		immune				proportion of immune cells (default 0)
+ * 		infected			initial proportion of infected cells (default 0.1)
+ * 		seed				random seed (default: arbitrary)
+ * 		boundary			open, periodic or reflecting (default open)
+ * 		neighbourhood			von-neumann or moore, optionally with a radius such as moore:2 (default von-neumann)
+ * 		layout				order the cells are stored in: rows or z-order (default rows)
+ * 		network				contact network to run on instead of a lattice: an edge list file, random-regular:nodes:degree,
+ * 						erdos-renyi:nodes:probability or small-world:nodes:degree:rewiring; no node may have more than
+ * 						32767 neighbours (default: none)
+ * 		scheme				sequential, parallel, checkerboard, kinetic or active (default sequential)
+ * 		threads				threads for parallel schemes (default: all cores)
+ * 		sweeps				number of sweeps to run, one attempt per cell each (default 1000)
+ * 		sample				sweeps between output rows (default 1)
+ * 		output				file to write to, or - for standard output (default -)
+ * 		format				csv or binary (default csv)
+ * 		checkpoint			file to save the model to every few sweeps and at the end of the run (default: none)
+ * 		checkpoint-every		sweeps between checkpoints (default 1000)
+ * 		restart				checkpoint to resume from instead of building a new model
+ * 		chunked				true to run a ChunkedSIRSModel, which stores and updates only the tiles near the epidemic,
+ * 						for lattices too large to hold cell by cell (default false)
+ * 		outbreak			side of the infected square at the centre of a chunked lattice, which is otherwise susceptible (default 64)
+ *
+ * CSV output has a header row: sweep, ticks, time, then the S, I, R and immune populations.
+ * Binary output is a TimeSeriesWriter file of ticks and populations, and needs an output file.
+ * Stops early if the lattice can no longer change.
+ * A restarted run takes its model from the checkpoint, ignoring the model settings above, and runs on until sweeps in total.
+ * CSV output to a file is appended to; binary output starts a new file.
+ * A generated network is drawn from the seed. Runs on networks cannot use the checkerboard scheme or checkpoints.
+ * Chunked runs use the sequential scheme and CSV output, and take no immune, infected, layout, network or checkpoint settings.
+ * @author Ross
+ *
+ */
+public class BatchRunner {
+	private int width = 100;
+	private int height = 100;
+	private double infectionProbability = SIRSModel.DEFAULT_INFECTION_PROBABILITY;
+	private double recoveryProbability = SIRSModel.DEFAULT_RECOVERY_PROBABILITY;
+	private double relapseProbability = SIRSModel.DEFAULT_RELAPSE_PROBABILITY;
+	private double immuneProportion = 0;
+	private double infectedProportion = SIRSModel.DEFAULT_INFECTED_PROPORTION;
+	private long seed = Xoshiro256.randomSeed();
+	private Boundary boundary = SIRSModel.DEFAULT_BOUNDARY;
+	private Neighbourhood neighbourhood = SIRSModel.DEFAULT_NEIGHBOURHOOD;
+	private CellLayout layout = SIRSModel.DEFAULT_LAYOUT;
+	private String network;
+	private UpdateScheme scheme = UpdateScheme.SEQUENTIAL;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long sweeps = 1000;
+	private long sampleInterval = 1;
+	private String output = "-";
+	private boolean binary = false;
+	private String checkpoint;
+	private long checkpointInterval = 1000;
+	private String restart;
+	private boolean chunked = false;
+	private int outbreak = 64;
+
+	/**
+	 * Entry Point
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		BatchRunner runner = new BatchRunner();
+		try {
+			runner.configure(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: java -cp <jar> sirs.BatchRunner [--config=file] [--size=n | --width=n --height=n] [--infection=p] [--recovery=p] [--relapse=p]"
+					+ " [--immune=p] [--infected=p] [--seed=n] [--boundary=open|periodic|reflecting] [--neighbourhood=von-neumann|moore[:r]] [--layout=rows|z-order] [--network=file|generator] [--scheme=sequential|parallel|checkerboard|kinetic|active] [--threads=n]"
+					+ " [--sweeps=n] [--sample=n] [--output=file|-] [--format=csv|binary] [--checkpoint=file] [--checkpoint-every=n] [--restart=file]"
+					+ " [--chunked=true|false] [--outbreak=n]");
+			System.exit(2);
+		}
+		try {
+			runner.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads settings from command line arguments, and from the config file if one is named.
+	 * @param args
+	 * @throws IllegalArgumentException if an argument is malformed
+	 */
+	public void configure(String[] args) {
+		configure(parseArguments(args));
+	}
+
+	/**
+	 * Turns --name=value arguments into properties, on top of the contents of the config file if one is named with --config.
+	 * @param args
+	 * @return
+	 * @throws IllegalArgumentException if an argument is malformed or the config file cannot be read
+	 */
+	static Properties parseArguments(String[] args) {
+		Properties properties = new Properties();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+				throw new IllegalArgumentException("Unrecognised argument: " + arg);
+			}
+			int split = arg.indexOf('=');
+			properties.setProperty(arg.substring(2, split), arg.substring(split + 1));
+		}
+
+		String config = properties.getProperty("config");
+		if (config != null) {
+			Properties defaults = new Properties();
+			try {
+				InputStream in = new FileInputStream(config);
+				try {
+					defaults.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not read config file " + config + ": " + e.getMessage());
+			}
+			defaults.putAll(properties);
+			properties = defaults;
+		}
+		return properties;
+	}
+
+	/**
+	 * Reads settings from a set of properties.
+	 * @param properties
+	 * @throws IllegalArgumentException if a setting is malformed or unknown
+	 */
+	public void configure(Properties properties) {
+		for (String name : properties.stringPropertyNames()) {
+			String value = properties.getProperty(name).trim();
+			try {
+				if (name.equals("size")) {
+					width = Integer.parseInt(value);
+					height = width;
+				} else if (name.equals("width")) {
+					width = Integer.parseInt(value);
+				} else if (name.equals("height")) {
+					height = Integer.parseInt(value);
+				} else if (name.equals("infection")) {
+					infectionProbability = Double.parseDouble(value);
+				} else if (name.equals("recovery")) {
+					recoveryProbability = Double.parseDouble(value);
+				} else if (name.equals("relapse")) {
+					relapseProbability = Double.parseDouble(value);
+				} else if (name.equals("immune")) {
+					immuneProportion = Double.parseDouble(value);
+				} else if (name.equals("infected")) {
+					infectedProportion = Double.parseDouble(value);
+				} else if (name.equals("seed")) {
+					seed = Long.parseLong(value);
+				} else if (name.equals("boundary")) {
+					boundary = Boundary.valueOf(value.toUpperCase());
+				} else if (name.equals("neighbourhood")) {
+					neighbourhood = Neighbourhood.parse(value);
+				} else if (name.equals("layout")) {
+					layout = CellLayout.valueOf(value.toUpperCase().replace('-', '_'));
+				} else if (name.equals("network")) {
+					network = value;
+				} else if (name.equals("scheme")) {
+					scheme = UpdateScheme.valueOf(value.toUpperCase());
+				} else if (name.equals("threads")) {
+					threads = Integer.parseInt(value);
+				} else if (name.equals("sweeps")) {
+					sweeps = Long.parseLong(value);
+				} else if (name.equals("sample")) {
+					sampleInterval = Math.max(1, Long.parseLong(value));
+				} else if (name.equals("output")) {
+					output = value;
+				} else if (name.equals("format")) {
+					if (!value.equals("csv") && !value.equals("binary")) {
+						throw new IllegalArgumentException("Unknown format: " + value);
+					}
+					binary = value.equals("binary");
+				} else if (name.equals("checkpoint")) {
+					checkpoint = value;
+				} else if (name.equals("checkpoint-every")) {
+					checkpointInterval = Math.max(1, Long.parseLong(value));
+				} else if (name.equals("restart")) {
+					restart = value;
+				} else if (name.equals("chunked")) {
+					chunked = Boolean.parseBoolean(value);
+				} else if (name.equals("outbreak")) {
+					outbreak = Integer.parseInt(value);
+				} else if (!name.equals("config")) {
+					throw new IllegalArgumentException("Unknown setting: " + name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + name + ": " + value);
+			}
+		}
+		if (width < 2 || height < 2) {
+			throw new IllegalArgumentException("Lattice must be at least 2x2");
+		}
+		if (network != null && (scheme == UpdateScheme.CHECKERBOARD || checkpoint != null || restart != null)) {
+			throw new IllegalArgumentException("Runs on a network cannot use the checkerboard scheme or checkpoints");
+		}
+		if (binary && output.equals("-")) {
+			throw new IllegalArgumentException("Binary output needs an output file");
+		}
+		if (chunked && (scheme != UpdateScheme.SEQUENTIAL || binary || network != null || checkpoint != null || restart != null
+				|| layout != SIRSModel.DEFAULT_LAYOUT || properties.getProperty("immune") != null || properties.getProperty("infected") != null)) {
+			throw new IllegalArgumentException("Chunked runs use the sequential scheme and CSV output, and take no immune, infected, layout, network or checkpoint settings");
+		}
+	}
+
+	/**
+	 * Builds the model described by the current settings.
+	 * @return
+	 * @throws IOException if the network cannot be read
+	 */
+	public SIRSModel createModel() throws IOException {
+		SIRSModel model;
+		if (network != null) {
+			model = new SIRSModel(ContactNetwork.parse(network, new Xoshiro256(seed).split()), infectionProbability, recoveryProbability,
+					relapseProbability, immuneProportion, infectedProportion, seed, threads);
+			width = model.getWidth();
+			height = model.getHeight();
+		} else {
+			model = new SIRSModel(width, height, infectionProbability, recoveryProbability, relapseProbability, immuneProportion, infectedProportion,
+					seed, threads);
+			model.setBoundary(boundary);
+			model.setNeighbourhood(neighbourhood);
+			model.setLayout(layout);
+		}
+		return model;
+	}
+
+	/**
+	 * Builds the chunked model described by the current settings: susceptible but for an infected square of side outbreak at the centre.
+	 * @return
+	 */
+	public ChunkedSIRSModel createChunkedModel() {
+		ChunkedSIRSModel model = new ChunkedSIRSModel(width, height, infectionProbability, recoveryProbability, relapseProbability, neighbourhood, boundary, seed);
+		model.fill((width - outbreak) / 2, (height - outbreak) / 2, outbreak, outbreak, State.INFECTED);
+		return model;
+	}
+
+	/**
+	 * Loads the model from the restart checkpoint.
+	 * @return
+	 * @throws IOException
+	 */
+	public SIRSModel loadModel() throws IOException {
+		SIRSModel model = Checkpoint.load(new File(restart));
+		model.setParallelism(threads);
+		width = model.getWidth();
+		height = model.getHeight();
+		return model;
+	}
+
+	/**
+	 * Runs the model for the configured number of sweeps, writing samples to the output.
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		if (chunked) {
+			runChunked();
+			return;
+		}
+		long start = System.nanoTime();
+		SIRSModel model = restart == null ? createModel() : loadModel();
+		long built = System.nanoTime();
+
+		Writer out = null;
+		TimeSeriesWriter series = null;
+		if (binary) {
+			series = new TimeSeriesWriter(new File(output), model);
+		} else if (output.equals("-")) {
+			out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+		} else {
+			out = new BufferedWriter(new FileWriter(output, restart != null), 1 << 16);
+		}
+
+		long sweep = model.getTicks() / ((long) width * height);
+		long firstSweep = sweep;
+		try {
+			if (restart == null) {
+				if (out != null) {
+					out.write("sweep,ticks,time,susceptible,infected,recovered,immune\n");
+				}
+				writeSample(out, series, model, sweep);
+			}
+			while (sweep < sweeps && !isAbsorbed(model)) {
+				model.sweep(scheme);
+				sweep++;
+				if (sweep % sampleInterval == 0) {
+					writeSample(out, series, model, sweep);
+				}
+				if (checkpoint != null && sweep % checkpointInterval == 0) {
+					Checkpoint.save(model, new File(checkpoint));
+				}
+			}
+			if (sweep % sampleInterval != 0) {
+				writeSample(out, series, model, sweep);
+			}
+			if (checkpoint != null && sweep % checkpointInterval != 0) {
+				Checkpoint.save(model, new File(checkpoint));
+			}
+		} finally {
+			if (series != null) {
+				series.close();
+			} else {
+				out.flush();
+				if (!output.equals("-")) {
+					out.close();
+				}
+			}
+		}
+		model.shutdown();
+
+		long end = System.nanoTime();
+		double seconds = (end - built) / 1e9;
+		System.err.println(String.format("%s: %dx%d, %d sweeps in %.3fs (setup %.3fs), %.3g attempts/s",
+				scheme.name().toLowerCase(), width, height, sweep - firstSweep, seconds, (built - start) / 1e9, (model.getTicks() - firstSweep * width * height) / seconds));
+	}
+
+	/**
+	 * Runs the chunked model for the configured number of sweeps, writing samples to the output as CSV.
+	 * @throws IOException
+	 */
+	private void runChunked() throws IOException {
+		long start = System.nanoTime();
+		ChunkedSIRSModel model = createChunkedModel();
+		long built = System.nanoTime();
+
+		Writer out;
+		if (output.equals("-")) {
+			out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+		} else {
+			out = new BufferedWriter(new FileWriter(output), 1 << 16);
+		}
+		long sweep = 0;
+		try {
+			out.write("sweep,ticks,time,susceptible,infected,recovered,immune\n");
+			writeChunkedSample(out, model, sweep);
+			while (sweep < sweeps && (model.getPopulation(State.INFECTED) > 0 || model.getPopulation(State.RECOVERED) > 0)) {
+				model.sweep();
+				sweep++;
+				if (sweep % sampleInterval == 0) {
+					writeChunkedSample(out, model, sweep);
+				}
+			}
+			if (sweep % sampleInterval != 0) {
+				writeChunkedSample(out, model, sweep);
+			}
+		} finally {
+			out.flush();
+			if (!output.equals("-")) {
+				out.close();
+			}
+		}
+
+		long end = System.nanoTime();
+		double seconds = (end - built) / 1e9;
+		System.err.println(String.format("chunked: %dx%d, %d sweeps in %.3fs (setup %.3fs), %d tiles stored, %d active",
+				width, height, sweep, seconds, (built - start) / 1e9, model.getLattice().getAllocatedTiles(), model.getActiveTileCount()));
+	}
+
+	private static void writeChunkedSample(Writer out, ChunkedSIRSModel model, long sweep) throws IOException {
+		out.write(Long.toString(sweep));
+		out.write(',');
+		out.write(Long.toString(model.getTicks()));
+		out.write(',');
+		out.write(Double.toString(model.getTime()));
+		out.write(',');
+		out.write(Long.toString(model.getPopulation(State.SUSCEPTIBLE)));
+		out.write(',');
+		out.write(Long.toString(model.getPopulation(State.INFECTED)));
+		out.write(',');
+		out.write(Long.toString(model.getPopulation(State.RECOVERED)));
+		out.write(',');
+		out.write(Long.toString(model.getPopulation(State.IMMUNE)));
+		out.write('\n');
+	}
+
+	/**
+	 * Return true if no cell of the model can change any more: nothing is infected or recovered.
+	 */
+	private static boolean isAbsorbed(SIRSModel model) {
+		return model.getPopulation(State.INFECTED) == 0 && model.getPopulation(State.RECOVERED) == 0;
+	}
+
+	private static void writeSample(Writer out, TimeSeriesWriter series, SIRSModel model, long sweep) throws IOException {
+		if (series != null) {
+			series.write(model.getTicks(), model.getPopulation(State.INFECTED), model.getPopulation(State.RECOVERED),
+					model.getPopulation(State.SUSCEPTIBLE), model.getPopulation(State.IMMUNE));
+			return;
+		}
+		out.write(Long.toString(sweep));
+		out.write(',');
+		out.write(Long.toString(model.getTicks()));
+		out.write(',');
+		out.write(Double.toString(model.getTime()));
+		out.write(',');
+		out.write(Integer.toString(model.getPopulation(State.SUSCEPTIBLE)));
+		out.write(',');
+		out.write(Integer.toString(model.getPopulation(State.INFECTED)));
+		out.write(',');
+		out.write(Integer.toString(model.getPopulation(State.RECOVERED)));
+		out.write(',');
+		out.write(Integer.toString(model.getPopulation(State.IMMUNE)));
+		out.write('\n');
+	}
+}
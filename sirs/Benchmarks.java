@@ -0,0 +1,371 @@
+package sirs;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Microbenchmarks for the hot paths of the simulator, structured like JMH runs: each benchmark is run for a number of
+ * timed warmup iterations and then measured iterations, with a fresh fixture built outside the timed region before each one.
+ * Reports operations per second with a 99.9% error estimate, and bytes allocated per operation on the calling thread,
+ * both averaged over the measured iterations.
+ *
+ * Options, all comma separated lists where it makes sense:
+ * 		bench				benchmarks to run (default all): updateSequential, updateParallel, updateCheckerboard, updateKinetic,
+ * 						updateActive, getAdjacentStates, reset, getPopulation, countLattice, paint, frame
+ * 		size				lattice sizes (default 100,1000)
+ * 		layout				cell layouts: rows, z-order (default rows)
+ * 		immune				immune proportions (default 0,0.5)
+ * 		regime				prevalence regimes: low, endemic, high (default all)
+ * 		warmup, iterations		iteration counts (default 3 and 5)
+ * 		time				milliseconds per iteration (default 1000)
+ * 		threads				threads for parallel benchmarks (default: all cores)
+ * 		baseline			CSV from an earlier run to compare against
+ * 		tolerance			fraction a rate may fall below the baseline before it counts as a regression (default 0.1)
+ *
+ * getPopulation reads the model's live counters, which cost the same whatever the lattice size; countLattice is the full scan
+ * that Simulator used to make each frame, counting every state across the packed lattice.
+ * paint redraws the whole lattice; frame makes 100 sequential updates and redraws only what they changed, as the GUI does.
+ * Comparing layouts on sizes well beyond the cache, e.g. --size=4096 --layout=rows,z-order, shows what neighbour locality is worth;
+ * so far it has not repaid the cost of Z order indexing, see CellLayout.Z_ORDER.
+ * Results are printed as CSV, so a run can be saved and passed back as a baseline to spot regressions. Against a baseline each row
+ * gains the ratio of its rate to the baseline's, and is flagged as regressed if even its rate plus error falls more than the
+ * tolerance below the baseline's; the run then exits with status 1. Lines of a baseline starting with # are comments, used
+ * to record the machine and JDK it was measured on, as in benchmarks/baseline.csv. Rates only compare on the same machine.
+ * Run with -Djava.awt.headless=true on machines without a display.
+ * @author Ross
+ *
+ */
+public class Benchmarks {
+	private static final String[] ALL_BENCHMARKS = {"updateSequential", "updateParallel", "updateCheckerboard", "updateKinetic", "updateActive",
+			"getAdjacentStates", "reset", "getPopulation", "countLattice", "paint", "frame"};
+	private static final int BATCH = 10000; //single cell operations per timed call
+
+	/**
+	 * Prevalence regimes: probabilities and initial infected proportion.
+	 */
+	enum Regime {
+		LOW(0.3, 0.5, 0.5, 0.001),
+		ENDEMIC(0.8, 0.1, 0.01, 0.1),
+		HIGH(0.9, 0.05, 0.5, 0.5);
+
+		final double infection;
+		final double recovery;
+		final double relapse;
+		final double infected;
+
+		Regime(double infection, double recovery, double relapse, double infected) {
+			this.infection = infection;
+			this.recovery = recovery;
+			this.relapse = relapse;
+			this.infected = infected;
+		}
+	}
+
+	private String[] benchmarks = ALL_BENCHMARKS;
+	private int[] sizes = {100, 1000};
+	private CellLayout[] layouts = {SIRSModel.DEFAULT_LAYOUT};
+	private double[] immuneProportions = {0, 0.5};
+	private Regime[] regimes = Regime.values();
+	private int warmupIterations = 3;
+	private int measurementIterations = 5;
+	private long iterationMillis = 1000;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private Map<String, Double> baseline = new HashMap<String, Double>();
+	private double tolerance = 0.1;
+	private int regressions;
+
+	private SIRSModel model;
+	private ModelComponent component;
+	private Graphics2D graphics;
+	private RandomSource random = new Xoshiro256(1);
+	private long sink; //consumes results so they cannot be optimised away
+
+	/**
+	 * Entry Point
+	 * @param args
+	 */
+	public static void main(String[] args) throws IOException {
+		Benchmarks benchmarks = new Benchmarks();
+		try {
+			benchmarks.configure(BatchRunner.parseArguments(args));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: java -cp <jar> sirs.Benchmarks [--bench=a,b] [--size=n,m] [--layout=rows,z-order] [--immune=p,q] [--regime=low,endemic,high]"
+					+ " [--warmup=n] [--iterations=n] [--time=ms] [--threads=n] [--baseline=file] [--tolerance=f]");
+			System.exit(2);
+		}
+		benchmarks.run();
+		if (benchmarks.getRegressions() > 0) {
+			System.err.println(benchmarks.getRegressions() + " regressions against the baseline");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads settings from a set of properties.
+	 * @param properties
+	 * @throws IllegalArgumentException if a setting is malformed or unknown
+	 */
+	public void configure(Properties properties) throws IOException {
+		for (String name : properties.stringPropertyNames()) {
+			String[] values = properties.getProperty(name).trim().split(",");
+			try {
+				if (name.equals("bench")) {
+					benchmarks = values;
+				} else if (name.equals("size")) {
+					sizes = new int[values.length];
+					for (int i = 0; i < values.length; i++) {
+						sizes[i] = Integer.parseInt(values[i]);
+					}
+				} else if (name.equals("layout")) {
+					layouts = new CellLayout[values.length];
+					for (int i = 0; i < values.length; i++) {
+						layouts[i] = CellLayout.valueOf(values[i].toUpperCase().replace('-', '_'));
+					}
+				} else if (name.equals("immune")) {
+					immuneProportions = new double[values.length];
+					for (int i = 0; i < values.length; i++) {
+						immuneProportions[i] = Double.parseDouble(values[i]);
+					}
+				} else if (name.equals("regime")) {
+					regimes = new Regime[values.length];
+					for (int i = 0; i < values.length; i++) {
+						regimes[i] = Regime.valueOf(values[i].toUpperCase());
+					}
+				} else if (name.equals("warmup")) {
+					warmupIterations = Integer.parseInt(values[0]);
+				} else if (name.equals("iterations")) {
+					measurementIterations = Integer.parseInt(values[0]);
+				} else if (name.equals("time")) {
+					iterationMillis = Long.parseLong(values[0]);
+				} else if (name.equals("threads")) {
+					threads = Integer.parseInt(values[0]);
+				} else if (name.equals("baseline")) {
+					readBaseline(values[0]);
+				} else if (name.equals("tolerance")) {
+					tolerance = Double.parseDouble(values[0]);
+				} else if (!name.equals("config")) {
+					throw new IllegalArgumentException("Unknown setting: " + name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + name + ": " + properties.getProperty(name));
+			}
+		}
+	}
+
+	/**
+	 * Runs every combination of benchmark and parameters, printing a CSV row for each.
+	 */
+	public void run() {
+		regressions = 0;
+		System.out.println("benchmark,size,layout,immune,regime,ops_per_s,error,bytes_per_op" + (baseline.isEmpty() ? "" : ",vs_baseline,regressed"));
+		for (String benchmark : benchmarks) {
+			for (int size : sizes) {
+				for (CellLayout layout : layouts) {
+					for (double immune : immuneProportions) {
+						for (Regime regime : regimes) {
+							measure(benchmark, size, layout, immune, regime);
+						}
+					}
+				}
+			}
+		}
+		if (model != null) {
+			model.shutdown();
+		}
+	}
+
+	private void measure(String benchmark, int size, CellLayout layout, double immune, Regime regime) {
+		for (int i = 0; i < warmupIterations; i++) {
+			iterate(benchmark, size, layout, immune, regime, null);
+		}
+		double[] rates = new double[measurementIterations];
+		double[] bytes = new double[1];
+		double meanBytes = 0;
+		for (int i = 0; i < measurementIterations; i++) {
+			rates[i] = iterate(benchmark, size, layout, immune, regime, bytes);
+			meanBytes += bytes[0];
+		}
+		meanBytes /= measurementIterations;
+
+		double mean = 0;
+		for (double rate : rates) {
+			mean += rate;
+		}
+		mean /= rates.length;
+		double variance = 0;
+		for (double rate : rates) {
+			variance += (rate - mean) * (rate - mean);
+		}
+		double error = rates.length > 1 ? 3.29 * Math.sqrt(variance / (rates.length - 1) / rates.length) : Double.NaN;
+
+		String key = benchmark + "," + size + "," + layoutName(layout) + "," + immune + "," + regime.name().toLowerCase();
+		StringBuilder row = new StringBuilder(key);
+		row.append(String.format(Locale.ROOT, ",%.4g,%.2g,%.3g", mean, error, meanBytes));
+		Double previous = baseline.get(key);
+		if (previous != null) {
+			boolean regressed = mean + (Double.isNaN(error) ? 0 : error) < previous * (1 - tolerance);
+			row.append(String.format(Locale.ROOT, ",%.3f,%s", mean / previous, regressed ? "yes" : ""));
+			if (regressed) {
+				regressions++;
+			}
+		} else if (!baseline.isEmpty()) {
+			row.append(",,");
+		}
+		System.out.println(row);
+	}
+
+	/**
+	 * Return the number of rows in the last run whose rate fell more than the tolerance below the baseline's.
+	 * @return
+	 */
+	public int getRegressions() {
+		return regressions;
+	}
+
+	/**
+	 * Builds a fresh fixture, then calls the benchmark until the iteration time has passed.
+	 * @param bytes If not null, receives the bytes allocated per operation
+	 * @return Operations per second
+	 */
+	private double iterate(String benchmark, int size, CellLayout layout, double immune, Regime regime, double[] bytes) {
+		setUp(benchmark, size, layout, immune, regime);
+		long allocatedBefore = allocatedBytes();
+		long operations = 0;
+		long start = System.nanoTime();
+		long deadline = start + iterationMillis * 1000000L;
+		long now;
+		do {
+			operations += invoke(benchmark);
+			now = System.nanoTime();
+		} while (now < deadline);
+		if (bytes != null) {
+			bytes[0] = (double) (allocatedBytes() - allocatedBefore) / operations;
+		}
+		return operations / ((now - start) / 1e9);
+	}
+
+	private void setUp(String benchmark, int size, CellLayout layout, double immune, Regime regime) {
+		if (model != null) {
+			model.shutdown();
+		}
+		model = new SIRSModel(size, size, regime.infection, regime.recovery, regime.relapse, immune, regime.infected, 1, threads);
+		model.setLayout(layout);
+		if (benchmark.equals("paint") || benchmark.equals("frame")) {
+			component = new ModelComponent(model);
+			component.setSize(600, 600);
+			graphics = new BufferedImage(600, 600, BufferedImage.TYPE_INT_RGB).createGraphics();
+		}
+	}
+
+	/**
+	 * Calls the benchmark once.
+	 * @return The number of operations performed
+	 */
+	private long invoke(String benchmark) {
+		int cells = model.getWidth() * model.getHeight();
+		if (benchmark.equals("updateSequential")) {
+			for (int i = 0; i < BATCH; i++) {
+				model.updateSequential();
+			}
+			return BATCH;
+		} else if (benchmark.equals("updateParallel")) {
+			model.updateParallel();
+			return cells;
+		} else if (benchmark.equals("updateCheckerboard")) {
+			model.updateCheckerboard();
+			return cells;
+		} else if (benchmark.equals("updateKinetic")) {
+			model.updateKinetic(BATCH);
+			return BATCH;
+		} else if (benchmark.equals("updateActive")) {
+			model.updateActive(BATCH);
+			return BATCH;
+		} else if (benchmark.equals("getAdjacentStates")) {
+			int width = model.getWidth();
+			int height = model.getHeight();
+			for (int i = 0; i < BATCH; i++) {
+				sink += model.getAdjacentStates(random.nextInt(width), random.nextInt(height)).length;
+			}
+			return BATCH;
+		} else if (benchmark.equals("reset")) {
+			model.reset();
+			return 1;
+		} else if (benchmark.equals("getPopulation")) {
+			for (int i = 0; i < BATCH; i++) {
+				sink += model.getPopulation(State.INFECTED) + model.getPopulation(State.RECOVERED)
+						+ model.getPopulation(State.SUSCEPTIBLE) + model.getPopulation(State.IMMUNE);
+			}
+			return BATCH;
+		} else if (benchmark.equals("countLattice")) {
+			Lattice lattice = model.getLattice();
+			sink += lattice.count(Lattice.INFECTED) + lattice.count(Lattice.RECOVERED) + lattice.count(Lattice.SUSCEPTIBLE);
+			return 1;
+		} else if (benchmark.equals("paint")) {
+			component.discardImage();
+			component.paint(graphics);
+			return 1;
+		} else if (benchmark.equals("frame")) {
+			for (int i = 0; i < 100; i++) {
+				model.updateSequential();
+			}
+			component.updateSnapshot();
+			component.repaintChanged();
+			component.paint(graphics);
+			return 1;
+		}
+		throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+	}
+
+	/**
+	 * Return the bytes allocated so far by the current thread, or 0 if the JVM cannot tell.
+	 * Allocations made by pool threads during parallel benchmarks are not included.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private static String layoutName(CellLayout layout) {
+		return layout.name().toLowerCase().replace('_', '-');
+	}
+
+	/**
+	 * Reads the rates of an earlier run, skipping comment lines starting with #.
+	 * Runs from before layouts were benchmarked have no layout column, and were all in rows.
+	 */
+	private void readBaseline(String file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line = in.readLine();
+			while (line != null && line.startsWith("#")) {
+				line = in.readLine();
+			}
+			boolean hasLayout = line != null && line.startsWith("benchmark,size,layout,");
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split(",");
+				if (hasLayout && fields.length >= 6) {
+					baseline.put(fields[0] + "," + fields[1] + "," + fields[2] + "," + fields[3] + "," + fields[4], Double.parseDouble(fields[5]));
+				} else if (!hasLayout && fields.length >= 5) {
+					baseline.put(fields[0] + "," + fields[1] + "," + layoutName(CellLayout.ROWS) + "," + fields[2] + "," + fields[3], Double.parseDouble(fields[4]));
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
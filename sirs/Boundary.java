@@ -0,0 +1,48 @@
+package sirs;
+
+/**
+ * Treatment of the edges of the lattice, see SIRSModel.setBoundary(Boundary).
+ * Under every boundary each cell has one neighbour slot per cell of the model's Neighbourhood; they differ in what fills the slots that fall off an edge.
+ * @author Ross
+ *
+ */
+public enum Boundary {
+	/**
+	 * Slots off the edge are empty, so cells near an edge have fewer neighbours: in the von Neumann neighbourhood, three on an edge and two at a corner.
+	 */
+	OPEN,
+	/**
+	 * The lattice wraps around into a torus, so opposite edges are neighbours and every cell is in the bulk.
+	 */
+	PERIODIC,
+	/**
+	 * The lattice is mirrored about its edge cells, so a slot off the edge holds the neighbour on the opposite side.
+	 */
+	REFLECTING;
+
+	/**
+	 * Return the coordinate filling the neighbour slot at coordinate + offset along an axis of the given length, or -1 if the slot is empty.
+	 * Depends only on coordinate + offset. Offsets may exceed the length, wrapping or reflecting repeatedly.
+	 * @param coordinate
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	int neighbour(int coordinate, int offset, int length) {
+		int next = coordinate + offset;
+		if (next >= 0 && next < length) {
+			return next;
+		}
+		if (this == PERIODIC) {
+			return Math.floorMod(next, length);
+		} else if (this == REFLECTING) {
+			if (length == 1) {
+				return 0;
+			}
+			int period = 2 * (length - 1);
+			int folded = Math.floorMod(next, period);
+			return folded < length ? folded : period - folded;
+		}
+		return -1;
+	}
+}
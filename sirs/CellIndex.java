@@ -0,0 +1,127 @@
+package sirs;
+
+/**
+ * Flat lattice index of each cell under a CellLayout. The index of a cell in Z order is the number of its block,
+ * counted row after row, followed by the bits of x and y within the block interleaved, x on the even bits and y on the odd ones;
+ * with blocks of one cell this is row after row.
+ * The layout is separable, the index of x,y being rowOffsets[y] + columnOffsets[x], and these tables serve lookups by x,y,
+ * the neighbour tables at the edges and the bulk passes over rows.
+ * Neighbours of a cell already known by index are found by arithmetic on the bits instead: one coordinate's bits are added to with
+ * the other coordinate's bits filled or cleared so that carries and borrows pass over them, as in dilated integer arithmetic.
+ * @author Ross
+ *
+ */
+class CellIndex {
+	final int[] columnOffsets; //share of the flat index of each column
+	final int[] rowOffsets; //share of the flat index of each row
+	private final int shift; //blocks are 1 << shift cells square
+	private final int mask; //bits of a coordinate within its block
+	private final int xBits; //bits of the index holding x within the block
+	private final int yBits; //bits of the index holding y within the block
+	private final int blocksAcross;
+
+	/**
+	 * Tabulates the offsets of a lattice of the given dimensions.
+	 * @param layout
+	 * @param width
+	 * @param height
+	 */
+	CellIndex(CellLayout layout, int width, int height) {
+		shift = layout == CellLayout.Z_ORDER ? Math.min(Integer.numberOfTrailingZeros(width), Integer.numberOfTrailingZeros(height)) : 0;
+		blocksAcross = width >>> shift;
+		mask = (1 << shift) - 1;
+		xBits = spread(mask);
+		yBits = xBits << 1;
+		columnOffsets = new int[width];
+		for (int x = 0; x < width; x++) {
+			columnOffsets[x] = ((x >>> shift) << (2 * shift)) | spread(x & mask);
+		}
+		rowOffsets = new int[height];
+		for (int y = 0; y < height; y++) {
+			rowOffsets[y] = (y >>> shift) * (width << shift) | (spread(y & mask) << 1);
+		}
+	}
+
+	/**
+	 * Return the flat index of cell x,y.
+	 */
+	int index(int x, int y) {
+		return rowOffsets[y] + columnOffsets[x];
+	}
+
+	/**
+	 * Return the index of the cell dx, dy away from the cell at index, which must lie within the lattice.
+	 */
+	int neighbour(int index, int dx, int dy) {
+		//x: carries out of the block move into the block number, which is the next block along the row
+		if (dx >= 0) {
+			index = (((index | yBits) + ((dx >>> shift) << (2 * shift) | spread(dx & mask))) & ~yBits) | (index & yBits);
+		} else {
+			index = (((index & ~yBits) - ((-dx >>> shift) << (2 * shift) | spread(-dx & mask))) & ~yBits) | (index & yBits);
+		}
+		//y: carries out of the block move a whole row of blocks
+		int low = index & (xBits | yBits);
+		int rowsOfBlocks;
+		if (dy >= 0) {
+			int sum = (low | xBits) + (spread(dy & mask) << 1);
+			rowsOfBlocks = (dy >>> shift) + (sum >>> (2 * shift));
+			low = (sum & yBits) | (low & xBits);
+		} else {
+			int difference = (low & yBits) - (spread(-dy & mask) << 1);
+			rowsOfBlocks = -(-dy >>> shift) - (difference >>> 31);
+			low = (difference & yBits) | (low & xBits);
+		}
+		return (index & ~(xBits | yBits)) + ((rowsOfBlocks * blocksAcross) << (2 * shift)) | low;
+	}
+
+	/**
+	 * Return the x coordinate of the cell at a flat index.
+	 */
+	int getX(int index) {
+		return (((index >>> (2 * shift)) % blocksAcross) << shift) | compact(index & xBits);
+	}
+
+	/**
+	 * Return the y coordinate of the cell at a flat index.
+	 */
+	int getY(int index) {
+		return (((index >>> (2 * shift)) / blocksAcross) << shift) | compact((index & yBits) >>> 1);
+	}
+
+	/**
+	 * Return a number of rows such that cutting the lattice only between rows at multiples of it leaves each word of 32 cells,
+	 * or else each piece, whole. In blocks of at least 8 by 8 cells every word is an aligned patch 8 cells wide and 4 high, so 4;
+	 * smaller blocks need whole rows of blocks, each a contiguous range of indices, which in rows is 1.
+	 */
+	int getRowAlignment() {
+		return shift >= 3 ? 4 : 1 << shift;
+	}
+
+	/**
+	 * Return true if cells lie row after row, index y * width + x.
+	 */
+	boolean isRowMajor() {
+		return shift == 0;
+	}
+
+	/**
+	 * Return the low 16 bits of v moved onto the even bits.
+	 */
+	private static int spread(int v) {
+		v = (v | (v << 8)) & 0x00ff00ff;
+		v = (v | (v << 4)) & 0x0f0f0f0f;
+		v = (v | (v << 2)) & 0x33333333;
+		return (v | (v << 1)) & 0x55555555;
+	}
+
+	/**
+	 * Return the even bits of v gathered into the low 16 bits, the inverse of spread.
+	 */
+	private static int compact(int v) {
+		v &= 0x55555555;
+		v = (v | (v >>> 1)) & 0x33333333;
+		v = (v | (v >>> 2)) & 0x0f0f0f0f;
+		v = (v | (v >>> 4)) & 0x00ff00ff;
+		return (v | (v >>> 8)) & 0x0000ffff;
+	}
+}
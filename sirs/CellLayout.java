@@ -0,0 +1,30 @@
+package sirs;
+
+/**
+ * Order in which the cells of the lattice are stored, see SIRSModel.setLayout(CellLayout).
+ * The layout only decides where each cell lives in memory: the dynamics, the random numbers drawn and every view of the lattice
+ * by x,y are the same under both, apart from the arrangement reset() draws.
+ * @author Ross
+ *
+ */
+public enum CellLayout {
+	/**
+	 * Row after row, so that the cells above and below a cell are a whole row away in memory.
+	 */
+	ROWS,
+	/**
+	 * Square blocks of 2^k by 2^k cells, row after row of blocks, with the cells of each block in Z (Morton) order,
+	 * so that most of a cell's neighbours share its cache line. Blocks are as large as the largest power of two dividing
+	 * both the width and the height; a lattice with an odd side is therefore stored in rows.
+	 *
+	 * This is currently a regression, not an optimisation: a neighbour in Z order is found through per axis offset tables or
+	 * carry arithmetic, where an interior cell in rows needs one addition, and on 4096x4096 lattices that outweighs the
+	 * locality gained. Measured single threaded on OpenJDK 17, Z order took 351 against 188 ns per cell for sequential
+	 * sweeps with moore:3, 265 against 186 for kinetic with moore:2 and 120 against 43 for checkerboard with moore:2, and at
+	 * best drew level with rows for parallel sweeps with a radius of 2 or more. It can only be expected to pay off where
+	 * memory, not arithmetic, bounds the sweep: lattices far beyond the last level cache, swept by many threads sharing its
+	 * bandwidth, with wide kernels whose rows of neighbours each miss the cache in row order. Measure with sirs.Benchmarks
+	 * --size=4096 --layout=rows,z-order before choosing it.
+	 */
+	Z_ORDER;
+}
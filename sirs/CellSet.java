@@ -0,0 +1,101 @@
+package sirs;
+
+import java.util.Arrays;
+
+/**
+ * Set of cell indices with O(1) insert, remove and uniform random pick, backed by primitive arrays.
+ * Members are kept densely packed; each cell's position within its set is recorded in a slot array.
+ * Several sets may share one slot array as long as no cell is a member of more than one of them at a time.
+ * @author Ross
+ *
+ */
+public class CellSet {
+	private final int[] slots;
+	private int[] members;
+	private int size;
+
+	/**
+	 * Creates an empty set.
+	 * @param slots Array with one entry per cell of the lattice, shared with any disjoint sets
+	 */
+	public CellSet(int[] slots) {
+		this.slots = slots;
+		members = new int[16];
+	}
+
+	/**
+	 * Creates an empty set with its own slot array.
+	 * @param cells Number of cells in the lattice
+	 */
+	public CellSet(int cells) {
+		this(new int[cells]);
+	}
+
+	/**
+	 * Adds a cell, which must not already be a member.
+	 * @param cell
+	 */
+	public void add(int cell) {
+		if (size == members.length) {
+			members = Arrays.copyOf(members, size * 2);
+		}
+		members[size] = cell;
+		slots[cell] = size;
+		size++;
+	}
+
+	/**
+	 * Removes a cell, which must be a member, by moving the last member into its place.
+	 * @param cell
+	 */
+	public void remove(int cell) {
+		int slot = slots[cell];
+		size--;
+		int moved = members[size];
+		members[slot] = moved;
+		slots[moved] = slot;
+	}
+
+	/**
+	 * Return true if the cell is a member. Only valid while the slot array is not shared.
+	 * @param cell
+	 * @return
+	 */
+	public boolean contains(int cell) {
+		int slot = slots[cell];
+		return slot < size && members[slot] == cell;
+	}
+
+	/**
+	 * Return the member at a given position, for 0 <= i < size().
+	 * @param i
+	 * @return
+	 */
+	public int get(int i) {
+		return members[i];
+	}
+
+	/**
+	 * Return a uniformly chosen member. The set must not be empty.
+	 * @param random
+	 * @return
+	 */
+	public int pick(RandomSource random) {
+		return members[random.nextInt(size)];
+	}
+
+	/**
+	 * Return the number of members.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes every member.
+	 */
+	public void clear() {
+		size = 0;
+	}
+}
@@ -0,0 +1,61 @@
+package sirs;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * One sub-step of a checkerboard sweep: random sequential updates confined to every other band of the lattice, bands in parallel.
+ * Band b covers rows [b * bandHeight, (b + 1) * bandHeight), with the last band taking any leftover rows.
+ * @author Ross
+ *
+ */
+class CheckerboardStep extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private final SIRSModel model;
+	private final RandomSource[] randoms;
+	private final int parity;
+	private final int bands;
+	private final int first;
+	private final int last;
+
+	/**
+	 * @param model Model to update
+	 * @param randoms One random source per band of this parity
+	 * @param parity 0 to update even bands, 1 for odd bands
+	 * @param bands Total number of bands
+	 * @param first First band (counted within this parity) to update
+	 * @param last Band after the last one to update
+	 */
+	CheckerboardStep(SIRSModel model, RandomSource[] randoms, int parity, int bands, int first, int last) {
+		this.model = model;
+		this.randoms = randoms;
+		this.parity = parity;
+		this.bands = bands;
+		this.first = first;
+		this.last = last;
+	}
+
+	@Override
+	protected void compute() {
+		if (last - first > 1) {
+			int middle = (first + last) >>> 1;
+			invokeAll(new CheckerboardStep(model, randoms, parity, bands, first, middle),
+					new CheckerboardStep(model, randoms, parity, bands, middle, last));
+		} else if (last > first) {
+			updateBand(first);
+		}
+	}
+
+	private void updateBand(int i) {
+		RandomSource random = randoms[i];
+		int band = 2 * i + parity;
+		int width = model.getWidth();
+		int bandHeight = model.getBandHeight();
+		int top = band * bandHeight;
+		int rows = (band == bands - 1) ? model.getHeight() - top : bandHeight;
+		int attempts = rows * width;
+		for (int k = 0; k < attempts; k++) {
+			model.updateCell(random.nextInt(width), top + random.nextInt(rows), random);
+		}
+	}
+}
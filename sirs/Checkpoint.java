@@ -0,0 +1,282 @@
+package sirs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Saves and restores the complete state of an SIRSModel: parameters, the packed lattice, the clock, the random generator
+ * and the event sets, so that a restored model continues exactly as the saved one would have.
+ *
+ * The file is a HEADER_BYTES header followed by the lattice words (8 bytes each) in the model's layout, the members of the
+ * at risk, infected and recovered event sets (4 bytes each) and, for any neighbourhood but the default,
+ * its weight grid row by row (4 bytes each), all little endian. Bulk sections are streamed through a
+ * direct buffer with plain channel reads and writes rather than mapped, since a mapped file cannot be replaced or renamed on Windows
+ * while the mapping lives, and a mapping lives until it is garbage collected.
+ * A checkpoint is written to a temporary file which then replaces the target, so a crash while saving leaves the previous checkpoint intact.
+ * The model must use its own Xoshiro256 random source and lie on a lattice.
+ * @author Ross
+ *
+ */
+public class Checkpoint {
+	static final long MAGIC = 0x31304b4353524953L; //"SIRSCK01" read little endian
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 192;
+	private static final int BUFFER_BYTES = 1 << 20;
+
+	/**
+	 * Header field offsets
+	 */
+	private static final int WIDTH_OFFSET = 16;
+	private static final int HEIGHT_OFFSET = 20;
+	private static final int TICKS_OFFSET = 24;
+	private static final int DRIFT_OFFSET = 32;
+	private static final int INFECTION_OFFSET = 40;
+	private static final int RECOVERY_OFFSET = 48;
+	private static final int RELAPSE_OFFSET = 56;
+	private static final int IMMUNE_OFFSET = 64;
+	private static final int INFECTED_OFFSET = 72;
+	private static final int SEED_OFFSET = 80;
+	private static final int RANDOM_OFFSET = 88; //four longs
+	private static final int BAND_HEIGHT_OFFSET = 120;
+	private static final int CELL_SHAPE_OFFSET = 124;
+	private static final int EVENTS_OFFSET = 128; //three ints, or -1 if there are no event sets
+	private static final int BOUNDARY_OFFSET = 140; //zero, and so open, in checkpoints saved before boundaries were selectable
+	private static final int RADIUS_OFFSET = 144; //neighbourhood radius, or zero for the default neighbourhood with no grid saved
+	private static final int SATURATION_OFFSET = 148;
+	private static final int LAYOUT_OFFSET = 152; //zero, and so rows, in checkpoints saved before layouts were selectable
+
+	private Checkpoint() {
+	}
+
+	/**
+	 * Writes the state of a model to a file, replacing any existing checkpoint there.
+	 * @param model
+	 * @param path
+	 * @throws IOException
+	 * @throws IllegalStateException if the model does not use a Xoshiro256 random source, or lies on a contact network
+	 */
+	public static void save(SIRSModel model, File path) throws IOException {
+		if (!(model.getRandomSource() instanceof Xoshiro256)) {
+			throw new IllegalStateException("Only models using Xoshiro256 can be checkpointed");
+		}
+		if (model.getNetwork() != null) {
+			throw new IllegalStateException("Models on contact networks cannot be checkpointed");
+		}
+		long[] words = ((PackedLattice) model.getLattice()).getWords();
+		EventSets events = model.getEventSets();
+		CellSet[] sets = events == null ? new CellSet[0] : new CellSet[] {events.atRisk, events.infected, events.recovered};
+		Neighbourhood neighbourhood = model.getNeighbourhood();
+		int[][] grid = neighbourhood == SIRSModel.DEFAULT_NEIGHBOURHOOD ? new int[0][] : neighbourhood.toGrid();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(0, MAGIC);
+		header.putInt(8, VERSION);
+		header.putInt(WIDTH_OFFSET, model.getWidth());
+		header.putInt(HEIGHT_OFFSET, model.getHeight());
+		header.putLong(TICKS_OFFSET, model.getTicks());
+		header.putDouble(DRIFT_OFFSET, model.getClockDrift());
+		header.putDouble(INFECTION_OFFSET, model.getInfectionProbability());
+		header.putDouble(RECOVERY_OFFSET, model.getRecoveryProbability());
+		header.putDouble(RELAPSE_OFFSET, model.getRelapseProbability());
+		header.putDouble(IMMUNE_OFFSET, model.getImmuneProportion());
+		header.putDouble(INFECTED_OFFSET, model.getInfectedProportion());
+		header.putLong(SEED_OFFSET, model.getSeed());
+		long[] state = ((Xoshiro256) model.getRandomSource()).getState();
+		for (int i = 0; i < state.length; i++) {
+			header.putLong(RANDOM_OFFSET + i * 8, state[i]);
+		}
+		header.putInt(BAND_HEIGHT_OFFSET, model.getBandHeight());
+		header.putInt(CELL_SHAPE_OFFSET, model.getCellShape().ordinal());
+		header.putInt(BOUNDARY_OFFSET, model.getBoundary().ordinal());
+		header.putInt(RADIUS_OFFSET, grid.length / 2);
+		header.putInt(SATURATION_OFFSET, neighbourhood.getSaturation());
+		header.putInt(LAYOUT_OFFSET, model.getLayout().ordinal());
+		for (int i = 0; i < 3; i++) {
+			header.putInt(EVENTS_OFFSET + i * 4, events == null ? -1 : sets[i].size());
+		}
+
+		File temporary = new File(path.getPath() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(temporary, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			channel.truncate(0);
+			write(channel, header);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			int step = BUFFER_BYTES / 8;
+			for (int first = 0; first < words.length; first += step) {
+				int count = Math.min(step, words.length - first);
+				buffer.clear();
+				buffer.asLongBuffer().put(words, first, count);
+				buffer.limit(count * 8);
+				write(channel, buffer);
+			}
+			buffer.clear();
+			for (CellSet set : sets) {
+				for (int i = 0; i < set.size(); i++) {
+					if (!buffer.hasRemaining()) {
+						buffer.flip();
+						write(channel, buffer);
+						buffer.clear();
+					}
+					buffer.putInt(set.get(i));
+				}
+			}
+			for (int i = 0; i < grid.length; i++) {
+				for (int j = 0; j < grid.length; j++) {
+					if (!buffer.hasRemaining()) {
+						buffer.flip();
+						write(channel, buffer);
+						buffer.clear();
+					}
+					buffer.putInt(grid[i][j]);
+				}
+			}
+			buffer.flip();
+			write(channel, buffer);
+			channel.force(true);
+		} finally {
+			file.close();
+		}
+		Files.move(temporary.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Return the constant with the given ordinal, as saved in a header.
+	 * @throws IOException if there is no such constant, as in a corrupt file or one from a newer version
+	 */
+	private static <E extends Enum<E>> E constant(E[] values, int ordinal, String name, File path) throws IOException {
+		if (ordinal < 0 || ordinal >= values.length) {
+			throw new IOException("Unsupported " + name + " " + ordinal + " in " + path);
+		}
+		return values[ordinal];
+	}
+
+	/**
+	 * Reads a model back from a checkpoint. The model continues exactly as the saved one would have,
+	 * given the same sequence of update calls.
+	 * @param path
+	 * @return
+	 * @throws IOException if the file cannot be read or is not a checkpoint
+	 */
+	public static SIRSModel load(File path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() < HEADER_BYTES) {
+				throw new IOException(path + " is not a SIRS checkpoint");
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			read(channel, header, path);
+			if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+				throw new IOException(path + " is not a SIRS checkpoint");
+			}
+
+			SIRSModel model = new SIRSModel(header.getInt(WIDTH_OFFSET), header.getInt(HEIGHT_OFFSET));
+			model.setInfectionProbability(header.getDouble(INFECTION_OFFSET));
+			model.setRecoveryProbability(header.getDouble(RECOVERY_OFFSET));
+			model.setRelapseProbability(header.getDouble(RELAPSE_OFFSET));
+			model.setImmuneProportion(header.getDouble(IMMUNE_OFFSET));
+			model.setInfectedProportion(header.getDouble(INFECTED_OFFSET));
+			model.setSeed(header.getLong(SEED_OFFSET));
+			long[] state = new long[4];
+			for (int i = 0; i < state.length; i++) {
+				state[i] = header.getLong(RANDOM_OFFSET + i * 8);
+			}
+			((Xoshiro256) model.getRandomSource()).setState(state);
+			model.setBandHeight(header.getInt(BAND_HEIGHT_OFFSET));
+			model.setCellShape(constant(CellShape.values(), header.getInt(CELL_SHAPE_OFFSET), "cell shape", path));
+			model.setBoundary(constant(Boundary.values(), header.getInt(BOUNDARY_OFFSET), "boundary", path));
+			model.setLayout(constant(CellLayout.values(), header.getInt(LAYOUT_OFFSET), "layout", path));
+
+			long[] words = ((PackedLattice) model.getLattice()).getWords();
+			int cells = model.getWidth() * model.getHeight();
+			int[] sizes = new int[3];
+			int side = 2 * header.getInt(RADIUS_OFFSET) + 1;
+			long length = HEADER_BYTES + (long) words.length * 8 + (side > 1 ? (long) side * side * 4 : 0);
+			for (int i = 0; i < 3; i++) {
+				sizes[i] = header.getInt(EVENTS_OFFSET + i * 4);
+				length += Math.max(0, sizes[i]) * 4L;
+			}
+			if (channel.size() < length) {
+				throw new IOException(path + " is truncated");
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			int step = BUFFER_BYTES / 8;
+			for (int first = 0; first < words.length; first += step) {
+				int count = Math.min(step, words.length - first);
+				buffer.clear();
+				buffer.limit(count * 8);
+				read(channel, buffer, path);
+				buffer.asLongBuffer().get(words, first, count);
+			}
+
+			EventSets events = null;
+			if (sizes[0] >= 0) {
+				events = new EventSets(cells);
+				CellSet[] sets = {events.atRisk, events.infected, events.recovered};
+				for (int s = 0; s < 3; s++) {
+					for (int member : readInts(channel, buffer, sizes[s], path)) {
+						sets[s].add(member);
+					}
+				}
+			}
+			if (side > 1) {
+				int[] weights = readInts(channel, buffer, side * side, path);
+				int[][] grid = new int[side][side];
+				for (int i = 0; i < side; i++) {
+					System.arraycopy(weights, i * side, grid[i], 0, side);
+				}
+				model.setNeighbourhood(Neighbourhood.weighted(grid, header.getInt(SATURATION_OFFSET)));
+			}
+			model.restore(header.getLong(TICKS_OFFSET), header.getDouble(DRIFT_OFFSET), events);
+			return model;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer at the channel's position.
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Fills the remaining bytes of a buffer from the channel's position, then rewinds it for reading.
+	 * @throws IOException if the file ends first
+	 */
+	private static void read(FileChannel channel, ByteBuffer buffer, File path) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException(path + " is truncated");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Return the next count ints of the channel, read through buffer.
+	 */
+	private static int[] readInts(FileChannel channel, ByteBuffer buffer, int count, File path) throws IOException {
+		int[] values = new int[count];
+		int step = BUFFER_BYTES / 4;
+		for (int first = 0; first < count; first += step) {
+			int n = Math.min(step, count - first);
+			buffer.clear();
+			buffer.limit(n * 4);
+			read(channel, buffer, path);
+			buffer.asIntBuffer().get(values, first, n);
+		}
+		return values;
+	}
+}
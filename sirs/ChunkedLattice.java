@@ -0,0 +1,311 @@
+package sirs;
+
+import java.util.Arrays;
+
+/**
+ * Lattice stored as square tiles of TILE_SIZE x TILE_SIZE cells, for huge domains which are mostly uniform.
+ * A tile whose cells all hold the same code is kept as that single code and costs no cell storage; a tile is unpacked into
+ * 2 bit cells, as in PackedLattice, the first time one of its cells is set to a different code, and packed back down
+ * to a single code when it becomes uniform again. Memory therefore follows the area in which cells differ from their
+ * surroundings, plus a few bytes per tile of bookkeeping.
+ * Cells are addressed by x,y rather than a flat index, so the lattice may hold more than 2^31 cells.
+ * Counts of each code are kept per tile and overall, and tiles changed since the last render() are recorded,
+ * so a view only redraws what changed.
+ * @author Ross
+ *
+ */
+public class ChunkedLattice {
+	static final int TILE_SHIFT = 6;
+	static final int TILE_SIZE = 1 << TILE_SHIFT;
+	private static final int TILE_MASK = TILE_SIZE - 1;
+	private static final int TILE_WORDS = TILE_SIZE * TILE_SIZE / 32;
+	private static final long LOW_BITS = 0x5555555555555555L; //low bit of every 2-bit field
+
+	private final int width;
+	private final int height;
+	private final int tileColumns;
+	private final int tileRows;
+	private final long[][] tiles; //packed cells of each tile, or null if the tile is uniform
+	private final byte[] uniform; //code of every cell of each tile without cells of its own
+	private final short[] counts; //cells of each code in each tile, four to a tile
+	private final long[] populations = new long[4]; //cells of each code
+	private int allocated; //tiles with cells of their own
+	private final long[] dirty; //bitmap of tiles changed since the last render
+	private int[] dirtyList = new int[64];
+	private int dirtyCount;
+	private boolean allDirty = true;
+
+	/**
+	 * Creates a lattice with every cell holding the given code, and no tile unpacked.
+	 * @param width
+	 * @param height
+	 * @param state Code of every cell
+	 */
+	public ChunkedLattice(int width, int height, int state) {
+		this.width = width;
+		this.height = height;
+		tileColumns = (width + TILE_MASK) >>> TILE_SHIFT;
+		tileRows = (height + TILE_MASK) >>> TILE_SHIFT;
+		long tileCount = (long) tileColumns * tileRows;
+		if (width < 1 || height < 1 || tileCount > Integer.MAX_VALUE / 4) {
+			throw new IllegalArgumentException("Unsupported lattice size " + width + "x" + height);
+		}
+		tiles = new long[(int) tileCount][];
+		uniform = new byte[(int) tileCount];
+		counts = new short[(int) tileCount * 4];
+		dirty = new long[(int) ((tileCount + 63) >>> 6)];
+		Arrays.fill(uniform, (byte) state);
+		for (int t = 0; t < tiles.length; t++) {
+			counts[t * 4 + state] = (short) getTileCells(t);
+		}
+		populations[state] = (long) width * height;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Return the number of tiles across the lattice.
+	 * @return
+	 */
+	public int getTileColumns() {
+		return tileColumns;
+	}
+
+	/**
+	 * Return the number of tiles down the lattice.
+	 * @return
+	 */
+	public int getTileRows() {
+		return tileRows;
+	}
+
+	/**
+	 * Return the number of tiles, getTileColumns() * getTileRows().
+	 * @return
+	 */
+	public int getTileCount() {
+		return tiles.length;
+	}
+
+	/**
+	 * Return the number of tiles holding cells of their own rather than a single code.
+	 * @return
+	 */
+	public int getAllocatedTiles() {
+		return allocated;
+	}
+
+	/**
+	 * Return the index of the tile holding cell x,y.
+	 */
+	int tileOf(int x, int y) {
+		return (y >>> TILE_SHIFT) * tileColumns + (x >>> TILE_SHIFT);
+	}
+
+	/**
+	 * Return the number of cells of a tile which lie within the lattice; tiles along the right and bottom edges may be cut short.
+	 */
+	int getTileCells(int tile) {
+		int column = tile % tileColumns;
+		int row = tile / tileColumns;
+		return Math.min(TILE_SIZE, width - (column << TILE_SHIFT)) * Math.min(TILE_SIZE, height - (row << TILE_SHIFT));
+	}
+
+	/**
+	 * Return the number of cells of a tile holding the given code.
+	 */
+	int getTileCount(int tile, int state) {
+		return counts[tile * 4 + state];
+	}
+
+	/**
+	 * Return the number of cells holding the given code.
+	 * @param state
+	 * @return
+	 */
+	public long count(int state) {
+		return populations[state];
+	}
+
+	/**
+	 * Return the code of the cell at x,y.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int get(int x, int y) {
+		int tile = tileOf(x, y);
+		long[] words = tiles[tile];
+		if (words == null) {
+			return uniform[tile];
+		}
+		int bit = ((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK);
+		return (int) (words[bit >>> 5] >>> ((bit & 31) << 1)) & 3;
+	}
+
+	/**
+	 * Set the code of the cell at x,y, unpacking its tile if it was uniform and packing it if it becomes so.
+	 * @param x
+	 * @param y
+	 * @param state
+	 * @return The previous code of the cell
+	 */
+	public int set(int x, int y, int state) {
+		int tile = tileOf(x, y);
+		long[] words = tiles[tile];
+		if (words == null) {
+			if (uniform[tile] == state) {
+				return state;
+			}
+			words = new long[TILE_WORDS];
+			Arrays.fill(words, uniform[tile] * LOW_BITS);
+			tiles[tile] = words;
+			allocated++;
+		}
+		int bit = ((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK);
+		int word = bit >>> 5;
+		int shift = (bit & 31) << 1;
+		int previous = (int) (words[word] >>> shift) & 3;
+		if (previous != state) {
+			words[word] = (words[word] & ~(3L << shift)) | ((long) state << shift);
+			counts[tile * 4 + previous]--;
+			populations[previous]--;
+			populations[state]++;
+			if (++counts[tile * 4 + state] == getTileCells(tile)) {
+				pack(tile, state);
+			}
+			markDirty(tile);
+		}
+		return previous;
+	}
+
+	/**
+	 * Set every cell of a rectangle to the given code. Tiles the rectangle covers whole become uniform without being unpacked.
+	 * @param x Left of the rectangle
+	 * @param y Top of the rectangle
+	 * @param w Width of the rectangle
+	 * @param h Height of the rectangle
+	 * @param state
+	 */
+	public void fill(int x, int y, int w, int h, int state) {
+		int x0 = Math.max(0, x);
+		int y0 = Math.max(0, y);
+		int x1 = (int) Math.min(width, (long) x + w);
+		int y1 = (int) Math.min(height, (long) y + h);
+		for (int row = y0 >>> TILE_SHIFT; row << TILE_SHIFT < y1; row++) {
+			for (int column = x0 >>> TILE_SHIFT; column << TILE_SHIFT < x1; column++) {
+				int tileX = column << TILE_SHIFT;
+				int tileY = row << TILE_SHIFT;
+				int tileX1 = Math.min(width, tileX + TILE_SIZE);
+				int tileY1 = Math.min(height, tileY + TILE_SIZE);
+				if (x0 <= tileX && y0 <= tileY && x1 >= tileX1 && y1 >= tileY1) {
+					int tile = row * tileColumns + column;
+					for (int code = 0; code < 4; code++) {
+						populations[code] -= counts[tile * 4 + code];
+						counts[tile * 4 + code] = 0;
+					}
+					counts[tile * 4 + state] = (short) getTileCells(tile);
+					populations[state] += counts[tile * 4 + state];
+					pack(tile, state);
+					markDirty(tile);
+				} else {
+					for (int j = Math.max(y0, tileY); j < Math.min(y1, tileY1); j++) {
+						for (int i = Math.max(x0, tileX); i < Math.min(x1, tileX1); i++) {
+							set(i, j, state);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws the lattice into one byte per pixel, each byte the code of a cell, for use as the pixels of an indexed colour image
+	 * as in ModelComponent. Pixel px,py shows the cell at px * scale, py * scale, so the image is
+	 * ceil(width / scale) by ceil(height / scale) pixels, row by row. Uniform tiles are drawn a row of pixels at a time.
+	 * @param pixels
+	 * @param scale Cells per pixel along each axis
+	 * @param changedOnly If set, only tiles changed since the last call are drawn, and the rest of pixels is left as it was
+	 * @return Number of tiles drawn
+	 */
+	public int render(byte[] pixels, int scale, boolean changedOnly) {
+		int drawn = 0;
+		if (changedOnly && !allDirty) {
+			for (int i = 0; i < dirtyCount; i++) {
+				renderTile(pixels, scale, dirtyList[i]);
+			}
+			drawn = dirtyCount;
+		} else {
+			for (int tile = 0; tile < tiles.length; tile++) {
+				renderTile(pixels, scale, tile);
+			}
+			drawn = tiles.length;
+		}
+		for (int i = 0; i < dirtyCount; i++) {
+			dirty[dirtyList[i] >>> 6] = 0;
+		}
+		if (allDirty) {
+			Arrays.fill(dirty, 0);
+		}
+		dirtyCount = 0;
+		allDirty = false;
+		return drawn;
+	}
+
+	/**
+	 * Draws the pixels whose cells lie in the given tile.
+	 */
+	private void renderTile(byte[] pixels, int scale, int tile) {
+		int pixelWidth = (width + scale - 1) / scale;
+		int tileX = (tile % tileColumns) << TILE_SHIFT;
+		int tileY = (tile / tileColumns) << TILE_SHIFT;
+		int px0 = (tileX + scale - 1) / scale;
+		int px1 = (Math.min(width, tileX + TILE_SIZE) + scale - 1) / scale;
+		int py0 = (tileY + scale - 1) / scale;
+		int py1 = (Math.min(height, tileY + TILE_SIZE) + scale - 1) / scale;
+		long[] words = tiles[tile];
+		for (int py = py0; py < py1; py++) {
+			int line = py * pixelWidth;
+			if (words == null) {
+				Arrays.fill(pixels, line + px0, line + px1, uniform[tile]);
+			} else {
+				int rowBit = ((py * scale) & TILE_MASK) << TILE_SHIFT;
+				for (int px = px0; px < px1; px++) {
+					int bit = rowBit | ((px * scale) & TILE_MASK);
+					pixels[line + px] = (byte) ((words[bit >>> 5] >>> ((bit & 31) << 1)) & 3);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the cells of a tile which has become uniform.
+	 */
+	private void pack(int tile, int state) {
+		if (tiles[tile] != null) {
+			tiles[tile] = null;
+			allocated--;
+		}
+		uniform[tile] = (byte) state;
+	}
+
+	private void markDirty(int tile) {
+		if (allDirty) {
+			return;
+		}
+		long bit = 1L << tile;
+		if ((dirty[tile >>> 6] & bit) == 0) {
+			dirty[tile >>> 6] |= bit;
+			if (dirtyCount == dirtyList.length) {
+				dirtyList = Arrays.copyOf(dirtyList, dirtyCount * 2);
+			}
+			dirtyList[dirtyCount++] = tile;
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package sirs;
+
+import java.util.Arrays;
+
+/**
+ * SIRS dynamics on a ChunkedLattice, for domains far larger than the active region of the epidemic.
+ * Follows the random sequential rules of SIRSModel.updateSequential() with the same neighbourhoods and boundaries,
+ * but keeps no per-cell state beyond the lattice itself: infection pressure is counted from the neighbours when a cell is visited.
+ *
+ * A tile is quiescent when no attempt on any of its cells could change it: it holds no infected or recovered cells,
+ * and no infected cell lies close enough to infect one of its cells. The set of active tiles is kept up to date as cells change,
+ * and attempts which would land on quiescent tiles are skipped in bulk by drawing how many there are,
+ * so a sweep costs time in proportion to the active area rather than the whole domain.
+ * The lattice starts uniformly susceptible; shape the initial state with setState() and fill().
+ * @author Ross
+ *
+ */
+public class ChunkedSIRSModel {
+	private final int width;
+	private final int height;
+	private final ChunkedLattice lattice;
+	private double infectionProbability;
+	private double recoveryProbability;
+	private double relapseProbability;
+	private final Neighbourhood neighbourhood;
+	private final Boundary boundary;
+	private final RandomSource random;
+	private long ticks; //number of cell updates that have been run, including skipped ones
+
+	private final int[][] reachColumns; //for each tile column, the tile columns holding cells with a neighbour slot in it
+	private final int[][] reachRows; //the same for tile rows
+	private final short[] exposure; //number of tiles with infected cells whose reach covers each tile
+	private final CellSet activeTiles;
+	private long activeCells; //cells in active tiles
+
+	/**
+	 * Creates a uniformly susceptible model.
+	 * @param width
+	 * @param height
+	 * @param infectionProbability probability of S -> I
+	 * @param recoveryProbability probability of I -> R
+	 * @param relapseProbability probability of R -> S
+	 * @param neighbourhood Cells which can pass on infection to each cell
+	 * @param boundary Treatment of the lattice edges
+	 * @param seed Seed for the model's random source
+	 */
+	public ChunkedSIRSModel(int width, int height, double infectionProbability, double recoveryProbability, double relapseProbability,
+			Neighbourhood neighbourhood, Boundary boundary, long seed) {
+		this.width = width;
+		this.height = height;
+		this.infectionProbability = infectionProbability;
+		this.recoveryProbability = recoveryProbability;
+		this.relapseProbability = relapseProbability;
+		this.neighbourhood = neighbourhood;
+		this.boundary = boundary;
+		random = new Xoshiro256(seed);
+		lattice = new ChunkedLattice(width, height, Lattice.SUSCEPTIBLE);
+		reachColumns = reach(width, lattice.getTileColumns());
+		reachRows = reach(height, lattice.getTileRows());
+		exposure = new short[lattice.getTileCount()];
+		activeTiles = new CellSet(lattice.getTileCount());
+	}
+
+	/**
+	 * Creates a uniformly susceptible model with the default neighbourhood and boundary.
+	 * @param width
+	 * @param height
+	 * @param infectionProbability probability of S -> I
+	 * @param recoveryProbability probability of I -> R
+	 * @param relapseProbability probability of R -> S
+	 * @param seed Seed for the model's random source
+	 */
+	public ChunkedSIRSModel(int width, int height, double infectionProbability, double recoveryProbability, double relapseProbability, long seed) {
+		this(width, height, infectionProbability, recoveryProbability, relapseProbability, SIRSModel.DEFAULT_NEIGHBOURHOOD, SIRSModel.DEFAULT_BOUNDARY, seed);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Return the lattice, for rendering and inspection. Change cells through the model so that the active tiles stay up to date.
+	 * @return
+	 */
+	public ChunkedLattice getLattice() {
+		return lattice;
+	}
+
+	public double getInfectionProbability() {
+		return infectionProbability;
+	}
+
+	public void setInfectionProbability(double infectionProbability) {
+		this.infectionProbability = infectionProbability;
+	}
+
+	public double getRecoveryProbability() {
+		return recoveryProbability;
+	}
+
+	public void setRecoveryProbability(double recoveryProbability) {
+		this.recoveryProbability = recoveryProbability;
+	}
+
+	public double getRelapseProbability() {
+		return relapseProbability;
+	}
+
+	public void setRelapseProbability(double relapseProbability) {
+		this.relapseProbability = relapseProbability;
+	}
+
+	public Neighbourhood getNeighbourhood() {
+		return neighbourhood;
+	}
+
+	public Boundary getBoundary() {
+		return boundary;
+	}
+
+	/**
+	 * Return number of transitions attempted, including those skipped on quiescent tiles.
+	 * @return
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Return the simulated time in sweeps (attempts per cell).
+	 * @return
+	 */
+	public double getTime() {
+		return (double) ticks / ((long) width * height);
+	}
+
+	/**
+	 * Return the number of cells currently in the given state.
+	 * @param state
+	 * @return
+	 */
+	public long getPopulation(State state) {
+		return lattice.count(state.ordinal());
+	}
+
+	/**
+	 * Return the number of tiles which are not quiescent.
+	 * @return
+	 */
+	public int getActiveTileCount() {
+		return activeTiles.size();
+	}
+
+	/**
+	 * Return whether a tile, numbered as by {@link ChunkedLattice#tileOf(int, int)}, is in the active set.
+	 */
+	boolean isActiveTile(int tile) {
+		return activeTiles.contains(tile);
+	}
+
+	/**
+	 * Return the state at a given x,y in the lattice.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public State getState(int x, int y) {
+		return State.fromCode(lattice.get(x, y));
+	}
+
+	/**
+	 * Sets the state of a single cell.
+	 * @param x
+	 * @param y
+	 * @param state
+	 */
+	public void setState(int x, int y, State state) {
+		setState(x, y, state.ordinal());
+	}
+
+	/**
+	 * Sets every cell of a rectangle to the given state, e.g. to seed an outbreak or mark a region immune.
+	 * Tiles the rectangle covers whole become uniform without being unpacked.
+	 * @param x Left of the rectangle
+	 * @param y Top of the rectangle
+	 * @param w Width of the rectangle
+	 * @param h Height of the rectangle
+	 * @param state
+	 */
+	public void fill(int x, int y, int w, int h, State state) {
+		int column0 = Math.max(0, x) >>> ChunkedLattice.TILE_SHIFT;
+		int row0 = Math.max(0, y) >>> ChunkedLattice.TILE_SHIFT;
+		int column1 = Math.min(lattice.getTileColumns(), (int) ((Math.min(width, (long) x + w) + ChunkedLattice.TILE_SIZE - 1) >>> ChunkedLattice.TILE_SHIFT));
+		int row1 = Math.min(lattice.getTileRows(), (int) ((Math.min(height, (long) y + h) + ChunkedLattice.TILE_SIZE - 1) >>> ChunkedLattice.TILE_SHIFT));
+		if (column1 <= column0 || row1 <= row0) {
+			return;
+		}
+		boolean[] wasInfected = new boolean[(column1 - column0) * (row1 - row0)];
+		for (int row = row0; row < row1; row++) {
+			for (int column = column0; column < column1; column++) {
+				wasInfected[(row - row0) * (column1 - column0) + column - column0] = lattice.getTileCount(row * lattice.getTileColumns() + column, Lattice.INFECTED) > 0;
+			}
+		}
+		lattice.fill(x, y, w, h, state.ordinal());
+		for (int row = row0; row < row1; row++) {
+			for (int column = column0; column < column1; column++) {
+				int tile = row * lattice.getTileColumns() + column;
+				boolean infected = lattice.getTileCount(tile, Lattice.INFECTED) > 0;
+				if (infected != wasInfected[(row - row0) * (column1 - column0) + column - column0]) {
+					expose(tile, infected ? 1 : -1);
+				} else {
+					updateActivity(tile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Performs one random sequential attempt: a uniformly chosen cell makes its transition with its usual probability.
+	 * Attempts which land on a quiescent tile cost only a lookup.
+	 */
+	public void updateSequential() {
+		int x = random.nextInt(width);
+		int y = random.nextInt(height);
+		int tile = lattice.tileOf(x, y);
+		if (activeTiles.contains(tile)) {
+			updateCell(x, y);
+		}
+		ticks++;
+	}
+
+	/**
+	 * Advances the model by the given number of random sequential attempts, only visiting active tiles.
+	 * The number of attempts which would have landed on quiescent tiles, and so changed nothing, is drawn directly and skipped.
+	 * Equivalent in distribution to calling updateSequential() that many times.
+	 * @param attempts
+	 */
+	public void updateSequential(long attempts) {
+		double cells = (double) width * height;
+		long end = ticks + attempts;
+		while (ticks < end) {
+			long skip = activeCells > 0 ? SIRSRules.geometric(activeCells / cells, random) : Long.MAX_VALUE;
+			if (skip > end - ticks) {
+				ticks = end;
+				return;
+			}
+			ticks += skip;
+			//a uniform cell of the active tiles: tiles are drawn uniformly, so draws falling outside the lattice are redrawn
+			int x;
+			int y;
+			do {
+				int tile = activeTiles.pick(random);
+				int bits = random.nextInt(ChunkedLattice.TILE_SIZE * ChunkedLattice.TILE_SIZE);
+				x = ((tile % lattice.getTileColumns()) << ChunkedLattice.TILE_SHIFT) + (bits & (ChunkedLattice.TILE_SIZE - 1));
+				y = ((tile / lattice.getTileColumns()) << ChunkedLattice.TILE_SHIFT) + (bits >>> ChunkedLattice.TILE_SHIFT);
+			} while (x >= width || y >= height);
+			updateCell(x, y);
+		}
+	}
+
+	/**
+	 * Advances the model by one sweep, i.e. one attempted transition per cell.
+	 */
+	public void sweep() {
+		updateSequential((long) width * height);
+	}
+
+	/**
+	 * Attempts one transition of the cell at x,y.
+	 */
+	private void updateCell(int x, int y) {
+		int actor = lattice.get(x, y);
+		int pressure = actor == Lattice.SUSCEPTIBLE ? countInfectedNeighbours(x, y) : 0;
+		int next = SIRSRules.attempt(actor, pressure, neighbourhood.getSaturation(), infectionProbability, recoveryProbability, relapseProbability, random);
+		if (next != actor) {
+			setState(x, y, next);
+		}
+	}
+
+	/**
+	 * Return the total weight of the infected neighbours of the cell at x,y.
+	 */
+	int countInfectedNeighbours(int x, int y) {
+		int radius = neighbourhood.getRadius();
+		boolean interior = x >= radius && y >= radius && x < width - radius && y < height - radius;
+		int count = 0;
+		for (int k = 0; k < neighbourhood.size(); k++) {
+			int i = x + neighbourhood.getDx(k);
+			int j = y + neighbourhood.getDy(k);
+			if (!interior) {
+				i = boundary.neighbour(x, neighbourhood.getDx(k), width);
+				j = boundary.neighbour(y, neighbourhood.getDy(k), height);
+				if (i < 0 || j < 0) {
+					continue;
+				}
+			}
+			if (lattice.get(i, j) == Lattice.INFECTED) {
+				count += neighbourhood.getWeight(k);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Sets a cell to a new state, keeping the active tiles up to date. All transitions should pass through here.
+	 */
+	private void setState(int x, int y, int state) {
+		int tile = lattice.tileOf(x, y);
+		int infectedBefore = lattice.getTileCount(tile, Lattice.INFECTED);
+		int previous = lattice.set(x, y, state);
+		if (previous == state) {
+			return;
+		}
+		int infectedAfter = lattice.getTileCount(tile, Lattice.INFECTED);
+		if (infectedBefore == 0 && infectedAfter > 0) {
+			expose(tile, 1);
+		} else if (infectedBefore > 0 && infectedAfter == 0) {
+			expose(tile, -1);
+		} else if (previous == Lattice.RECOVERED || state == Lattice.RECOVERED) {
+			updateActivity(tile);
+		}
+	}
+
+	/**
+	 * Adds delta to the exposure of every tile within reach of the given tile, after it gains its first infected cell or loses its last.
+	 */
+	private void expose(int tile, int delta) {
+		int columns = lattice.getTileColumns();
+		for (int row : reachRows[tile / columns]) {
+			for (int column : reachColumns[tile % columns]) {
+				int target = row * columns + column;
+				exposure[target] += delta;
+				updateActivity(target);
+			}
+		}
+		updateActivity(tile);
+	}
+
+	/**
+	 * Adds a tile to the active set, or removes it, to match its contents and exposure.
+	 */
+	private void updateActivity(int tile) {
+		boolean active = exposure[tile] > 0 || lattice.getTileCount(tile, Lattice.INFECTED) > 0 || lattice.getTileCount(tile, Lattice.RECOVERED) > 0;
+		if (active != activeTiles.contains(tile)) {
+			if (active) {
+				activeTiles.add(tile);
+				activeCells += lattice.getTileCells(tile);
+			} else {
+				activeTiles.remove(tile);
+				activeCells -= lattice.getTileCells(tile);
+			}
+		}
+	}
+
+	/**
+	 * Return, for each tile along an axis, the tiles holding a cell which has a neighbour slot in it under the boundary,
+	 * taking every offset within the radius of the neighbourhood. Each list is in increasing order.
+	 */
+	private int[][] reach(int length, int tiles) {
+		int radius = neighbourhood.getRadius();
+		int[][] reach = new int[tiles][4];
+		int[] sizes = new int[tiles];
+		for (int coordinate = 0; coordinate < length; coordinate++) {
+			int target = coordinate >>> ChunkedLattice.TILE_SHIFT;
+			for (int offset = -radius; offset <= radius; offset++) {
+				int slot = boundary.neighbour(coordinate, offset, length);
+				if (slot < 0) {
+					continue;
+				}
+				int source = slot >>> ChunkedLattice.TILE_SHIFT;
+				int size = sizes[source];
+				//coordinates are visited in order, so a repeat can only be the last tile added
+				if (size == 0 || reach[source][size - 1] != target) {
+					if (size == reach[source].length) {
+						reach[source] = Arrays.copyOf(reach[source], size * 2);
+					}
+					reach[source][size] = target;
+					sizes[source]++;
+				}
+			}
+		}
+		for (int source = 0; source < tiles; source++) {
+			reach[source] = Arrays.copyOf(reach[source], sizes[source]);
+		}
+		return reach;
+	}
+}
@@ -0,0 +1,123 @@
+package sirs;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.Timer;
+
+/**
+ * Draws a ChunkedSIRSModel, whose lattice is usually far larger than the screen: each pixel shows one cell sampled from a square of cells,
+ * as ChunkedLattice.render() lays them out. After the first frame only the tiles changed since the last one are redrawn,
+ * so quiescent regions cost nothing per frame. Colours are those of ModelComponent.
+ *
+ * Run as a program with the options of BatchRunner for chunked runs, e.g. --size=100000 --infection=0.8 --recovery=0.1 --relapse=0.01,
+ * to watch a model one sweep per frame.
+ * @author Ross
+ *
+ */
+public class ChunkedView extends JComponent {
+	private static final long serialVersionUID = 1L;
+
+	private final ChunkedSIRSModel model;
+	private final IndexColorModel colorModel;
+	private WritableRaster raster; //one byte per pixel, allocated for the current component size
+	private byte[] pixels; //backing array of raster
+	private BufferedImage image;
+	private int scale; //cells per pixel along each axis
+
+	public ChunkedView(ChunkedSIRSModel model) {
+		this.model = model;
+		byte[] r = new byte[4];
+		byte[] g = new byte[4];
+		byte[] b = new byte[4];
+		setColour(r, g, b, Lattice.RECOVERED, ModelComponent.DEFAULT_RECOVERED_COLOR);
+		setColour(r, g, b, Lattice.SUSCEPTIBLE, ModelComponent.DEFAULT_SUSCEPTIBLE_COLOR);
+		setColour(r, g, b, Lattice.INFECTED, ModelComponent.DEFAULT_INFECTED_COLOR);
+		setColour(r, g, b, Lattice.IMMUNE, ModelComponent.DEFAULT_IMMUNE_COLOR);
+		colorModel = new IndexColorModel(8, 4, r, g, b);
+		setPreferredSize(ModelComponent.DEFAULT_SIZE);
+	}
+
+	private static void setColour(byte[] r, byte[] g, byte[] b, int code, Color colour) {
+		r[code] = (byte) colour.getRed();
+		g[code] = (byte) colour.getGreen();
+		b[code] = (byte) colour.getBlue();
+	}
+
+	/**
+	 * Brings the image up to date with the model, redrawing only tiles changed since the last call unless the component was resized.
+	 * @return Number of tiles drawn
+	 */
+	public int updateImage() {
+		ChunkedLattice lattice = model.getLattice();
+		int width = Math.max(1, getWidth());
+		int height = Math.max(1, getHeight());
+		int fit = (int) Math.max(1, Math.max(((long) lattice.getWidth() + width - 1) / width, ((long) lattice.getHeight() + height - 1) / height));
+		boolean changedOnly = raster != null && fit == scale;
+		if (!changedOnly) {
+			scale = fit;
+			raster = colorModel.createCompatibleWritableRaster((lattice.getWidth() + scale - 1) / scale, (lattice.getHeight() + scale - 1) / scale);
+			pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+			image = new BufferedImage(colorModel, raster, false, null);
+		}
+		return lattice.render(pixels, scale, changedOnly);
+	}
+
+	@Override
+	public void paint(Graphics g) {
+		super.paint(g);
+		if (image == null) {
+			return;
+		}
+		//small lattices are stretched by whole pixels
+		int stretch = Math.max(1, Math.min(getWidth() / image.getWidth(), getHeight() / image.getHeight()));
+		g.drawImage(image, 0, 0, image.getWidth() * stretch, image.getHeight() * stretch, null);
+	}
+
+	/**
+	 * Entry Point
+	 * @param args Options as for BatchRunner, which must suit a chunked run
+	 */
+	public static void main(String[] args) {
+		final BatchRunner runner = new BatchRunner();
+		try {
+			Properties properties = BatchRunner.parseArguments(args);
+			properties.setProperty("chunked", "true");
+			runner.configure(properties);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: java -cp <jar> sirs.ChunkedView [--size=n | --width=n --height=n] [--infection=p] [--recovery=p] [--relapse=p]"
+					+ " [--seed=n] [--boundary=open|periodic|reflecting] [--neighbourhood=von-neumann|moore[:r]] [--outbreak=n]");
+			System.exit(2);
+		}
+		final ChunkedSIRSModel model = runner.createChunkedModel();
+		final ChunkedView view = new ChunkedView(model);
+		final JFrame frame = new JFrame("SIRS Simulator");
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.add(view);
+		frame.pack();
+		frame.setVisible(true);
+		new Timer(40, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (model.getPopulation(State.INFECTED) > 0 || model.getPopulation(State.RECOVERED) > 0) {
+					model.sweep();
+				}
+				view.updateImage();
+				view.repaint();
+				frame.setTitle(String.format(Locale.ROOT, "SIRS Simulator - sweep %.0f, %d infected, %d tiles active",
+						model.getTime(), model.getPopulation(State.INFECTED), model.getActiveTileCount()));
+			}
+		}).start();
+	}
+}
@@ -0,0 +1,565 @@
+package sirs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Undirected contact network in compressed sparse row form: the neighbours of node i are targets[offsets[i]] up to
+ * targets[offsets[i + 1]] (exclusive), in increasing order. Every edge appears in the rows of both its ends, and there are
+ * no self loops or repeated edges. Nodes are numbered from 0 to size() - 1.
+ * Held in two primitive arrays, so a network of tens of millions of edges costs 8 bytes per edge and 4 per node.
+ * Networks are immutable, so one can be shared by any number of models and threads.
+ * @author Ross
+ *
+ */
+public class ContactNetwork {
+	/**
+	 * Largest number of entries in an array, and so of edge ends in a network
+	 */
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+	private static final int BUFFER_BYTES = 1 << 16;
+	private static final String USAGE = " (expected an edge list file, random-regular:nodes:degree, erdos-renyi:nodes:probability or"
+			+ " small-world:nodes:degree:rewiring, with no node of more than " + Neighbourhood.MAX_TOTAL_WEIGHT + " neighbours)";
+
+	private final int[] offsets;
+	private final int[] targets;
+	private final int maxDegree;
+
+	/**
+	 * Wraps arrays which already satisfy the class invariants.
+	 */
+	private ContactNetwork(int[] offsets, int[] targets) {
+		this.offsets = offsets;
+		this.targets = targets;
+		int maxDegree = 0;
+		for (int i = 0; i + 1 < offsets.length; i++) {
+			maxDegree = Math.max(maxDegree, offsets[i + 1] - offsets[i]);
+		}
+		this.maxDegree = maxDegree;
+	}
+
+	/**
+	 * Return a network with the given undirected edges, the i-th joining from[i] and to[i].
+	 * Self loops are dropped and repeated edges, in either direction, are merged.
+	 * @param nodes Number of nodes
+	 * @param from
+	 * @param to
+	 * @param edges Number of edges to read from the arrays
+	 * @return
+	 * @throws IllegalArgumentException if an edge names a node outside 0 to nodes - 1
+	 */
+	public static ContactNetwork fromEdges(int nodes, int[] from, int[] to, int edges) {
+		int[] offsets = new int[nodes + 1];
+		for (int e = 0; e < edges; e++) {
+			if (from[e] < 0 || from[e] >= nodes || to[e] < 0 || to[e] >= nodes) {
+				throw new IllegalArgumentException("Edge " + from[e] + "-" + to[e] + " is outside a network of " + nodes + " nodes");
+			}
+			if (from[e] != to[e]) {
+				offsets[from[e] + 1]++;
+				offsets[to[e] + 1]++;
+			}
+		}
+		int[] targets = new int[sumDegrees(offsets)];
+		int[] next = Arrays.copyOf(offsets, nodes);
+		for (int e = 0; e < edges; e++) {
+			if (from[e] != to[e]) {
+				targets[next[from[e]]++] = to[e];
+				targets[next[to[e]]++] = from[e];
+			}
+		}
+		return simplify(offsets, targets);
+	}
+
+	/**
+	 * Streams a network from an edge list: one edge per line as two node numbers separated by spaces, tabs or commas.
+	 * Further fields on a line, such as weights or times, are ignored, as are blank lines and lines starting with # or %.
+	 * The network has one node more than the largest number named. Files ending .gz are decompressed on the fly.
+	 * The file is read twice, first to count the degree of every node and then to place the edges, so no edge list
+	 * is ever held in memory beside the network.
+	 * @param file
+	 * @return
+	 * @throws IOException if the file cannot be read or a line is not an edge
+	 */
+	public static ContactNetwork load(File file) throws IOException {
+		int[] degrees = new int[1024];
+		int nodes = 0;
+		int[] edge = new int[2];
+		EdgeListReader reader = new EdgeListReader(file);
+		try {
+			while (reader.next(edge)) {
+				nodes = Math.max(nodes, Math.max(edge[0], edge[1]) + 1);
+				if (nodes >= degrees.length) {
+					degrees = Arrays.copyOf(degrees, (int) Math.min(MAX_ARRAY, Math.max(nodes + 1L, degrees.length * 2L)));
+				}
+				if (edge[0] != edge[1]) {
+					degrees[edge[0] + 1]++;
+					degrees[edge[1] + 1]++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		int[] offsets = Arrays.copyOf(degrees, nodes + 1);
+		degrees = null;
+		int[] targets;
+		try {
+			targets = new int[sumDegrees(offsets)];
+		} catch (IllegalArgumentException e) {
+			throw new IOException(file + ": " + e.getMessage());
+		}
+		int[] next = Arrays.copyOf(offsets, nodes);
+		reader = new EdgeListReader(file);
+		try {
+			while (reader.next(edge)) {
+				if (edge[0] != edge[1]) {
+					if (edge[0] >= nodes || edge[1] >= nodes || next[edge[0]] == offsets[edge[0] + 1] || next[edge[1]] == offsets[edge[1] + 1]) {
+						throw new IOException(file + " changed while it was being read");
+					}
+					targets[next[edge[0]]++] = edge[1];
+					targets[next[edge[1]]++] = edge[0];
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return simplify(offsets, targets);
+	}
+
+	/**
+	 * Return an approximately uniformly chosen network (configuration model with repair) in which every node has exactly the given degree.
+	 * Edge ends are paired at random, then any self loop or repeated edge is removed by swapping ends with a random edge;
+	 * the repair leaves the choice close to, but not exactly, uniform over all such networks.
+	 * The repairs are few for sparse networks, so the cost is linear in the number of edges.
+	 * @param nodes
+	 * @param degree
+	 * @param random
+	 * @return
+	 * @throws IllegalArgumentException if no such network exists
+	 */
+	public static ContactNetwork randomRegular(int nodes, int degree, RandomSource random) {
+		long ends = (long) nodes * degree;
+		if (nodes < 0 || degree < 0 || (degree >= nodes && nodes > 0) || ends % 2 != 0 || ends > MAX_ARRAY) {
+			throw new IllegalArgumentException("No " + degree + "-regular network on " + nodes + " nodes");
+		}
+		int stubs = (int) ends;
+		int[] partner = new int[stubs];
+		boolean paired = false;
+		while (!paired) {
+			pairRandomly(partner, random);
+			paired = repairPairing(partner, degree, random);
+		}
+
+		int[] offsets = new int[nodes + 1];
+		for (int i = 0; i <= nodes; i++) {
+			offsets[i] = i * degree;
+		}
+		for (int s = 0; s < stubs; s++) {
+			partner[s] /= degree;
+		}
+		for (int i = 0; i < nodes; i++) {
+			Arrays.sort(partner, offsets[i], offsets[i + 1]);
+		}
+		return new ContactNetwork(offsets, partner);
+	}
+
+	/**
+	 * Return an Erdos-Renyi network, in which each pair of nodes is joined independently with the given probability.
+	 * Draws the gaps between edges rather than visiting every pair, so the cost is linear in the number of edges.
+	 * @param nodes
+	 * @param probability
+	 * @param random
+	 * @return
+	 */
+	public static ContactNetwork erdosRenyi(int nodes, double probability, RandomSource random) {
+		EdgeBuffer edges = new EdgeBuffer();
+		if (probability > 0) {
+			double logMiss = Math.log1p(-Math.min(probability, 1));
+			//pairs are visited in the order (1,0), (2,0), (2,1), (3,0), ...
+			long v = 1;
+			long w = -1;
+			while (v < nodes) {
+				double skip = Math.log(1 - random.nextDouble()) / logMiss;
+				if (skip >= (double) nodes * nodes) {
+					break;
+				}
+				w += 1 + (long) skip;
+				while (w >= v && v < nodes) {
+					w -= v;
+					v++;
+				}
+				if (v < nodes) {
+					edges.add((int) v, (int) w);
+				}
+			}
+		}
+		return fromEdges(nodes, edges.from, edges.to, edges.size);
+	}
+
+	/**
+	 * Return a Watts-Strogatz small world network: a ring in which every node is joined to the degree / 2 nearest nodes on each side,
+	 * after which each edge is rewired with the given probability to a node drawn uniformly from those outside the ring neighbourhood.
+	 * A rewired edge which happens to repeat another rewired edge is merged with it, which for large rings is vanishingly rare.
+	 * @param nodes
+	 * @param degree Mean degree, even
+	 * @param rewiring Probability of rewiring each edge
+	 * @param random
+	 * @return
+	 * @throws IllegalArgumentException if the degree is odd, or leaves no nodes to rewire to
+	 */
+	public static ContactNetwork smallWorld(int nodes, int degree, double rewiring, RandomSource random) {
+		if (degree < 0 || degree % 2 != 0 || degree >= nodes || (rewiring > 0 && degree + 1 >= nodes)) {
+			throw new IllegalArgumentException("No small world network of degree " + degree + " on " + nodes + " nodes");
+		}
+		int half = degree / 2;
+		EdgeBuffer edges = new EdgeBuffer();
+		for (int j = 1; j <= half; j++) {
+			for (int u = 0; u < nodes; u++) {
+				int v = (int) (((long) u + j) % nodes);
+				if (rewiring > 0 && random.nextDouble() < rewiring) {
+					v = (int) (((long) u + half + 1 + random.nextInt(nodes - degree - 1)) % nodes);
+				}
+				edges.add(u, v);
+			}
+		}
+		return fromEdges(nodes, edges.from, edges.to, edges.size);
+	}
+
+	/**
+	 * Return the network described by a specification: random-regular:nodes:degree, erdos-renyi:nodes:probability,
+	 * small-world:nodes:degree:rewiring, or otherwise the name of an edge list file to load.
+	 * SIRSModel counts infected neighbours in 16 bits, so it runs only on networks in which no node has more than
+	 * Neighbourhood.MAX_TOTAL_WEIGHT (32767) neighbours.
+	 * @param text
+	 * @param random Source for generated networks
+	 * @return
+	 * @throws IOException if an edge list cannot be read
+	 * @throws IllegalArgumentException if a generator's parameters are malformed
+	 */
+	public static ContactNetwork parse(String text, RandomSource random) throws IOException {
+		String[] parts = text.trim().split(":");
+		String kind = parts[0].toLowerCase();
+		try {
+			if (kind.equals("random-regular") && parts.length == 3) {
+				return randomRegular(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), random);
+			} else if (kind.equals("erdos-renyi") && parts.length == 3) {
+				return erdosRenyi(Integer.parseInt(parts[1]), Double.parseDouble(parts[2]), random);
+			} else if (kind.equals("small-world") && parts.length == 4) {
+				return smallWorld(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Double.parseDouble(parts[3]), random);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad network: " + text + USAGE);
+		}
+		if (kind.equals("random-regular") || kind.equals("erdos-renyi") || kind.equals("small-world")) {
+			throw new IllegalArgumentException("Bad network: " + text + USAGE);
+		}
+		return load(new File(text.trim()));
+	}
+
+	/**
+	 * Return the number of nodes.
+	 * @return
+	 */
+	public int size() {
+		return offsets.length - 1;
+	}
+
+	/**
+	 * Return the number of edges.
+	 * @return
+	 */
+	public long getEdgeCount() {
+		return targets.length / 2;
+	}
+
+	/**
+	 * Return the number of neighbours of a node.
+	 * @param node
+	 * @return
+	 */
+	public int getDegree(int node) {
+		return offsets[node + 1] - offsets[node];
+	}
+
+	/**
+	 * Return the largest degree of any node.
+	 * @return
+	 */
+	public int getMaxDegree() {
+		return maxDegree;
+	}
+
+	/**
+	 * Return the row offsets, size() + 1 of them. Shared with the network, so must not be modified.
+	 * @return
+	 */
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	/**
+	 * Return the neighbours of every node, row by row. Shared with the network, so must not be modified.
+	 * @return
+	 */
+	public int[] getTargets() {
+		return targets;
+	}
+
+	/**
+	 * Turns per-node counts held at offsets[i + 1] into row offsets, returning the total.
+	 * @throws IllegalArgumentException if the total does not fit an array
+	 */
+	private static int sumDegrees(int[] offsets) {
+		long total = 0;
+		for (int i = 1; i < offsets.length; i++) {
+			total += offsets[i];
+			if (total > MAX_ARRAY) {
+				throw new IllegalArgumentException("Network has more than " + MAX_ARRAY / 2 + " edges");
+			}
+			offsets[i] = (int) total;
+		}
+		return (int) total;
+	}
+
+	/**
+	 * Sorts every row and removes repeated entries, compacting the rows in place.
+	 */
+	private static ContactNetwork simplify(int[] offsets, int[] targets) {
+		int write = 0;
+		int start = 0;
+		for (int i = 0; i + 1 < offsets.length; i++) {
+			int end = offsets[i + 1];
+			Arrays.sort(targets, start, end);
+			offsets[i] = write;
+			int previous = -1;
+			for (int k = start; k < end; k++) {
+				if (targets[k] != previous) {
+					previous = targets[k];
+					targets[write++] = previous;
+				}
+			}
+			start = end;
+		}
+		offsets[offsets.length - 1] = write;
+		return new ContactNetwork(offsets, write == targets.length ? targets : Arrays.copyOf(targets, write));
+	}
+
+	/**
+	 * Pairs up edge ends uniformly at random, so that partner[s] is the end paired with s.
+	 */
+	private static void pairRandomly(int[] partner, RandomSource random) {
+		for (int s = 0; s < partner.length; s++) {
+			partner[s] = s;
+		}
+		for (int s = partner.length - 1; s > 0; s--) {
+			int r = random.nextInt(s + 1);
+			int swap = partner[s];
+			partner[s] = partner[r];
+			partner[r] = swap;
+		}
+		//partner now holds a shuffled order; pair neighbours in it
+		int[] order = partner.clone();
+		for (int s = 0; s < order.length; s += 2) {
+			partner[order[s]] = order[s + 1];
+			partner[order[s + 1]] = order[s];
+		}
+	}
+
+	/**
+	 * Removes self loops and repeated edges from a pairing of edge ends, where end s belongs to node s / degree.
+	 * Rows are screened by sorting their neighbours; in a bad row, each bad pair is swapped with a random pair until
+	 * all four ends involved are good, so no swap spoils a pair already checked.
+	 * @return false if the pairing could not be repaired in reasonable time, so a new one should be drawn
+	 */
+	private static boolean repairPairing(int[] partner, int degree, RandomSource random) {
+		long budget = 100L * partner.length + 10000;
+		int[] row = new int[degree];
+		for (int s = 0; s < partner.length; s++) {
+			if (s % degree == 0 && isSimpleRow(partner, degree, s / degree, row)) {
+				s += degree - 1;
+				continue;
+			}
+			while (!isSimple(partner, degree, s)) {
+				if (budget-- == 0) {
+					return false;
+				}
+				int t = partner[s];
+				int u = random.nextInt(partner.length);
+				int w = partner[u];
+				if (u == s || u == t) {
+					continue;
+				}
+				//(s,t) (u,w) -> (s,w) (u,t)
+				partner[s] = w;
+				partner[w] = s;
+				partner[u] = t;
+				partner[t] = u;
+				if (!(isSimple(partner, degree, s) && isSimple(partner, degree, t) && isSimple(partner, degree, u) && isSimple(partner, degree, w))) {
+					partner[s] = t;
+					partner[t] = s;
+					partner[u] = w;
+					partner[w] = u;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return true if no edge of a node is a self loop or repeated.
+	 */
+	private static boolean isSimpleRow(int[] partner, int degree, int node, int[] row) {
+		for (int k = 0; k < degree; k++) {
+			row[k] = partner[node * degree + k] / degree;
+		}
+		Arrays.sort(row);
+		for (int k = 0; k < degree; k++) {
+			if (row[k] == node || (k > 0 && row[k] == row[k - 1])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return true if the edge at end s is neither a self loop nor repeated by another end of the same node.
+	 */
+	private static boolean isSimple(int[] partner, int degree, int s) {
+		int node = s / degree;
+		int other = partner[s] / degree;
+		if (node == other) {
+			return false;
+		}
+		for (int t = node * degree; t < (node + 1) * degree; t++) {
+			if (t != s && partner[t] / degree == other) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Growable pair of primitive arrays for collecting generated edges.
+	 */
+	private static class EdgeBuffer {
+		int[] from = new int[1024];
+		int[] to = new int[1024];
+		int size;
+
+		void add(int u, int v) {
+			if (size == from.length) {
+				if (size == MAX_ARRAY) {
+					throw new IllegalArgumentException("Network has more than " + MAX_ARRAY + " edges");
+				}
+				int capacity = (int) Math.min(MAX_ARRAY, size + (size >> 1) + 1L);
+				from = Arrays.copyOf(from, capacity);
+				to = Arrays.copyOf(to, capacity);
+			}
+			from[size] = u;
+			to[size] = v;
+			size++;
+		}
+	}
+
+	/**
+	 * Reads edges from an edge list a buffer at a time, parsing the numbers straight from the bytes.
+	 */
+	private static class EdgeListReader {
+		private final File file;
+		private final InputStream in;
+		private final byte[] buffer = new byte[BUFFER_BYTES];
+		private int position;
+		private int limit;
+		private long line = 1;
+
+		EdgeListReader(File file) throws IOException {
+			this.file = file;
+			InputStream in = new FileInputStream(file);
+			if (file.getName().endsWith(".gz")) {
+				in = new GZIPInputStream(in, BUFFER_BYTES);
+			}
+			this.in = in;
+		}
+
+		/**
+		 * Reads the next edge into ends.
+		 * @return false at the end of the file
+		 */
+		boolean next(int[] ends) throws IOException {
+			while (true) {
+				int c = skipSeparators(read());
+				if (c == -1) {
+					return false;
+				}
+				if (c != '#' && c != '%' && c != '\n' && c != '\r') {
+					c = readNode(c, ends, 0);
+					c = readNode(skipSeparators(c), ends, 1);
+					skipLine(c);
+					return true;
+				}
+				skipLine(c);
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		private int read() throws IOException {
+			if (position == limit) {
+				limit = in.read(buffer, 0, buffer.length);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					return -1;
+				}
+			}
+			int c = buffer[position++];
+			if (c == '\n') {
+				line++;
+			}
+			return c;
+		}
+
+		private int skipSeparators(int c) throws IOException {
+			while (c == ' ' || c == '\t' || c == ',') {
+				c = read();
+			}
+			return c;
+		}
+
+		/**
+		 * Skips past the end of the current line, of which c is the last character read.
+		 */
+		private void skipLine(int c) throws IOException {
+			while (c != '\n' && c != -1) {
+				c = read();
+			}
+		}
+
+		/**
+		 * Parses a node number starting at c into ends[i], returning the character after it.
+		 */
+		private int readNode(int c, int[] ends, int i) throws IOException {
+			long value = 0;
+			int digits = 0;
+			while (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				if (value >= MAX_ARRAY - 1) {
+					throw new IOException("Node number too large on line " + line + " of " + file);
+				}
+				digits++;
+				c = read();
+			}
+			if (digits == 0 || !(c == ' ' || c == '\t' || c == ',' || c == '\r' || c == '\n' || c == -1)) {
+				throw new IOException("Not an edge on line " + (c == '\n' ? line - 1 : line) + " of " + file);
+			}
+			ends[i] = (int) value;
+			return c;
+		}
+	}
+}
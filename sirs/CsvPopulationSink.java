@@ -0,0 +1,38 @@
+package sirs;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes population records as the CSV lines of the original sirslog files: infected,recovered,susceptible,immune.
+ * @author Ross
+ *
+ */
+public class CsvPopulationSink implements PopulationSink {
+	private final Writer out;
+	private final StringBuilder line = new StringBuilder(64);
+
+	/**
+	 * @param out Destination; should be buffered
+	 */
+	public CsvPopulationSink(Writer out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(long tick, int infected, int recovered, int susceptible, int immune) throws IOException {
+		line.setLength(0);
+		line.append(infected).append(',').append(recovered).append(',').append(susceptible).append(',').append(immune).append("\r\n");
+		out.append(line);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,134 @@
+package sirs;
+
+import java.util.Arrays;
+
+/**
+ * Record of which square tiles of a lattice have changed since a view last caught up.
+ * Changed tiles are kept both as a bitmap, so marking a tile twice costs nothing, and as a list, so a view can visit
+ * just the changed tiles without scanning the bitmap. Bulk updates mark the whole lattice at once.
+ * Meant for a single consumer, which reads the tiles and then calls clear(). Not thread safe.
+ * @author Ross
+ *
+ */
+class DirtyTiles {
+	/**
+	 * Tiles are 1 << TILE_SHIFT cells square.
+	 */
+	static final int TILE_SHIFT = 4;
+	static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+	private final int columns;
+	private final int rows;
+	private final long[] bits;
+	private final int[] tiles;
+	private int count;
+	private boolean all;
+
+	/**
+	 * Creates a record for a lattice of the given dimensions, with everything marked.
+	 * @param width
+	 * @param height
+	 */
+	DirtyTiles(int width, int height) {
+		columns = (width + TILE_SIZE - 1) >>> TILE_SHIFT;
+		rows = (height + TILE_SIZE - 1) >>> TILE_SHIFT;
+		bits = new long[(columns * rows + 63) >>> 6];
+		tiles = new int[columns * rows];
+		all = true;
+	}
+
+	/**
+	 * Marks the tile containing cell x,y.
+	 */
+	void mark(int x, int y) {
+		if (all) {
+			return;
+		}
+		markTile((y >>> TILE_SHIFT) * columns + (x >>> TILE_SHIFT));
+	}
+
+	/**
+	 * Marks a tile given as an index row * getColumns() + column.
+	 */
+	void markTile(int tile) {
+		if (all) {
+			return;
+		}
+		long bit = 1L << tile;
+		if ((bits[tile >>> 6] & bit) == 0) {
+			bits[tile >>> 6] |= bit;
+			tiles[count++] = tile;
+		}
+	}
+
+	/**
+	 * Marks every tile marked in another record of the same dimensions.
+	 * @param other
+	 */
+	void addAll(DirtyTiles other) {
+		if (other.all) {
+			all = true;
+		} else {
+			for (int i = 0; i < other.count; i++) {
+				markTile(other.tiles[i]);
+			}
+		}
+	}
+
+	/**
+	 * Marks every tile.
+	 */
+	void markAll() {
+		all = true;
+	}
+
+	/**
+	 * Return true if every tile is marked, in which case the tile list is not kept.
+	 */
+	boolean isAll() {
+		return all;
+	}
+
+	/**
+	 * Return the number of tiles in the list.
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Return the i-th changed tile, as an index row * getColumns() + column.
+	 */
+	int get(int i) {
+		return tiles[i];
+	}
+
+	/**
+	 * Return the number of tiles across the lattice.
+	 */
+	int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Return the number of tiles down the lattice.
+	 */
+	int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Unmarks every tile, in time proportional to the number of marked tiles.
+	 */
+	void clear() {
+		if (all) {
+			Arrays.fill(bits, 0);
+		} else {
+			for (int i = 0; i < count; i++) {
+				bits[tiles[i] >>> 6] = 0;
+			}
+		}
+		count = 0;
+		all = false;
+	}
+}
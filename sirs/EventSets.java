@@ -0,0 +1,107 @@
+package sirs;
+
+/**
+ * Sets of the cells able to change state, grouped by the transition they can make:
+ * susceptible cells with at least one infected neighbour, infected cells and recovered cells.
+ * Immune cells and susceptible cells without infected neighbours belong to no set.
+ * Together they form the active set: every cell which an update could change.
+ * Kept up to date by SIRSModel while event driven updates are in use.
+ * @author Ross
+ *
+ */
+class EventSets {
+	final CellSet atRisk;
+	final CellSet infected;
+	final CellSet recovered;
+
+	/**
+	 * Creates the sets for the current contents of a lattice.
+	 * @param lattice Lattice to scan
+	 * @param infectedNeighbours Infected neighbour count of each cell, which must be up to date
+	 */
+	EventSets(Lattice lattice, short[] infectedNeighbours) {
+		int[] slots = new int[lattice.size()];
+		atRisk = new CellSet(slots);
+		infected = new CellSet(slots);
+		recovered = new CellSet(slots);
+		for (int i = 0; i < lattice.size(); i++) {
+			add(i, lattice.get(i), infectedNeighbours[i]);
+		}
+	}
+
+	/**
+	 * Creates empty sets for a lattice of the given number of cells.
+	 * @param cells
+	 */
+	EventSets(int cells) {
+		int[] slots = new int[cells];
+		atRisk = new CellSet(slots);
+		infected = new CellSet(slots);
+		recovered = new CellSet(slots);
+	}
+
+	/**
+	 * Return the number of active cells, i.e. cells in any of the sets.
+	 */
+	int activeCount() {
+		return atRisk.size() + infected.size() + recovered.size();
+	}
+
+	/**
+	 * Return a cell chosen uniformly from all active cells, treating the three sets as one. There must be at least one active cell.
+	 */
+	int pickActive(RandomSource random) {
+		int i = random.nextInt(activeCount());
+		if (i < atRisk.size()) {
+			return atRisk.get(i);
+		}
+		i -= atRisk.size();
+		if (i < infected.size()) {
+			return infected.get(i);
+		}
+		return recovered.get(i - infected.size());
+	}
+
+	/**
+	 * Adds a cell to the set for its state, if any.
+	 */
+	void add(int cell, int state, int infectedNeighbours) {
+		if (state == Lattice.INFECTED) {
+			infected.add(cell);
+		} else if (state == Lattice.RECOVERED) {
+			recovered.add(cell);
+		} else if (state == Lattice.SUSCEPTIBLE && infectedNeighbours != 0) {
+			atRisk.add(cell);
+		}
+	}
+
+	/**
+	 * Removes a cell from the set for its state, if any.
+	 */
+	void remove(int cell, int state, int infectedNeighbours) {
+		if (state == Lattice.INFECTED) {
+			infected.remove(cell);
+		} else if (state == Lattice.RECOVERED) {
+			recovered.remove(cell);
+		} else if (state == Lattice.SUSCEPTIBLE && infectedNeighbours != 0) {
+			atRisk.remove(cell);
+		}
+	}
+
+	/**
+	 * Moves a susceptible cell in or out of the at risk set when its infected neighbour count changes from or to zero.
+	 * @param cell
+	 * @param state Current state of the cell
+	 * @param count Infected neighbour count after the change
+	 * @param delta Change in the count, which may be 0
+	 */
+	void countChanged(int cell, int state, int count, int delta) {
+		if (state == Lattice.SUSCEPTIBLE && delta != 0) {
+			if (count == 0) {
+				atRisk.remove(cell);
+			} else if (count == delta) {
+				atRisk.add(cell);
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package sirs;
+
+/**
+ * Storage backend for the cells of a lattice model.
+ * Cells are addressed by a flat index and hold the ordinal of their State, so that hot loops never touch enum references.
+ * @author Ross
+ *
+ */
+public abstract class Lattice {
+	/**
+	 * Cell codes, matching State.ordinal()
+	 */
+	public static final int RECOVERED = 0;
+	public static final int SUSCEPTIBLE = 1;
+	public static final int INFECTED = 2;
+	public static final int IMMUNE = 3;
+
+	/**
+	 * Return number of cells held by the lattice.
+	 * @return
+	 */
+	public abstract int size();
+
+	/**
+	 * Return the code of the cell at the given index.
+	 * @param index Flat index of the cell
+	 * @return
+	 */
+	public abstract int get(int index);
+
+	/**
+	 * Set the code of the cell at the given index.
+	 * @param index Flat index of the cell
+	 * @param state Code of the new state
+	 */
+	public abstract void set(int index, int state);
+
+	/**
+	 * Set every cell to the given code.
+	 * @param state Code of the new state
+	 */
+	public abstract void fill(int state);
+
+	/**
+	 * Copy the contents of another lattice of the same size into this one.
+	 * @param source
+	 */
+	public abstract void copyFrom(Lattice source);
+
+	/**
+	 * Return the number of cells holding the given code.
+	 * @param state
+	 * @return
+	 */
+	public int count(int state) {
+		int count = 0;
+		int size = size();
+		for (int i = 0; i < size; i++) {
+			if (get(i) == state) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
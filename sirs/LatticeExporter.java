@@ -0,0 +1,218 @@
+package sirs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streams the cells of a lattice to a Writer, OutputStream or channel in one of several formats:
+ * 		text		one character per cell as printed by State (R, S, I or -), each followed by a space, rows ended by a line separator
+ * 		HTML		the text format wrapped in HTML tags with rows separated by line breaks, for JLabels
+ * 		PGM		binary greymap (P5) with maxval 3 whose grey levels are the cell codes of Lattice
+ * 		PBM		binary bitmap (P4) with black pixels where cells are in a given state
+ * 		packed		PACKED_HEADER_BYTES header followed by the lattice words, 2 bits per cell, little endian
+ * Cells are read straight from the packed words and written through a buffer of at most BUFFER_BYTES,
+ * so memory use does not depend on the size of the lattice. Every format lists the cells row after row; cells of a model
+ * stored in another layout are found through its CellIndex. Callers need not buffer the destination, and it is flushed but not closed.
+ * @author Ross
+ *
+ */
+public class LatticeExporter {
+	static final long PACKED_MAGIC = 0x31304c4353524953L; //"SIRSCL01" read little endian
+	static final int PACKED_VERSION = 1;
+	static final int PACKED_HEADER_BYTES = 32; //magic, version, width, height, 12 bytes reserved
+	private static final int BUFFER_BYTES = 1 << 16;
+	private static final char[] CHARACTERS = {'R', 'S', 'I', '-'}; //indexed by cell code, as State.toString()
+
+	private final long[] words;
+	private final CellIndex cellIndex;
+	private final int width;
+	private final int height;
+
+	/**
+	 * Exports the current lattice of a model. The model must not be updated while exporting.
+	 * @param model
+	 */
+	public LatticeExporter(SIRSModel model) {
+		this(((PackedLattice) model.getLattice()).getWords(), model.getCellIndex(), model.getWidth(), model.getHeight());
+	}
+
+	/**
+	 * Exports a snapshot, on the thread that took it and before it takes the next one.
+	 * @param snapshot
+	 */
+	public LatticeExporter(LatticeSnapshot snapshot) {
+		this(snapshot.getWords(), new CellIndex(CellLayout.ROWS, snapshot.getWidth(), snapshot.getHeight()), snapshot.getWidth(), snapshot.getHeight());
+	}
+
+	private LatticeExporter(long[] words, CellIndex cellIndex, int width, int height) {
+		this.words = words;
+		this.cellIndex = cellIndex;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Writes the lattice as text.
+	 * @param out
+	 * @param lineSeparator Written after every row
+	 * @throws IOException
+	 */
+	public void writeText(Writer out, String lineSeparator) throws IOException {
+		writeText(out, "", lineSeparator, "");
+	}
+
+	/**
+	 * Writes the lattice as HTML.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeHtml(Writer out) throws IOException {
+		writeText(out, "<HTML>", "<BR>", "</HTML>");
+	}
+
+	private void writeText(Writer out, String prefix, String lineSeparator, String suffix) throws IOException {
+		char[] buffer = new char[BUFFER_BYTES / 2];
+		int length = 0;
+		out.write(prefix);
+		for (int y = 0; y < height; y++) {
+			int row = cellIndex.rowOffsets[y];
+			for (int x = 0; x < width; x++) {
+				if (length + 2 > buffer.length) {
+					out.write(buffer, 0, length);
+					length = 0;
+				}
+				buffer[length++] = CHARACTERS[code(row + cellIndex.columnOffsets[x])];
+				buffer[length++] = ' ';
+			}
+			if (length + lineSeparator.length() > buffer.length) {
+				out.write(buffer, 0, length);
+				length = 0;
+			}
+			lineSeparator.getChars(0, lineSeparator.length(), buffer, length);
+			length += lineSeparator.length();
+		}
+		out.write(buffer, 0, length);
+		out.write(suffix);
+		out.flush();
+	}
+
+	/**
+	 * Writes the lattice as a binary PGM image, one byte per cell holding its code.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writePgm(OutputStream out) throws IOException {
+		out.write(("P5\n" + width + " " + height + "\n3\n").getBytes("US-ASCII"));
+		byte[] buffer = new byte[BUFFER_BYTES];
+		int length = 0;
+		for (int y = 0; y < height; y++) {
+			int row = cellIndex.rowOffsets[y];
+			for (int x = 0; x < width; x++) {
+				if (length == buffer.length) {
+					out.write(buffer, 0, length);
+					length = 0;
+				}
+				buffer[length++] = (byte) code(row + cellIndex.columnOffsets[x]);
+			}
+		}
+		out.write(buffer, 0, length);
+		out.flush();
+	}
+
+	/**
+	 * Writes the lattice as a binary PBM image, black wherever a cell is in the given state.
+	 * @param out
+	 * @param state
+	 * @throws IOException
+	 */
+	public void writePbm(OutputStream out, State state) throws IOException {
+		out.write(("P4\n" + width + " " + height + "\n").getBytes("US-ASCII"));
+		int code = state.ordinal();
+		byte[] buffer = new byte[BUFFER_BYTES];
+		int length = 0;
+		for (int y = 0; y < height; y++) {
+			int row = cellIndex.rowOffsets[y];
+			for (int x = 0; x < width; x += 8) {
+				int bits = 0;
+				int end = Math.min(8, width - x);
+				for (int k = 0; k < end; k++) {
+					if (code(row + cellIndex.columnOffsets[x + k]) == code) {
+						bits |= 0x80 >>> k;
+					}
+				}
+				if (length == buffer.length) {
+					out.write(buffer, 0, length);
+					length = 0;
+				}
+				buffer[length++] = (byte) bits;
+			}
+		}
+		out.write(buffer, 0, length);
+		out.flush();
+	}
+
+	/**
+	 * Writes the lattice in the packed format.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writePacked(WritableByteChannel out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putLong(PACKED_MAGIC).putInt(PACKED_VERSION).putInt(width).putInt(height);
+		buffer.position(PACKED_HEADER_BYTES);
+		int wordCount = (int) (((long) width * height + 31) >>> 5);
+		for (int i = 0; i < wordCount; i++) {
+			if (!buffer.hasRemaining()) {
+				drain(buffer, out);
+			}
+			buffer.putLong(cellIndex.isRowMajor() ? words[i] : rowMajorWord(i));
+		}
+		drain(buffer, out);
+	}
+
+	/**
+	 * Return word i of the lattice as it would be packed row after row.
+	 */
+	private long rowMajorWord(int i) {
+		long first = (long) i << 5;
+		int cells = (int) Math.min(32, (long) width * height - first);
+		int x = (int) (first % width);
+		int y = (int) (first / width);
+		long word = 0;
+		for (int k = 0; k < cells; k++) {
+			word |= (long) code(cellIndex.index(x, y)) << (k << 1);
+			if (++x == width) {
+				x = 0;
+				y++;
+			}
+		}
+		return word;
+	}
+
+	/**
+	 * Writes the lattice in the packed format.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writePacked(OutputStream out) throws IOException {
+		writePacked(Channels.newChannel(out));
+		out.flush();
+	}
+
+	private static void drain(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private int code(int index) {
+		return (int) (words[index >>> 5] >>> ((index & 31) << 1)) & 3;
+	}
+}
@@ -0,0 +1,161 @@
+package sirs;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fills a lattice with exact numbers of infected and immune cells, all other cells susceptible.
+ * The lattice is cut into the same word aligned stripes as SynchronousStep. The infected and immune totals are first shared
+ * out between stripes by drawing each stripe's counts from the hypergeometric distribution, then every stripe is filled
+ * independently by sequential sampling: each cell is infected, immune or susceptible with probability equal to the share of each
+ * still to be placed among the cells still to be visited. Stripes can therefore be filled in parallel,
+ * and the result for a given random source does not depend on how many threads fill them.
+ * The totals are always exact, and within a stripe every arrangement is equally likely. Lattices of a single stripe are therefore
+ * filled uniformly, but on larger ones a stripe's share is normally approximated once its variance passes EXACT_VARIANCE,
+ * so the spread of counts across stripes is close to, not exactly, that of a uniform arrangement.
+ * @author Ross
+ *
+ */
+class LatticeFill extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Lattices at least this large are filled across the pool
+	 */
+	static final int PARALLEL_CELLS = 1 << 20;
+
+	/**
+	 * Hypergeometric draws with a variance above this use a normal approximation; smaller ones are exact.
+	 */
+	private static final double EXACT_VARIANCE = 64;
+
+	private final PackedLattice lattice;
+	private final int[] infected; //infected cells to place in each stripe
+	private final int[] immune; //immune cells to place in each stripe
+	private final RandomSource[] randoms;
+	private final int firstStripe;
+	private final int lastStripe;
+
+	/**
+	 * Shares the counts out between the stripes of a lattice, drawing from the given random source.
+	 * @param lattice Lattice to fill
+	 * @param infectedCount Number of infected cells
+	 * @param immuneCount Number of immune cells, at most the number of cells less infectedCount
+	 * @param random
+	 */
+	LatticeFill(PackedLattice lattice, int infectedCount, int immuneCount, RandomSource random) {
+		this.lattice = lattice;
+		int stripes = SynchronousStep.stripeCount(lattice.size());
+		infected = new int[stripes];
+		immune = new int[stripes];
+		randoms = new RandomSource[stripes];
+		int remainingCells = lattice.size();
+		for (int i = 0; i < stripes; i++) {
+			int cells = Math.min(SynchronousStep.STRIPE_CELLS, remainingCells);
+			infected[i] = hypergeometric(remainingCells, infectedCount, cells, random);
+			immune[i] = hypergeometric(remainingCells - infectedCount, immuneCount, cells - infected[i], random);
+			infectedCount -= infected[i];
+			immuneCount -= immune[i];
+			remainingCells -= cells;
+			randoms[i] = random.split();
+		}
+		firstStripe = 0;
+		lastStripe = stripes;
+	}
+
+	private LatticeFill(LatticeFill parent, int firstStripe, int lastStripe) {
+		lattice = parent.lattice;
+		infected = parent.infected;
+		immune = parent.immune;
+		randoms = parent.randoms;
+		this.firstStripe = firstStripe;
+		this.lastStripe = lastStripe;
+	}
+
+	@Override
+	protected void compute() {
+		if (lastStripe - firstStripe > 1) {
+			int middle = (firstStripe + lastStripe) >>> 1;
+			invokeAll(new LatticeFill(this, firstStripe, middle), new LatticeFill(this, middle, lastStripe));
+		} else if (lastStripe > firstStripe) {
+			fillStripe(firstStripe);
+		}
+	}
+
+	/**
+	 * Fills every stripe on the calling thread.
+	 */
+	void fill() {
+		for (int stripe = firstStripe; stripe < lastStripe; stripe++) {
+			fillStripe(stripe);
+		}
+	}
+
+	/**
+	 * Fills a stripe by sequential sampling, assembling each word in a register before storing it.
+	 */
+	private void fillStripe(int stripe) {
+		RandomSource random = randoms[stripe];
+		long[] words = lattice.getWords();
+		int start = stripe * SynchronousStep.STRIPE_CELLS;
+		int end = Math.min(start + SynchronousStep.STRIPE_CELLS, lattice.size());
+		int infectedLeft = infected[stripe];
+		int immuneLeft = immune[stripe];
+		for (int word = start >>> 5; word << 5 < end; word++) {
+			int first = word << 5;
+			int cells = Math.min(32, end - first);
+			long bits = 0;
+			for (int k = 0; k < cells; k++) {
+				int state = Lattice.SUSCEPTIBLE;
+				if (infectedLeft + immuneLeft > 0) {
+					int r = random.nextInt(end - first - k);
+					if (r < infectedLeft) {
+						state = Lattice.INFECTED;
+						infectedLeft--;
+					} else if (r < infectedLeft + immuneLeft) {
+						state = Lattice.IMMUNE;
+						immuneLeft--;
+					}
+				}
+				bits |= (long) state << (k << 1);
+			}
+			words[word] = bits;
+		}
+	}
+
+	/**
+	 * Return the number of marked items in a uniformly chosen sample of the given size, drawn without replacement from
+	 * a population containing the given number of marked items.
+	 * Exact when the variance is small, so sparse counts are never pushed towards the end of the lattice; otherwise normally approximated.
+	 */
+	static int hypergeometric(int population, int marked, int sample, RandomSource random) {
+		if (marked == 0 || sample == 0) {
+			return 0;
+		}
+		if (marked == population || sample == population) {
+			return marked == population ? sample : marked;
+		}
+		if (marked > population / 2) {
+			return sample - hypergeometric(population, population - marked, sample, random);
+		}
+		int low = Math.max(0, sample - (population - marked));
+		int high = Math.min(sample, marked);
+		double p = (double) marked / population;
+		double mean = sample * p;
+		double variance = mean * (1 - p) * (population - sample) / (population - 1);
+		if (variance > EXACT_VARIANCE) {
+			double normal = Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+			long value = Math.round(mean + normal * Math.sqrt(variance));
+			return (int) Math.max(low, Math.min(high, value));
+		}
+		//place each marked item, or each sampled item if there are fewer, in turn
+		int draws = Math.min(marked, sample);
+		int others = Math.max(marked, sample);
+		int count = 0;
+		for (int i = 0; i < draws; i++) {
+			if (random.nextInt(population - i) < others - count) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,162 @@
+package sirs;
+
+/**
+ * Copy of an SIRSModel's lattice and counters at one moment, for display on another thread.
+ * The copy always holds the cells row after row, whatever the model's layout, so views and exports read it the same way.
+ * Snapshots are filled in by a SnapshotBuffer on the simulation thread and are not changed while a reader holds them.
+ * @author Ross
+ *
+ */
+public class LatticeSnapshot {
+	private final int width;
+	private final int height;
+	private final long[] words; //packed cells row after row, laid out as in PackedLattice
+	private final int[] populations = new int[4];
+	private final DirtyTiles stale; //tiles changed in the model since this copy was last filled
+	private final DirtyTiles changed; //tiles which may differ from the snapshot the reader took before this one
+	private long ticks;
+	private double time;
+	private CellShape cellShape;
+	private long version;
+
+	/**
+	 * Creates an empty snapshot of the given dimensions, with every tile stale.
+	 * @param width
+	 * @param height
+	 */
+	LatticeSnapshot(int width, int height) {
+		this.width = width;
+		this.height = height;
+		words = new long[(width * height + 31) >>> 5];
+		stale = new DirtyTiles(width, height);
+		changed = new DirtyTiles(width, height);
+	}
+
+	/**
+	 * Brings the snapshot up to date with a model, copying only the words under stale tiles.
+	 * Must be called on the thread that updates the model.
+	 */
+	void copyFrom(SIRSModel model, long version) {
+		PackedLattice lattice = (PackedLattice) model.getLattice();
+		CellIndex cellIndex = model.getCellIndex();
+		long[] source = lattice.getWords();
+		if (stale.isAll()) {
+			if (cellIndex.isRowMajor()) {
+				System.arraycopy(source, 0, words, 0, words.length);
+			} else {
+				for (int y = 0; y < height; y++) {
+					copyRow(lattice, cellIndex, y, 0, width);
+				}
+			}
+		} else {
+			for (int i = 0; i < stale.size(); i++) {
+				int tile = stale.get(i);
+				int x0 = (tile % stale.getColumns()) << DirtyTiles.TILE_SHIFT;
+				int y0 = (tile / stale.getColumns()) << DirtyTiles.TILE_SHIFT;
+				int x1 = Math.min(x0 + DirtyTiles.TILE_SIZE, width);
+				int y1 = Math.min(y0 + DirtyTiles.TILE_SIZE, height);
+				for (int y = y0; y < y1; y++) {
+					if (cellIndex.isRowMajor()) {
+						int first = (y * width + x0) >>> 5;
+						int last = (y * width + x1 - 1) >>> 5;
+						System.arraycopy(source, first, words, first, last - first + 1);
+					} else {
+						copyRow(lattice, cellIndex, y, x0, x1);
+					}
+				}
+			}
+		}
+		stale.clear();
+		for (State state : State.values()) {
+			populations[state.ordinal()] = model.getPopulation(state);
+		}
+		ticks = model.getTicks();
+		time = model.getTime();
+		cellShape = model.getCellShape();
+		this.version = version;
+	}
+
+	/**
+	 * Copies cells x0 to x1 - 1 of row y from a lattice in another layout into their places in this one.
+	 */
+	private void copyRow(PackedLattice lattice, CellIndex cellIndex, int y, int x0, int x1) {
+		int row = cellIndex.rowOffsets[y];
+		int index = y * width + x0;
+		for (int x = x0; x < x1; x++, index++) {
+			int shift = (index & 31) << 1;
+			long code = lattice.get(row + cellIndex.columnOffsets[x]);
+			words[index >>> 5] = (words[index >>> 5] & ~(3L << shift)) | (code << shift);
+		}
+	}
+
+	/**
+	 * Return the record of tiles this snapshot is missing changes to.
+	 */
+	DirtyTiles getStale() {
+		return stale;
+	}
+
+	/**
+	 * Return the tiles whose cells may differ from those of the snapshot taken from the SnapshotBuffer before this one,
+	 * including changes in any snapshots skipped in between, so a view holding that snapshot need only redraw these.
+	 * Must not be modified by the reader.
+	 */
+	DirtyTiles getChanged() {
+		return changed;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Return the state of the cell at x,y.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public State getState(int x, int y) {
+		int index = y * width + x;
+		return State.fromCode((int) (words[index >>> 5] >>> ((index & 31) << 1)) & 3);
+	}
+
+	/**
+	 * Return the packed cells. Must not be modified.
+	 */
+	long[] getWords() {
+		return words;
+	}
+
+	/**
+	 * Return the number of cells in the given state.
+	 * @param state
+	 * @return
+	 */
+	public int getPopulation(State state) {
+		return populations[state.ordinal()];
+	}
+
+	public long getTicks() {
+		return ticks;
+	}
+
+	public double getTime() {
+		return time;
+	}
+
+	public CellShape getCellShape() {
+		return cellShape;
+	}
+
+	/**
+	 * Return the number of the publish that filled this snapshot. Later snapshots have higher versions.
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
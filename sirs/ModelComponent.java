@@ -3,12 +3,37 @@ package sirs;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 
+/**
+ * Draws the lattice of an SIRSModel.
+ * Rectangular cells are drawn by unpacking the lattice into the pixels of an indexed colour image, one pixel per cell,
+ * and scaling that image onto the component in one drawImage call. Colours live in the image's palette,
+ * so changing a colour swaps the palette without touching the pixels. Circular cells are drawn one by one.
+ *
+ * The component draws LatticeSnapshots rather than the live model. When the model runs on another thread, that thread publishes
+ * snapshots to a SnapshotBuffer given to setSnapshots(), and the component only ever reads the latest of them.
+ * Otherwise the component snapshots the model itself, on the thread that paints.
+ */
 public class ModelComponent extends JComponent{
+	/**
+	 * Lattices with at least this many cells are unpacked across several threads.
+	 */
+	private static final int PARALLEL_FILL_CELLS = 1 << 20;
+
 	private SIRSModel model;
+	private SnapshotBuffer snapshots = new SnapshotBuffer(); //source of the snapshots drawn
+	private boolean ownSnapshots = true; //set if the component publishes snapshots of the model itself
+	private LatticeSnapshot snapshot; //snapshot currently shown
+	private DirtyTiles unpainted; //tiles of the image changed since the last repaintChanged()
 	public static final Color DEFAULT_INFECTED_COLOR = Color.red;
 	public static final Color DEFAULT_RECOVERED_COLOR = Color.green;
 	public static final Color DEFAULT_SUSCEPTIBLE_COLOR = Color.white;
@@ -20,6 +45,13 @@ public class ModelComponent extends JComponent{
 	private Color immuneColor;
 	
 	private CellShape cellShape;
+
+	private Color[] palette = new Color[4]; //colours indexed by state code
+	private IndexColorModel colorModel;
+	private WritableRaster raster; //one byte per cell, allocated for the current lattice size
+	private byte[] pixels; //backing array of raster
+	private BufferedImage image;
+	private boolean imageStale = true; //set when the image must be unpacked in full from the next snapshot
 	
 	public static final CellShape DEFAULT_CELL_SHAPE = CellShape.CIRCULAR;
 	
@@ -28,7 +60,173 @@ public class ModelComponent extends JComponent{
 		recoveredColor = DEFAULT_RECOVERED_COLOR;
 		susceptibleColor = DEFAULT_SUSCEPTIBLE_COLOR;
 		immuneColor = DEFAULT_IMMUNE_COLOR;
+		updatePalette();
+	}
+
+	/**
+	 * Rebuilds the palette from the current colours, keeping the existing pixels.
+	 */
+	private void updatePalette() {
+		palette[Lattice.RECOVERED] = recoveredColor;
+		palette[Lattice.SUSCEPTIBLE] = susceptibleColor;
+		palette[Lattice.INFECTED] = infectedColor;
+		palette[Lattice.IMMUNE] = immuneColor;
+		byte[] r = new byte[4];
+		byte[] g = new byte[4];
+		byte[] b = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			r[i] = (byte) palette[i].getRed();
+			g[i] = (byte) palette[i].getGreen();
+			b[i] = (byte) palette[i].getBlue();
+		}
+		colorModel = new IndexColorModel(8, 4, r, g, b);
+		if (raster != null) {
+			image = new BufferedImage(colorModel, raster, false, null);
+		}
+	}
+
+	/**
+	 * Brings the image up to date with the current snapshot. Only the tiles the snapshot lists as changed since the one shown before
+	 * are unpacked, unless the lattice size has changed or the image was discarded, and they are recorded as unpainted.
+	 */
+	private void updateImage() {
+		int arrayWidth = snapshot.getWidth();
+		int arrayHeight = snapshot.getHeight();
+		long[] words = snapshot.getWords();
+		if (raster == null || raster.getWidth() != arrayWidth || raster.getHeight() != arrayHeight) {
+			raster = colorModel.createCompatibleWritableRaster(arrayWidth, arrayHeight);
+			pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+			image = new BufferedImage(colorModel, raster, false, null);
+			unpainted = new DirtyTiles(arrayWidth, arrayHeight);
+			imageStale = true;
+		}
+		DirtyTiles changed = snapshot.getChanged();
+		if (imageStale || changed.isAll()) {
+			RasterFill fill = new RasterFill(words, pixels, 0, words.length);
+			if (pixels.length >= PARALLEL_FILL_CELLS) {
+				ForkJoinPool.commonPool().invoke(fill);
+			} else {
+				fill.fill();
+			}
+			imageStale = false;
+			unpainted.markAll();
+			return;
+		}
+
+		for (int i = 0; i < changed.size(); i++) {
+			int tile = changed.get(i);
+			int x0 = (tile % changed.getColumns()) << DirtyTiles.TILE_SHIFT;
+			int y0 = (tile / changed.getColumns()) << DirtyTiles.TILE_SHIFT;
+			int x1 = Math.min(x0 + DirtyTiles.TILE_SIZE, arrayWidth);
+			int y1 = Math.min(y0 + DirtyTiles.TILE_SIZE, arrayHeight);
+			for (int y = y0; y < y1; y++) {
+				int end = y * arrayWidth + x1;
+				for (int cell = y * arrayWidth + x0; cell < end; cell++) {
+					pixels[cell] = (byte) ((words[cell >>> 5] >>> ((cell & 31) << 1)) & 3);
+				}
+			}
+			unpainted.markTile(tile);
+		}
+	}
+
+	/**
+	 * Takes the newest snapshot, publishing one of the model first if the component makes its own, and brings the image up to date with it.
+	 * Does not repaint; cells which changed are remembered until the next repaintChanged().
+	 * @return true if there was a newer snapshot
+	 */
+	public boolean updateSnapshot() {
+		if (ownSnapshots) {
+			snapshots.publish(model);
+		}
+		LatticeSnapshot next = snapshots.take();
+		if (next == null) {
+			return false;
+		}
+		CellShape previousShape = snapshot == null ? null : snapshot.getCellShape();
+		snapshot = next;
+		updateImage();
+		if (snapshot.getCellShape() != previousShape) {
+			unpainted.markAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Requests a repaint of the part of the component covering each tile of cells that changed in the snapshots taken since the last call.
+	 * Call on the event dispatch thread after updateSnapshot() instead of repaint(), so the cost of a frame follows the amount of change
+	 * rather than the lattice size. Does not take a snapshot itself, so whatever the caller reads from the one it took matches what is painted.
+	 */
+	public void repaintChanged() {
+		if (unpainted == null) {
+			return;
+		}
+		if (unpainted.isAll()) {
+			repaintCells(new Rectangle(0, 0, snapshot.getWidth(), snapshot.getHeight()));
+		} else {
+			Rectangle cells = new Rectangle();
+			for (int i = 0; i < unpainted.size(); i++) {
+				int tile = unpainted.get(i);
+				cells.x = (tile % unpainted.getColumns()) << DirtyTiles.TILE_SHIFT;
+				cells.y = (tile / unpainted.getColumns()) << DirtyTiles.TILE_SHIFT;
+				cells.width = Math.min(DirtyTiles.TILE_SIZE, snapshot.getWidth() - cells.x);
+				cells.height = Math.min(DirtyTiles.TILE_SIZE, snapshot.getHeight() - cells.y);
+				repaintCells(cells);
+			}
+		}
+		unpainted.clear();
+	}
+
+	/**
+	 * Requests a repaint of the part of the component covering the given cells.
+	 */
+	private void repaintCells(Rectangle cells) {
+		int arrayWidth = snapshot.getWidth();
+		int arrayHeight = snapshot.getHeight();
+		int drawnWidth = getDrawnLength(getWidth(), arrayWidth);
+		int drawnHeight = getDrawnLength(getHeight(), arrayHeight);
+		int x0 = (int) ((long) cells.x * drawnWidth / arrayWidth);
+		int y0 = (int) ((long) cells.y * drawnHeight / arrayHeight);
+		int x1 = (int) (((long) (cells.x + cells.width) * drawnWidth + arrayWidth - 1) / arrayWidth);
+		int y1 = (int) (((long) (cells.y + cells.height) * drawnHeight + arrayHeight - 1) / arrayHeight);
+		repaint(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * Draws snapshots published to the given buffer by the thread running the model, instead of snapshotting the model directly.
+	 * @param snapshots
+	 */
+	public void setSnapshots(SnapshotBuffer snapshots) {
+		this.snapshots = snapshots;
+		ownSnapshots = false;
+		snapshot = null;
+		imageStale = true;
+	}
+
+	/**
+	 * Return the snapshot currently shown, or null if none has been taken yet.
+	 * It stays unchanged until the next snapshot is taken, so should only be read on the thread which takes them.
+	 * @return
+	 */
+	public LatticeSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Forgets the image so the next snapshot is unpacked in full.
+	 */
+	void discardImage() {
+		imageStale = true;
+	}
+
+	/**
+	 * Return the length in pixels the lattice is drawn at: whole cells as before,
+	 * or stretched to fit if the lattice has more cells than the component has pixels.
+	 */
+	private static int getDrawnLength(int graphicalLength, int arrayLength) {
+		int cellLength = graphicalLength / arrayLength;
+		return cellLength > 0 ? cellLength * arrayLength : graphicalLength;
 	}
+
 	public static final Dimension DEFAULT_SIZE = new Dimension(800,800);
 	
 	public void setCellShape(CellShape cellShape) {
@@ -52,46 +250,49 @@ public class ModelComponent extends JComponent{
 	
 	public void paint(Graphics g) {
 		super.paint(g);
-		int arrayWidth = model.getWidth();
-		int arrayHeight = model.getHeight();
+		if (ownSnapshots) {
+			updateSnapshot();
+		}
+		if (snapshot == null) {
+			return;
+		}
+		int arrayWidth = snapshot.getWidth();
+		int arrayHeight = snapshot.getHeight();
 		int graphicalWidth = getWidth();
 		int graphicalHeight = getHeight();
 		int cellWidth = graphicalWidth / arrayWidth;
 		int cellHeight = graphicalHeight / arrayHeight;
 		int radius = graphicalWidth / arrayWidth;
-		cellShape = model.getCellShape(); //possible redundancy with little overhead - kept in just to be safe
-                        
-		for (int i = 0; i < arrayHeight; i++) {
+		cellShape = snapshot.getCellShape(); //possible redundancy with little overhead - kept in just to be safe
+
+		if (cellShape != CellShape.CIRCULAR) {
+			g.drawImage(image, 0, 0, getDrawnLength(graphicalWidth, arrayWidth), getDrawnLength(graphicalHeight, arrayHeight), null);
+			return;
+		}
+
+		//only the cells under the clip
+		int firstRow = 0;
+		int lastRow = arrayHeight;
+		int firstColumn = 0;
+		int lastColumn = arrayWidth;
+		Rectangle clip = g.getClipBounds();
+		if (clip != null && cellWidth > 0 && cellHeight > 0) {
+			firstRow = Math.max(0, clip.y / cellHeight);
+			lastRow = Math.min(arrayHeight, (clip.y + clip.height + cellHeight - 1) / cellHeight);
+			firstColumn = Math.max(0, clip.x / cellWidth);
+			lastColumn = Math.min(arrayWidth, (clip.x + clip.width + cellWidth - 1) / cellWidth);
+		}
+		for (int i = firstRow; i < lastRow; i++) {
 			int y = i * cellHeight;
-			for (int j = 0; j < arrayWidth; j++) {
+			int row = i * arrayWidth;
+			for (int j = firstColumn; j < lastColumn; j++) {
 				int x = j * cellWidth;
-				Color cellColor = determineColor(model.getState(j,i));
-				g.setColor(cellColor);
-				
-				if (cellShape == CellShape.CIRCULAR) {
-					//circular
-					g.fillOval(x,y, radius, radius);
-				} else {
-					//rectangular
-					g.fillRect(x, y, cellWidth, cellHeight);
-				}
-				
+				g.setColor(palette[pixels[row + j]]);
+				g.fillOval(x,y, radius, radius);
 			}
 		}
 
 	}
-	private Color determineColor(State state) {
-		if (state == State.INFECTED) {
-			return infectedColor;
-		} else if (state == State.SUSCEPTIBLE) {
-			return susceptibleColor;
-		} else if (state == State.RECOVERED) {
-			return recoveredColor;
-		} else if (state == State.IMMUNE) {
-			return immuneColor;
-		}
-		return null;
-	}
 
 	public SIRSModel getModel() {
 		return model;
@@ -99,6 +300,10 @@ public class ModelComponent extends JComponent{
 
 	public void setModel(SIRSModel model) {
 		this.model = model;
+		if (ownSnapshots) {
+			snapshots = new SnapshotBuffer();
+			imageStale = true;
+		}
 	}
 
 	public Color getInfectedColor() {
@@ -107,6 +312,7 @@ public class ModelComponent extends JComponent{
 
 	public void setInfectedColor(Color infectedColor) {
 		this.infectedColor = infectedColor;
+		updatePalette();
 	}
 
 	public Color getRecoveredColor() {
@@ -115,6 +321,7 @@ public class ModelComponent extends JComponent{
 
 	public void setRecoveredColor(Color recoveredColor) {
 		this.recoveredColor = recoveredColor;
+		updatePalette();
 	}
 
 	public Color getSusceptibleColor() {
@@ -123,6 +330,7 @@ public class ModelComponent extends JComponent{
 
 	public void setSusceptibleColor(Color susceptibleColor) {
 		this.susceptibleColor = susceptibleColor;
+		updatePalette();
 	}
 
 	public Color getImmuneColor() {
@@ -131,5 +339,6 @@ public class ModelComponent extends JComponent{
 
 	public void setImmuneColor(Color immuneColor) {
 		this.immuneColor = immuneColor;
+		updatePalette();
 	}
 }
@@ -0,0 +1,89 @@
+package sirs;
+
+/**
+ * Neighbour lookup tables for one axis of the lattice under a given Boundary, for offsets from -radius to radius.
+ * Tables are indexed [offset + radius][coordinate]. The slot at each offset holds the coordinate filling it,
+ * or the coordinate itself with weight 0 if it is empty, so lookups never branch on the edges.
+ * Reflecting and periodic edges can fill a coordinate's slot at some offset from a coordinate other than coordinate - offset, and
+ * reflection can fill it from two, so the coordinates whose slot at each offset holds each coordinate are tabulated as well, for pushing changes out to them.
+ * Coordinates far enough from the edges need none of this: their slots and their sources are plain offsets, and they are marked interior.
+ * Entries are mapped through a table of offsets, so that with the offsets of a CellIndex the column and row entries of a cell add up to its flat index.
+ * @author Ross
+ *
+ */
+class NeighbourAxis {
+	final int radius;
+	final int[][] targets; //coordinate filling the slot of each coordinate at each offset, as an offset
+	final int[][] weights; //1 if the slot is filled, otherwise 0
+	final int[][] sources; //a coordinate whose slot at the offset holds each coordinate, as an offset, or the coordinate itself if none
+	final int[][] otherSources; //a second such coordinate, likewise
+	final int[][] sourceWeights; //1 if the first source exists, otherwise 0
+	final int[][] otherSourceWeights; //1 if the second source exists, otherwise 0
+	final boolean[] interior; //every slot and source of the coordinate is at a plain offset from it
+	final int[] padded; //coordinate filling position p - radius for p from 0 to length + 2 * radius - 1, as an offset, or that of 0 if none
+	final int[] paddedWeights; //1 if the padded position is filled, otherwise 0
+
+	/**
+	 * Builds the tables for an axis.
+	 * @param boundary
+	 * @param length Number of coordinates along the axis
+	 * @param offsets Offset of each coordinate, which the tables hold in place of the coordinate
+	 * @param radius Largest offset
+	 */
+	NeighbourAxis(Boundary boundary, int length, int[] offsets, int radius) {
+		this.radius = radius;
+		int slots = 2 * radius + 1;
+		targets = new int[slots][length];
+		weights = new int[slots][length];
+		sources = new int[slots][length];
+		otherSources = new int[slots][length];
+		sourceWeights = new int[slots][length];
+		otherSourceWeights = new int[slots][length];
+		for (int d = 0; d < slots; d++) {
+			for (int i = 0; i < length; i++) {
+				sources[d][i] = i;
+				otherSources[d][i] = i;
+			}
+			for (int i = 0; i < length; i++) {
+				int neighbour = boundary.neighbour(i, d - radius, length);
+				targets[d][i] = neighbour < 0 ? i : neighbour;
+				weights[d][i] = neighbour < 0 ? 0 : 1;
+				if (neighbour >= 0) {
+					if (sourceWeights[d][neighbour] == 0) {
+						sources[d][neighbour] = i;
+						sourceWeights[d][neighbour] = 1;
+					} else {
+						otherSources[d][neighbour] = i;
+						otherSourceWeights[d][neighbour] = 1;
+					}
+				}
+			}
+		}
+
+		interior = new boolean[length];
+		for (int i = 0; i < length; i++) {
+			boolean plain = true;
+			for (int d = 0; d < slots; d++) {
+				int offset = d - radius;
+				plain &= weights[d][i] == 1 && targets[d][i] == i + offset
+						&& sourceWeights[d][i] == 1 && sources[d][i] == i - offset && otherSourceWeights[d][i] == 0;
+			}
+			interior[i] = plain;
+		}
+
+		padded = new int[length + 2 * radius];
+		paddedWeights = new int[padded.length];
+		for (int p = 0; p < padded.length; p++) {
+			int neighbour = boundary.neighbour(0, p - radius, length);
+			padded[p] = offsets[Math.max(0, neighbour)];
+			paddedWeights[p] = neighbour < 0 ? 0 : 1;
+		}
+		for (int d = 0; d < slots; d++) {
+			for (int i = 0; i < length; i++) {
+				targets[d][i] = offsets[targets[d][i]];
+				sources[d][i] = offsets[sources[d][i]];
+				otherSources[d][i] = offsets[otherSources[d][i]];
+			}
+		}
+	}
+}
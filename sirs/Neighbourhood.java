@@ -0,0 +1,250 @@
+package sirs;
+
+import java.util.Arrays;
+
+/**
+ * Kernel of cells which can pass infection to a cell, as offsets (dx, dy) from it with positive integer weights.
+ * The infection pressure on a susceptible cell is the total weight of its infected neighbours. Under pressure p it is infected
+ * with probability infectionProbability * min(p, saturation) / saturation per attempt, so with the default saturation of 1
+ * any infected neighbour gives the full chance, as in the original model, while larger saturations make the chance grow with exposure.
+ * Neighbourhoods are immutable.
+ * @author Ross
+ *
+ */
+public class Neighbourhood {
+	/**
+	 * Largest total weight, so that pressures fit the model's 16 bit counts
+	 */
+	public static final int MAX_TOTAL_WEIGHT = Short.MAX_VALUE;
+
+	private final String name;
+	private final int[] dx;
+	private final int[] dy;
+	private final int[] weights;
+	private final int radius;
+	private final int saturation;
+	private final int totalWeight;
+	private final boolean box; //every offset within the radius, all of weight 1
+
+	private Neighbourhood(String name, int[] dx, int[] dy, int[] weights, int saturation) {
+		int radius = 0;
+		long totalWeight = 0;
+		boolean unit = true;
+		for (int k = 0; k < dx.length; k++) {
+			if (weights[k] <= 0 || (dx[k] == 0 && dy[k] == 0)) {
+				throw new IllegalArgumentException("Neighbours must have positive weights and be distinct from the cell itself");
+			}
+			radius = Math.max(radius, Math.max(Math.abs(dx[k]), Math.abs(dy[k])));
+			totalWeight += weights[k];
+			unit &= weights[k] == 1;
+		}
+		if (dx.length == 0 || totalWeight > MAX_TOTAL_WEIGHT) {
+			throw new IllegalArgumentException("Total neighbour weight must be between 1 and " + MAX_TOTAL_WEIGHT + ": " + totalWeight);
+		}
+		if (saturation < 1) {
+			throw new IllegalArgumentException("Saturation must be at least 1: " + saturation);
+		}
+		this.name = name;
+		this.dx = dx;
+		this.dy = dy;
+		this.weights = weights;
+		this.radius = radius;
+		this.saturation = saturation;
+		this.totalWeight = (int) totalWeight;
+		box = unit && dx.length == (2 * radius + 1) * (2 * radius + 1) - 1;
+	}
+
+	/**
+	 * Return the four orthogonal neighbours, in the order left, right, y+1, y-1.
+	 * @return
+	 */
+	public static Neighbourhood vonNeumann() {
+		return new Neighbourhood("von-neumann", new int[] {-1, 1, 0, 0}, new int[] {0, 0, 1, -1}, new int[] {1, 1, 1, 1}, 1);
+	}
+
+	/**
+	 * Return every cell within the given Manhattan distance.
+	 * @param radius
+	 * @return
+	 */
+	public static Neighbourhood vonNeumann(int radius) {
+		if (radius == 1) {
+			return vonNeumann();
+		}
+		int[][] weights = new int[2 * radius + 1][2 * radius + 1];
+		for (int i = 0; i < weights.length; i++) {
+			for (int j = 0; j < weights.length; j++) {
+				weights[i][j] = Math.abs(i - radius) + Math.abs(j - radius) <= radius ? 1 : 0;
+			}
+		}
+		return fromGrid("von-neumann:" + radius, weights, 1);
+	}
+
+	/**
+	 * Return the eight surrounding cells.
+	 * @return
+	 */
+	public static Neighbourhood moore() {
+		return moore(1);
+	}
+
+	/**
+	 * Return every cell within the given Chebyshev distance, the square of side 2 * radius + 1 around the cell.
+	 * @param radius
+	 * @return
+	 */
+	public static Neighbourhood moore(int radius) {
+		int[][] weights = new int[2 * radius + 1][2 * radius + 1];
+		for (int[] row : weights) {
+			Arrays.fill(row, 1);
+		}
+		return fromGrid(radius == 1 ? "moore" : "moore:" + radius, weights, 1);
+	}
+
+	/**
+	 * Return a custom kernel, or the matching standard one if the grid and saturation describe a von Neumann or Moore neighbourhood.
+	 * @param weights Square grid of odd side, weights[dy + radius][dx + radius] being the weight of the neighbour at (dx, dy);
+	 * zero weights are left out, and the centre is ignored
+	 * @param saturation Pressure giving the full infection probability
+	 * @return
+	 */
+	public static Neighbourhood weighted(int[][] weights, int saturation) {
+		if (weights.length % 2 != 1) {
+			throw new IllegalArgumentException("Weight grid must have an odd number of rows");
+		}
+		for (int[] row : weights) {
+			if (row.length != weights.length) {
+				throw new IllegalArgumentException("Weight grid must be square");
+			}
+		}
+		Neighbourhood neighbourhood = fromGrid("weighted", weights, saturation);
+		int radius = neighbourhood.getRadius();
+		if (saturation == 1) {
+			for (Neighbourhood standard : new Neighbourhood[] {vonNeumann(radius), moore(radius)}) {
+				if (Arrays.deepEquals(standard.toGrid(), neighbourhood.toGrid())) {
+					return standard;
+				}
+			}
+		}
+		return neighbourhood;
+	}
+
+	private static Neighbourhood fromGrid(String name, int[][] grid, int saturation) {
+		int radius = grid.length / 2;
+		int count = 0;
+		for (int i = 0; i < grid.length; i++) {
+			for (int j = 0; j < grid.length; j++) {
+				if (grid[i][j] != 0 && (i != radius || j != radius)) {
+					count++;
+				}
+			}
+		}
+		int[] dx = new int[count];
+		int[] dy = new int[count];
+		int[] weights = new int[count];
+		int k = 0;
+		for (int i = 0; i < grid.length; i++) {
+			for (int j = 0; j < grid.length; j++) {
+				if (grid[i][j] != 0 && (i != radius || j != radius)) {
+					dx[k] = j - radius;
+					dy[k] = i - radius;
+					weights[k++] = grid[i][j];
+				}
+			}
+		}
+		return new Neighbourhood(name, dx, dy, weights, saturation);
+	}
+
+	/**
+	 * Return the standard neighbourhood described by text in the form given by its toString(): von-neumann or moore, optionally followed by :radius.
+	 * @param text
+	 * @return
+	 * @throws IllegalArgumentException if the text is not a neighbourhood
+	 */
+	public static Neighbourhood parse(String text) {
+		String[] parts = text.trim().toLowerCase().split(":");
+		int radius = 1;
+		try {
+			if (parts.length == 2) {
+				radius = Integer.parseInt(parts[1]);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad neighbourhood radius: " + text);
+		}
+		if (parts.length <= 2 && radius >= 1) {
+			if (parts[0].equals("von-neumann") || parts[0].equals("vonneumann")) {
+				return vonNeumann(radius);
+			} else if (parts[0].equals("moore")) {
+				return moore(radius);
+			}
+		}
+		throw new IllegalArgumentException("Unknown neighbourhood: " + text);
+	}
+
+	/**
+	 * Return the number of neighbours.
+	 * @return
+	 */
+	public int size() {
+		return dx.length;
+	}
+
+	public int getDx(int k) {
+		return dx[k];
+	}
+
+	public int getDy(int k) {
+		return dy[k];
+	}
+
+	public int getWeight(int k) {
+		return weights[k];
+	}
+
+	/**
+	 * Return the largest distance of a neighbour along either axis.
+	 * @return
+	 */
+	public int getRadius() {
+		return radius;
+	}
+
+	/**
+	 * Return the pressure at which a susceptible cell is infected with the full infection probability.
+	 * @return
+	 */
+	public int getSaturation() {
+		return saturation;
+	}
+
+	/**
+	 * Return the sum of the weights.
+	 * @return
+	 */
+	public int getTotalWeight() {
+		return totalWeight;
+	}
+
+	/**
+	 * Return the weights as a square grid of side 2 * getRadius() + 1, in the form taken by weighted(int[][], int).
+	 * @return
+	 */
+	public int[][] toGrid() {
+		int[][] grid = new int[2 * radius + 1][2 * radius + 1];
+		for (int k = 0; k < dx.length; k++) {
+			grid[dy[k] + radius][dx[k] + radius] += weights[k];
+		}
+		return grid;
+	}
+
+	/**
+	 * Return true if the neighbourhood is a whole square of unit weights, whose counts can be summed with sliding windows.
+	 */
+	boolean isBox() {
+		return box;
+	}
+
+	public String toString() {
+		return name;
+	}
+}
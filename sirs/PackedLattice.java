@@ -0,0 +1,89 @@
+package sirs;
+
+import java.util.Arrays;
+
+/**
+ * Lattice storing each cell in 2 bits, 32 cells to a long.
+ * A 10000x10000 lattice occupies 25MB, against several hundred MB for a State[][] of references.
+ * Cell i lives in word i / 32 at bit offset 2 * (i % 32).
+ * @author Ross
+ *
+ */
+public class PackedLattice extends Lattice {
+	private static final long LOW_BITS = 0x5555555555555555L; //low bit of every 2-bit field
+
+	private final int size;
+	private final long[] words;
+
+	/**
+	 * Creates a lattice of the given number of cells, all RECOVERED (code 0).
+	 * @param size Number of cells
+	 */
+	public PackedLattice(int size) {
+		this.size = size;
+		words = new long[(size + 31) >>> 5];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int get(int index) {
+		return (int) (words[index >>> 5] >>> ((index & 31) << 1)) & 3;
+	}
+
+	@Override
+	public void set(int index, int state) {
+		int word = index >>> 5;
+		int shift = (index & 31) << 1;
+		words[word] = (words[word] & ~(3L << shift)) | ((long) state << shift);
+	}
+
+	@Override
+	public void fill(int state) {
+		Arrays.fill(words, state * LOW_BITS);
+	}
+
+	@Override
+	public void copyFrom(Lattice source) {
+		if (source instanceof PackedLattice) {
+			System.arraycopy(((PackedLattice) source).words, 0, words, 0, words.length);
+		} else {
+			for (int i = 0; i < size; i++) {
+				set(i, source.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Counts matching cells a word at a time: XOR with the replicated code zeroes every matching field,
+	 * so the matches are the fields with neither bit set.
+	 */
+	@Override
+	public int count(int state) {
+		long pattern = state * LOW_BITS;
+		int fullWords = size >>> 5;
+		int mismatches = 0;
+		for (int i = 0; i < fullWords; i++) {
+			long diff = words[i] ^ pattern;
+			mismatches += Long.bitCount((diff | (diff >>> 1)) & LOW_BITS);
+		}
+		int count = (fullWords << 5) - mismatches;
+		for (int i = fullWords << 5; i < size; i++) {
+			if (get(i) == state) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Return the backing words. Intended for bulk copies and I/O.
+	 * @return
+	 */
+	long[] getWords() {
+		return words;
+	}
+}
@@ -0,0 +1,316 @@
+package sirs;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Headless scan of a grid of (infection, relapse) probabilities, with several independent replicas at every grid point.
+ * Replicas run as separate jobs on a work-stealing pool; each job builds its own single threaded SIRSModel, runs it,
+ * and folds its result into streaming statistics for its grid point. At most one lattice per thread exists at a time.
+ *
+ * Options are given as --name=value, optionally on top of a properties file given with --config=file:
+ * 		infection, relapse		grid axis as start:end:points, or a single value (default 0:1:11)
+ * 		recovery			recovery probability (default 0.5)
+ * 		size, width, height		lattice dimensions (default 100x100)
+ * 		immune, infected		immune and initial infected proportions (default 0 and 0.1)
+ * 		boundary			open, periodic or reflecting (default open)
+ * 		neighbourhood			von-neumann or moore, optionally with a radius such as moore:2 (default von-neumann)
+ * 		layout				order the cells are stored in: rows or z-order (default rows)
+ * 		network				contact network to run on instead of a lattice: an edge list file, random-regular:nodes:degree,
+ * 						erdos-renyi:nodes:probability or small-world:nodes:degree:rewiring; no node may have more than
+ * 						32767 neighbours (default: none)
+ * 		scheme				sequential, kinetic or active (default kinetic)
+ * 		replicas			runs per grid point (default 10)
+ * 		warmup				sweeps discarded before measuring (default 100)
+ * 		sweeps				sweeps measured (default 1000)
+ * 		seed				base random seed; each replica is seeded from it (default: arbitrary)
+ * 		threads				worker threads (default: all cores)
+ * 		output				file to write to, or - for standard output (default -)
+ *
+ * Output is one CSV row per grid point: infection, relapse, replicas, the mean and variance over replicas of the
+ * time averaged infected fraction, and the proportion of replicas in which the infection died out.
+ * A generated network is drawn once from the base seed and shared by every replica.
+ * @author Ross
+ *
+ */
+public class ParameterSweep {
+	private double[] infectionProbabilities = range(0, 1, 11);
+	private double[] relapseProbabilities = range(0, 1, 11);
+	private double recoveryProbability = SIRSModel.DEFAULT_RECOVERY_PROBABILITY;
+	private int width = 100;
+	private int height = 100;
+	private double immuneProportion = 0;
+	private double infectedProportion = SIRSModel.DEFAULT_INFECTED_PROPORTION;
+	private Boundary boundary = SIRSModel.DEFAULT_BOUNDARY;
+	private Neighbourhood neighbourhood = SIRSModel.DEFAULT_NEIGHBOURHOOD;
+	private CellLayout layout = SIRSModel.DEFAULT_LAYOUT;
+	private String network;
+	private UpdateScheme scheme = UpdateScheme.KINETIC;
+	private int replicas = 10;
+	private long warmup = 100;
+	private long sweeps = 1000;
+	private long seed = Xoshiro256.randomSeed();
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private String output = "-";
+
+	private PointStatistics[] statistics;
+	private ContactNetwork contacts;
+	private Semaphore lattices;
+
+	/**
+	 * Entry Point
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		ParameterSweep sweep = new ParameterSweep();
+		try {
+			sweep.configure(BatchRunner.parseArguments(args));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: java -cp <jar> sirs.ParameterSweep [--config=file] [--infection=start:end:points] [--relapse=start:end:points] [--recovery=p]"
+					+ " [--size=n | --width=n --height=n] [--immune=p] [--infected=p] [--boundary=open|periodic|reflecting] [--neighbourhood=von-neumann|moore[:r]] [--layout=rows|z-order] [--network=file|generator] [--scheme=sequential|kinetic|active] [--replicas=n]"
+					+ " [--warmup=n] [--sweeps=n] [--seed=n] [--threads=n] [--output=file|-]");
+			System.exit(2);
+		}
+		try {
+			long start = System.nanoTime();
+			sweep.run();
+			sweep.write();
+			System.err.println(String.format("%d jobs in %.3fs", sweep.statistics.length * sweep.replicas, (System.nanoTime() - start) / 1e9));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads settings from a set of properties.
+	 * @param properties
+	 * @throws IllegalArgumentException if a setting is malformed or unknown
+	 */
+	public void configure(Properties properties) {
+		for (String name : properties.stringPropertyNames()) {
+			String value = properties.getProperty(name).trim();
+			try {
+				if (name.equals("infection")) {
+					infectionProbabilities = parseRange(value);
+				} else if (name.equals("relapse")) {
+					relapseProbabilities = parseRange(value);
+				} else if (name.equals("recovery")) {
+					recoveryProbability = Double.parseDouble(value);
+				} else if (name.equals("size")) {
+					width = Integer.parseInt(value);
+					height = width;
+				} else if (name.equals("width")) {
+					width = Integer.parseInt(value);
+				} else if (name.equals("height")) {
+					height = Integer.parseInt(value);
+				} else if (name.equals("immune")) {
+					immuneProportion = Double.parseDouble(value);
+				} else if (name.equals("infected")) {
+					infectedProportion = Double.parseDouble(value);
+				} else if (name.equals("boundary")) {
+					boundary = Boundary.valueOf(value.toUpperCase());
+				} else if (name.equals("neighbourhood")) {
+					neighbourhood = Neighbourhood.parse(value);
+				} else if (name.equals("layout")) {
+					layout = CellLayout.valueOf(value.toUpperCase().replace('-', '_'));
+				} else if (name.equals("network")) {
+					network = value;
+				} else if (name.equals("scheme")) {
+					scheme = UpdateScheme.valueOf(value.toUpperCase());
+				} else if (name.equals("replicas")) {
+					replicas = Integer.parseInt(value);
+				} else if (name.equals("warmup")) {
+					warmup = Long.parseLong(value);
+				} else if (name.equals("sweeps")) {
+					sweeps = Long.parseLong(value);
+				} else if (name.equals("seed")) {
+					seed = Long.parseLong(value);
+				} else if (name.equals("threads")) {
+					threads = Integer.parseInt(value);
+				} else if (name.equals("output")) {
+					output = value;
+				} else if (!name.equals("config")) {
+					throw new IllegalArgumentException("Unknown setting: " + name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + name + ": " + value);
+			}
+		}
+		if (scheme == UpdateScheme.PARALLEL || scheme == UpdateScheme.CHECKERBOARD) {
+			throw new IllegalArgumentException("Sweeps parallelise over replicas; use a single threaded scheme");
+		}
+		if (width < 2 || height < 2 || replicas < 1 || sweeps < 1) {
+			throw new IllegalArgumentException("Need at least a 2x2 lattice, one replica and one sweep");
+		}
+	}
+
+	/**
+	 * Parses start:end:points into evenly spaced values, or a single number into one value.
+	 */
+	private static double[] parseRange(String value) {
+		String[] parts = value.split(":");
+		if (parts.length == 1) {
+			return new double[] {Double.parseDouble(parts[0])};
+		} else if (parts.length == 3) {
+			return range(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), Integer.parseInt(parts[2]));
+		}
+		throw new NumberFormatException(value);
+	}
+
+	/**
+	 * Return the given number of evenly spaced values from start to end inclusive.
+	 */
+	private static double[] range(double start, double end, int points) {
+		double[] values = new double[points];
+		for (int i = 0; i < points; i++) {
+			values[i] = points == 1 ? start : start + (end - start) * i / (points - 1);
+		}
+		return values;
+	}
+
+	/**
+	 * Runs every replica of every grid point, blocking until all are done.
+	 * @throws IOException if the network cannot be read
+	 */
+	public void run() throws IOException {
+		contacts = network == null ? null : ContactNetwork.parse(network, new Xoshiro256(seed).split());
+		int points = infectionProbabilities.length * relapseProbabilities.length;
+		statistics = new PointStatistics[points];
+		for (int i = 0; i < points; i++) {
+			statistics[i] = new PointStatistics();
+		}
+		lattices = new Semaphore(threads);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new Jobs(0, points * replicas));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Runs a single replica and adds its result to the statistics for its grid point.
+	 * @param job Index of the job; jobs for a grid point are consecutive
+	 */
+	private void runJob(int job) {
+		int point = job / replicas;
+		double infectionProbability = infectionProbabilities[point / relapseProbabilities.length];
+		double relapseProbability = relapseProbabilities[point % relapseProbabilities.length];
+		long jobSeed = new Xoshiro256(seed + job).nextLong();
+
+		lattices.acquireUninterruptibly();
+		SIRSModel model = null;
+		try {
+			if (contacts != null) {
+				model = new SIRSModel(contacts, infectionProbability, recoveryProbability, relapseProbability, immuneProportion, infectedProportion, jobSeed, 1);
+			} else {
+				model = new SIRSModel(width, height, infectionProbability, recoveryProbability, relapseProbability, immuneProportion, infectedProportion,
+						jobSeed, 1);
+				model.setBoundary(boundary);
+				model.setNeighbourhood(neighbourhood);
+				model.setLayout(layout);
+			}
+			double cells = model.getWidth() * model.getHeight();
+			for (long i = 0; i < warmup && model.getPopulation(State.INFECTED) > 0; i++) {
+				model.sweep(scheme);
+			}
+			double infectedSum = 0;
+			for (long i = 0; i < sweeps && model.getPopulation(State.INFECTED) > 0; i++) {
+				model.sweep(scheme);
+				infectedSum += model.getPopulation(State.INFECTED) / cells;
+			}
+			boolean extinct = model.getPopulation(State.INFECTED) == 0;
+			statistics[point].add(infectedSum / sweeps, extinct);
+		} finally {
+			if (model != null) {
+				model.shutdown();
+			}
+			lattices.release();
+		}
+	}
+
+	/**
+	 * Writes the result table to the configured output.
+	 * @throws IOException
+	 */
+	public void write() throws IOException {
+		Writer out;
+		if (output.equals("-")) {
+			out = new BufferedWriter(new OutputStreamWriter(System.out));
+		} else {
+			out = new BufferedWriter(new FileWriter(output));
+		}
+		try {
+			out.write("infection,relapse,replicas,mean_infected,variance_infected,extinction\n");
+			for (int i = 0; i < statistics.length; i++) {
+				PointStatistics point = statistics[i];
+				out.write(String.format(Locale.ROOT, "%g,%g,%d,%.6g,%.6g,%.6g\n",
+						infectionProbabilities[i / relapseProbabilities.length], relapseProbabilities[i % relapseProbabilities.length],
+						point.count, point.mean, point.getVariance(), (double) point.extinctions / point.count));
+			}
+		} finally {
+			out.flush();
+			if (!output.equals("-")) {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Splits a range of jobs in half until single jobs remain, so idle workers can steal work.
+	 */
+	private class Jobs extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int first;
+		private final int last;
+
+		Jobs(int first, int last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first > 1) {
+				int middle = (first + last) >>> 1;
+				invokeAll(new Jobs(first, middle), new Jobs(middle, last));
+			} else if (last > first) {
+				runJob(first);
+			}
+		}
+	}
+
+	/**
+	 * Running mean and variance (Welford's method) of replica results at one grid point, plus the number of extinctions.
+	 */
+	private static class PointStatistics {
+		private int count;
+		private double mean;
+		private double squares;
+		private int extinctions;
+
+		synchronized void add(double value, boolean extinct) {
+			count++;
+			double delta = value - mean;
+			mean += delta / count;
+			squares += delta * (value - mean);
+			if (extinct) {
+				extinctions++;
+			}
+		}
+
+		double getVariance() {
+			return count > 1 ? squares / (count - 1) : 0;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package sirs;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Non-blocking log of population counts.
+ * The simulation thread appends primitive records to a preallocated ring buffer; a background thread drains the ring in
+ * batches and writes them to a PopulationSink, so disk latency never reaches the simulation. Single producer, single consumer.
+ * When the writer falls behind and the ring is full, records are either dropped (the default, and counted) or the producer waits.
+ * @author Ross
+ *
+ */
+public class PopulationLogger {
+	/**
+	 * What log() does when the ring buffer is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Discard the record and count it in getDropped().
+		 */
+		DROP,
+		/**
+		 * Wait for the writer to make room.
+		 */
+		BLOCK;
+	}
+
+	public static final int DEFAULT_CAPACITY = 1 << 14;
+	private static final int FIELDS = 5; //tick, infected, recovered, susceptible, immune
+	private static final long IDLE_NANOS = 10000000L; //writer sleep when the ring is empty
+
+	private final long[] ring;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong(); //next record to write, advanced by the producer
+	private final AtomicLong tail = new AtomicLong(); //next record to drain, advanced by the writer
+	private final PopulationSink out;
+	private final OverflowPolicy policy;
+	private final int interval;
+	private final Thread writer;
+
+	private long calls; //producer only
+	private volatile long dropped;
+	private volatile boolean closed;
+	private volatile IOException failure;
+
+	/**
+	 * Starts a logger writing to the given output.
+	 * @param out Destination for records, closed along with the logger
+	 * @param capacity Records the ring can hold, rounded up to a power of two
+	 * @param interval Only every interval-th call to log() is recorded
+	 * @param policy What to do when the ring is full
+	 */
+	public PopulationLogger(PopulationSink out, int capacity, int interval, OverflowPolicy policy) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		ring = new long[size * FIELDS];
+		mask = size - 1;
+		this.out = out;
+		this.interval = Math.max(1, interval);
+		this.policy = policy;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainUntilClosed();
+			}
+		}, "sirs-logger");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Starts a logger recording every call, dropping records if the writer falls behind.
+	 * @param out
+	 */
+	public PopulationLogger(PopulationSink out) {
+		this(out, DEFAULT_CAPACITY, 1, OverflowPolicy.DROP);
+	}
+
+	/**
+	 * Appends a record. Never blocks unless the policy is BLOCK and the ring is full.
+	 * @return true if the record was queued, false if it was skipped by the sampling interval, dropped, or the logger is closed
+	 * @throws IOException if the writer has failed, after which nothing more is written; close() still closes the output.
+	 * Unchecked exceptions thrown by the sink are reported here too, as the cause of the IOException
+	 */
+	public boolean log(long tick, int infected, int recovered, int susceptible, int immune) throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (closed || calls++ % interval != 0) {
+			return false;
+		}
+		long position = head.get();
+		if (position - tail.get() > mask) {
+			if (policy == OverflowPolicy.DROP) {
+				dropped++;
+				return false;
+			}
+			while (position - tail.get() > mask) {
+				if (failure != null) {
+					throw failure;
+				}
+				if (closed) {
+					return false;
+				}
+				LockSupport.parkNanos(100000L);
+			}
+		}
+		int base = (int) (position & mask) * FIELDS;
+		ring[base] = tick;
+		ring[base + 1] = infected;
+		ring[base + 2] = recovered;
+		ring[base + 3] = susceptible;
+		ring[base + 4] = immune;
+		head.lazySet(position + 1);
+		return true;
+	}
+
+	/**
+	 * Return the number of records dropped because the ring was full.
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Writes out everything queued so far, stops the writer thread and closes the output. Records logged afterwards are ignored.
+	 * @throws IOException if writing failed at any point, including by an unchecked exception from the sink
+	 */
+	public void close() throws IOException {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		out.close();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void drainUntilClosed() {
+		try {
+			while (true) {
+				boolean finished = closed;
+				if (drain() == 0) {
+					if (finished) {
+						break;
+					}
+					LockSupport.parkNanos(IDLE_NANOS);
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			//a sink bug must fail the producer and close() as a write error would, not leave them waiting on a dead writer
+			failure = new IOException("Population sink failed", e);
+		} catch (Error e) {
+			failure = new IOException("Population writer failed", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes every queued record in one batch.
+	 * @return Number of records written
+	 */
+	private int drain() throws IOException {
+		long start = tail.get();
+		long end = head.get();
+		for (long position = start; position < end; position++) {
+			int base = (int) (position & mask) * FIELDS;
+			out.write(ring[base], (int) ring[base + 1], (int) ring[base + 2], (int) ring[base + 3], (int) ring[base + 4]);
+			tail.lazySet(position + 1);
+		}
+		if (end > start) {
+			out.flush();
+		}
+		return (int) (end - start);
+	}
+}
@@ -0,0 +1,29 @@
+package sirs;
+
+import java.io.IOException;
+
+/**
+ * Destination for population records, e.g. a CSV file or a TimeSeriesWriter.
+ * @author Ross
+ *
+ */
+public interface PopulationSink {
+
+	/**
+	 * Writes one record.
+	 * @throws IOException
+	 */
+	void write(long tick, int infected, int recovered, int susceptible, int immune) throws IOException;
+
+	/**
+	 * Pushes buffered records towards the disk.
+	 * @throws IOException
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Flushes and releases the destination.
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,36 @@
+package sirs;
+
+/**
+ * Source of random numbers for the simulation.
+ * Implementations are not thread safe; each thread (or each stripe of a parallel update) should use its own instance, obtained with split().
+ * @author Ross
+ *
+ */
+public interface RandomSource {
+
+	/**
+	 * Return a uniformly distributed double in [0,1).
+	 * @return
+	 */
+	double nextDouble();
+
+	/**
+	 * Return a uniformly distributed int in [0,bound).
+	 * @param bound Exclusive upper bound, must be positive
+	 * @return
+	 */
+	int nextInt(int bound);
+
+	/**
+	 * Return a uniformly distributed long.
+	 * @return
+	 */
+	long nextLong();
+
+	/**
+	 * Return a new generator whose sequence is statistically independent of this one.
+	 * Advances this generator, so splitting is itself reproducible.
+	 * @return
+	 */
+	RandomSource split();
+}
@@ -1,16 +1,20 @@
 package sirs;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 /**
  * Calling a function with no arguments assumes:
  * 		Minimum = 0
  * 		Maximum = 10
+ * Backed by ThreadLocalRandom, so callers on different threads do not contend.
+ * Not seedable; the simulation itself draws from a RandomSource.
  * @author Ross
  *
  */
 public class Randoms {
 	public static int randomInt(int min, int max) {
 		int diff = (max - min) + 1;
-		return (int) ((Math.random() * diff) + min);
+		return (int) ((ThreadLocalRandom.current().nextDouble() * diff) + min);
 	}
 	
 	public static int randomInt() {
@@ -19,7 +23,7 @@ public class Randoms {
 	
 	public static double randomDouble(double min, double max) {
 		double diff = (max - min) + 1;
-		return (Math.random() * diff) + min;
+		return (ThreadLocalRandom.current().nextDouble() * diff) + min;
 	}
 	
 	public static double randomDouble() {
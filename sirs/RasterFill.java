@@ -0,0 +1,70 @@
+package sirs;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Unpacks packed cells (see PackedLattice) into one byte per cell, for use as the pixels of an indexed colour image.
+ * Each byte is the cell's state code, so the image's palette decides the colour of each state.
+ * Large lattices are split into runs of whole words across a fork-join pool.
+ * @author Ross
+ *
+ */
+class RasterFill extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Words unpacked by a single task.
+	 */
+	static final int TASK_WORDS = 1 << 13;
+
+	private final long[] words;
+	private final byte[] pixels;
+	private final int firstWord;
+	private final int lastWord;
+
+	/**
+	 * @param words Packed cells, laid out as in PackedLattice
+	 * @param pixels One byte per cell
+	 * @param firstWord First word to unpack
+	 * @param lastWord Word after the last one to unpack
+	 */
+	RasterFill(long[] words, byte[] pixels, int firstWord, int lastWord) {
+		this.words = words;
+		this.pixels = pixels;
+		this.firstWord = firstWord;
+		this.lastWord = lastWord;
+	}
+
+	@Override
+	protected void compute() {
+		if (lastWord - firstWord > TASK_WORDS) {
+			int middle = (firstWord + lastWord) >>> 1;
+			invokeAll(new RasterFill(words, pixels, firstWord, middle), new RasterFill(words, pixels, middle, lastWord));
+		} else {
+			fill();
+		}
+	}
+
+	/**
+	 * Unpacks the words of this task on the calling thread.
+	 */
+	void fill() {
+		int fullWords = Math.min(lastWord, pixels.length >>> 5);
+		for (int i = firstWord; i < fullWords; i++) {
+			long word = words[i];
+			int base = i << 5;
+			for (int k = 0; k < 32; k++) {
+				pixels[base + k] = (byte) (word & 3);
+				word >>>= 2;
+			}
+		}
+		if (lastWord > fullWords) {
+			//partial last word
+			long word = words[fullWords];
+			for (int i = fullWords << 5; i < pixels.length; i++) {
+				pixels[i] = (byte) (word & 3);
+				word >>>= 2;
+			}
+		}
+	}
+}
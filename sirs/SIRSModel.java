@@ -1,16 +1,47 @@
 package sirs;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
 public class SIRSModel {
 	private int width; //lattice width
 	private int height; //lattice height
-	private int ticks; //number of cell updates that have been run
+	private long ticks; //number of cell updates that have been run
+	private double clockDrift; //difference between the kinetic clock and ticks per cell
 	private double infectionProbability; //probability of S -> I
 	private double recoveryProbability; // probability of I -> R
 	private double relapseProbability; // probability of R -> S
 	private double immuneProportion; //proportion of cells immune to infection
-	private double infectedProportion = 0.1; //initial proportion of cells which are infected
-	private State[][] agents; //cells representing an individual
+	private double infectedProportion = DEFAULT_INFECTED_PROPORTION; //initial proportion of cells which are infected
+	private PackedLattice lattice; //cells representing an individual, packed 2 bits per cell
+	private PackedLattice nextLattice; //back buffer for parallel updates, allocated on first use
+	private short[] infectedNeighbours; //total weight of the infected neighbours of each cell
+	private boolean neighbourCountsStale; //set when the lattice changed without updating infectedNeighbours
+	private Boundary boundary = DEFAULT_BOUNDARY; //treatment of the lattice edges
+	private Neighbourhood neighbourhood = DEFAULT_NEIGHBOURHOOD; //cells which can pass on infection
+	private CellLayout layout = DEFAULT_LAYOUT; //order the cells are stored in
+	private CellIndex cellIndex; //flat index of each cell under the layout
+	private NeighbourAxis columns; //neighbour slots along x, as column offsets of the flat index
+	private NeighbourAxis rows; //neighbour slots along y, as row offsets of the flat index
+	private int[] neighbourOffsets; //flat index offset of each neighbour, valid for interior cells when the cells lie in rows
+	private boolean blocked; //set when the cells lie in blocks, so cells are found through cellIndex and interior neighbours by index arithmetic
+	private int[] neighbourWeights; //weight of each neighbour
+	private int[] neighbourColumns; //dx + radius of each neighbour, indexing the column tables
+	private int[] neighbourRows; //dy + radius of each neighbour, indexing the row tables
+	private int[] boxRows; //row sums for rebuilding counts of large box neighbourhoods, allocated on first use
+	private ContactNetwork network; //contacts between the cells, or null if they lie on the lattice
+	private EventSets events; //cells able to change, by transition; null unless event driven updates are in use
+	private final int[] populations = new int[4]; //number of cells in each state, indexed by code
+	private DirtyTiles dirtyTiles; //tiles changed since the view last caught up
+	private boolean concurrentUpdate; //set while several threads call setState, which then leaves populations alone
+	private int parallelism = Runtime.getRuntime().availableProcessors(); //threads used by parallel updates
+	private ForkJoinPool pool; //created on first parallel update
+	private int bandHeight = DEFAULT_BAND_HEIGHT; //rows per band in checkerboard updates
 	private CellShape cellShape; //Graphical representation of cells
+	private long seed; //seed the random source was last set to
+	private RandomSource random; //source of all randomness in the model
 	
 	/**
 	 * Defaults
@@ -19,6 +50,16 @@ public class SIRSModel {
 	public static final double DEFAULT_INFECTION_PROBABILITY = 0.5;
 	public static final double DEFAULT_RECOVERY_PROBABILITY = 0.5;
 	public static final double DEFAULT_RELAPSE_PROBABILITY = 0.5;
+	public static final double DEFAULT_INFECTED_PROPORTION = 0.1;
+	public static final int DEFAULT_BAND_HEIGHT = 16;
+	public static final Boundary DEFAULT_BOUNDARY = Boundary.OPEN;
+	public static final Neighbourhood DEFAULT_NEIGHBOURHOOD = Neighbourhood.vonNeumann();
+	public static final CellLayout DEFAULT_LAYOUT = CellLayout.ROWS;
+
+	/**
+	 * Box neighbourhoods of at least this radius have their counts rebuilt with sliding windows, and parallel updates read those counts
+	 */
+	private static final int BOX_SUM_RADIUS = 2;
 
 	/**
 	 * Initialises SIRS Lattice of given width and height, with immunity enabled.
@@ -35,6 +76,7 @@ public class SIRSModel {
 		infectionProbability= DEFAULT_INFECTION_PROBABILITY;
 		relapseProbability = DEFAULT_RELAPSE_PROBABILITY;
 		cellShape = DEFAULT_CELL_SHAPE;
+		setSeed(Xoshiro256.randomSeed());
 		initialise();
 	}
 
@@ -77,13 +119,99 @@ public class SIRSModel {
 	 * @param immuneProportion Proportion of agents who are immune
 	 */
 	public SIRSModel(int width, int height, double infectionProbability, double recoveryProbability, double relapseProbability, double immuneProportion) {
+		this(width, height, infectionProbability, recoveryProbability, relapseProbability, immuneProportion, Xoshiro256.randomSeed());
+	}
+
+	/**
+	 * Initialises SIRS Lattice of given width and height, with immunity enabled.
+	 * Probability of Infected, Recovery and Relapse are set to provided values.
+	 * Models built with the same seed and settings follow identical trajectories.
+	 * @param width Width of Lattice
+	 * @param height Height of Lattice
+	 * @param infectionProbability probability of S -> I
+	 * @param recoveryProbabilityprobability of I -> R
+	 * @param relapseProbability probability of R -> S
+	 * @param immuneProportion Proportion of agents who are immune
+	 * @param seed Seed for the model's random source
+	 */
+	public SIRSModel(int width, int height, double infectionProbability, double recoveryProbability, double relapseProbability, double immuneProportion, long seed) {
+		this(width, height, infectionProbability, recoveryProbability, relapseProbability, immuneProportion, DEFAULT_INFECTED_PROPORTION, seed,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Initialises SIRS Lattice of given width and height, with immunity enabled, filling it once with the given initial infected proportion
+	 * on the given number of threads; runs such as ParameterSweep replicas, which must not each start a pool of every core, use this.
+	 * @param width Width of Lattice
+	 * @param height Height of Lattice
+	 * @param infectionProbability probability of S -> I
+	 * @param recoveryProbability probability of I -> R
+	 * @param relapseProbability probability of R -> S
+	 * @param immuneProportion Proportion of agents who are immune
+	 * @param infectedProportion Initial proportion of agents who are infected
+	 * @param seed Seed for the model's random source
+	 * @param parallelism Threads used by parallel updates, see setParallelism(int)
+	 */
+	public SIRSModel(int width, int height, double infectionProbability, double recoveryProbability, double relapseProbability, double immuneProportion,
+			double infectedProportion, long seed, int parallelism) {
 		this.width = width;
 		this.height = height;
 		this.infectionProbability = infectionProbability;
 		this.recoveryProbability = recoveryProbability;
 		this.relapseProbability = relapseProbability;
 		this.immuneProportion = immuneProportion;
+		this.infectedProportion = infectedProportion;
+		this.parallelism = parallelism;
+		cellShape = DEFAULT_CELL_SHAPE;
+		setSeed(seed);
+		initialise();
+	}
+
+	/**
+	 * Initialises an SIRS model on a contact network rather than a lattice: one cell per node, which can be infected by the nodes it shares an edge with.
+	 * The cells are held as a single row of getWidth() cells in node order, so node i is at (i, 0) wherever the model is read.
+	 * Every update scheme but checkerboard works as on the lattice.
+	 * @param network Contacts between the cells
+	 * @param infectionProbability probability of S -> I
+	 * @param recoveryProbability probability of I -> R
+	 * @param relapseProbability probability of R -> S
+	 * @param immuneProportion Proportion of agents who are immune
+	 * @param seed Seed for the model's random source
+	 * @throws IllegalArgumentException if a node has more neighbours than the model can count
+	 */
+	public SIRSModel(ContactNetwork network, double infectionProbability, double recoveryProbability, double relapseProbability, double immuneProportion, long seed) {
+		this(network, infectionProbability, recoveryProbability, relapseProbability, immuneProportion, DEFAULT_INFECTED_PROPORTION, seed,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Initialises an SIRS model on a contact network, filling it once with the given initial infected proportion on the given number of threads.
+	 * @param network Contacts between the cells
+	 * @param infectionProbability probability of S -> I
+	 * @param recoveryProbability probability of I -> R
+	 * @param relapseProbability probability of R -> S
+	 * @param immuneProportion Proportion of agents who are immune
+	 * @param infectedProportion Initial proportion of agents who are infected
+	 * @param seed Seed for the model's random source
+	 * @param parallelism Threads used by parallel updates, see setParallelism(int)
+	 * @throws IllegalArgumentException if a node has more neighbours than the model can count
+	 */
+	public SIRSModel(ContactNetwork network, double infectionProbability, double recoveryProbability, double relapseProbability, double immuneProportion,
+			double infectedProportion, long seed, int parallelism) {
+		if (network.getMaxDegree() > Neighbourhood.MAX_TOTAL_WEIGHT) {
+			throw new IllegalArgumentException("Nodes may have at most " + Neighbourhood.MAX_TOTAL_WEIGHT + " neighbours: " + network.getMaxDegree());
+		}
+		this.network = network;
+		this.width = network.size();
+		this.height = 1;
+		this.infectionProbability = infectionProbability;
+		this.recoveryProbability = recoveryProbability;
+		this.relapseProbability = relapseProbability;
+		this.immuneProportion = immuneProportion;
+		this.infectedProportion = infectedProportion;
+		this.parallelism = parallelism;
 		cellShape = DEFAULT_CELL_SHAPE;
+		setSeed(seed);
 		initialise();
 	}
 
@@ -98,24 +226,95 @@ public class SIRSModel {
 	public SIRSModel(int width, int height, State[][] agents, double immuneProportion) {
 		this.width = width;
 		this.height = height;
-		this.agents = agents;
+		lattice = new PackedLattice(width * height);
+		buildNeighbourTables();
+		for (int i = 0; i < height; i++) {
+			for (int j = 0; j < width; j++) {
+				lattice.set(index(j,i), agents[i][j].ordinal());
+			}
+		}
+		infectedNeighbours = new short[width * height];
+		dirtyTiles = new DirtyTiles(width, height);
+		rebuildNeighbourCounts();
+		recountPopulations();
 		this.immuneProportion = immuneProportion;
 		recoveryProbability = DEFAULT_RECOVERY_PROBABILITY;
 		infectionProbability= DEFAULT_INFECTION_PROBABILITY;
 		relapseProbability = DEFAULT_RELAPSE_PROBABILITY;
 		cellShape = DEFAULT_CELL_SHAPE;
+		setSeed(Xoshiro256.randomSeed());
 	}
 
+	/**
+	 * Creates a model with an unset lattice, for Checkpoint to fill in and then restore().
+	 * @param width
+	 * @param height
+	 */
+	SIRSModel(int width, int height) {
+		this.width = width;
+		this.height = height;
+		lattice = new PackedLattice(width * height);
+		infectedNeighbours = new short[width * height];
+		dirtyTiles = new DirtyTiles(width, height);
+		buildNeighbourTables();
+		cellShape = DEFAULT_CELL_SHAPE;
+		setSeed(0);
+	}
 
 	/**
 	 * Initial setup of lattice.
 	 */
 	private void initialise() {
 		ticks = 0;
-		agents = new State[height][width];
+		lattice = new PackedLattice(width * height);
+		nextLattice = null;
+		events = null;
+		infectedNeighbours = new short[width * height];
+		dirtyTiles = new DirtyTiles(width, height);
+		buildNeighbourTables();
 		reset();
 	}
 
+	/**
+	 * Return the flat lattice index of a given x,y.
+	 */
+	private int index(int x, int y) {
+		return blocked ? cellIndex.index(x, y) : y * width + x;
+	}
+
+	/**
+	 * Reseeds the model's random source. Call reset() afterwards to reproduce a run from its start.
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		random = new Xoshiro256(seed);
+	}
+
+	/**
+	 * Return the seed the random source was last set to.
+	 * @return
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Replaces the model's random source.
+	 * @param random
+	 */
+	public void setRandomSource(RandomSource random) {
+		this.random = random;
+	}
+
+	/**
+	 * Return the model's random source.
+	 * @return
+	 */
+	public RandomSource getRandomSource() {
+		return random;
+	}
+
 	/**
 	 * Return probability of S->I
 	 * @return
@@ -165,25 +364,40 @@ public class SIRSModel {
 	}
 
 	/**
-	 * Return 2D array representing population.
+	 * Return a copy of the population as a 2D array.
+	 * This allocates a reference per cell; use getLattice() or getState(x,y) on large lattices.
 	 * @return
 	 */
 	public State[][] getAgents() {
+		State[][] agents = new State[height][width];
+		for (int i = 0; i < height; i++) {
+			for (int j = 0; j < width; j++) {
+				agents[i][j] = getState(j,i);
+			}
+		}
 		return agents;
 	}
+
+	/**
+	 * Return the lattice backing the population. Cell x,y is at the flat index given by the layout, see getLayout().
+	 * @return
+	 */
+	public Lattice getLattice() {
+		return lattice;
+	}
 	
 	/**
 	 * Return String representation of lattice.
+	 * Use LatticeExporter to write large lattices without holding the whole text in memory.
 	 */
 	public String toString() {
-		String out = "";
-		for (int i = 0; i < height; i++) {
-			for (int j = 0; j < width; j++) {
-				out += agents[i][j] + " ";
-			}
-			out += "\r\n";
+		StringWriter out = new StringWriter(textLength(2));
+		try {
+			new LatticeExporter(this).writeText(out, "\r\n");
+		} catch (IOException e) {
+			throw new IllegalStateException(e); //StringWriter never throws
 		}
-		return out;
+		return out.toString();
 	}
 
 	/**
@@ -192,224 +406,891 @@ public class SIRSModel {
 	 * @return
 	 */
 	public String toHTMLString() {
-		String out = "<HTML>";
-		for (int i = 0; i < height; i++) {
-			for (int j = 0; j < width; j++) {
-				out += agents[i][j] + " ";
-			}
-			out += "<BR>";
+		StringWriter out = new StringWriter(textLength(4) + 13);
+		try {
+			new LatticeExporter(this).writeHtml(out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); //StringWriter never throws
 		}
-		out += "</HTML>";
-		return out;
+		return out.toString();
+	}
+
+	/**
+	 * Return the length of the lattice as text with line separators of the given length, capped to what a String can hold.
+	 */
+	private int textLength(int lineSeparator) {
+		return (int) Math.min(Integer.MAX_VALUE - 8, (long) height * (2L * width + lineSeparator));
 	}
 
 	/**
-	 * Immunizes a random cell.
+	 * Immunizes a random cell that is not already immune, chosen uniformly. Does nothing if every cell is immune.
 	 */
 	public void immunizeRandomCell() {
-		boolean infected = false;
-		while (!infected) {
-			int x = Randoms.randomInt(0,width-1);
-			int y = Randoms.randomInt(0,height-1);
-			if (agents[y][x] != State.IMMUNE) {
-				agents[y][x] = State.IMMUNE;
-				infected = true;
+		if (populations[Lattice.IMMUNE] == width * height) {
+			return;
+		}
+		ensureNeighbourCounts();
+		while (true) {
+			int x = random.nextInt(width);
+			int y = random.nextInt(height);
+			int index = index(x,y);
+			if (lattice.get(index) != Lattice.IMMUNE) {
+				setState(index, x, y, Lattice.IMMUNE);
+				return;
 			}
 		}
 	}
 	
 	/**
-	 * Infects a random cell.
+	 * Infects a random susceptible cell, chosen uniformly. Does nothing if no cell is susceptible.
 	 */
 	public void infectRandomCell() {
-		boolean infected = false;
-		while (!infected) {
-			int x = Randoms.randomInt(0,width-1);
-			int y = Randoms.randomInt(0,height-1);
-			if (agents[y][x] != State.RECOVERED || agents[y][x] != State.INFECTED) {
-				agents[y][x] = State.INFECTED;
-				infected = true;
+		if (populations[Lattice.SUSCEPTIBLE] == 0) {
+			return;
+		}
+		ensureNeighbourCounts();
+		while (true) {
+			int x = random.nextInt(width);
+			int y = random.nextInt(height);
+			int index = index(x,y);
+			if (lattice.get(index) == Lattice.SUSCEPTIBLE) {
+				setState(index, x, y, Lattice.INFECTED);
+				return;
 			}
 		}
 	}
 
 	/**
-	 * Updates all agents based on their current neighbours.
+	 * Updates all agents simultaneously based on their current neighbours.
+	 * Every cell follows the full S/I/R rules against the current lattice, and the results are written to a back buffer which is then swapped in.
+	 * The lattice is split into stripes which are updated across a fork-join pool of getParallelism() threads.
+	 * Counts as one attempted transition per cell.
 	 */
 	public void updateParallel() {
-		State[][] nextState = new State[height][width];
+		if (nextLattice == null) {
+			nextLattice = new PackedLattice(width * height);
+		}
 
-		for (int i = 0; i < height; i++) {
-			for (int j = 0; j < width; j++) {
-				nextState[i][j] = agents[i][j];
-				State actor = agents[i][j];
-				if (actor == State.SUSCEPTIBLE) {
-					if (actor != State.IMMUNE) {
-						if (actor == State.SUSCEPTIBLE) {
-							//check for infection chance
-							State[] adjacentStates = getAdjacentStates(j,i);
-
-							boolean infectionChance = false;
-							for (State state : adjacentStates) {
-								if (state == State.INFECTED) {
-									infectionChance = true;
-								}
-							}
-
-							if (infectionChance) {
-								double r = Math.random();
-
-								if (r <= infectionProbability) {
-									nextState[i][j] = State.INFECTED;
-								}
-							}
-						} else if (actor == State.RECOVERED) {
-							double r = Math.random();
-
-							if (r <= relapseProbability) {
-								nextState[i][j] = State.SUSCEPTIBLE;
-							}
-						} else {
-							double r = Math.random();
-
-							if (r <= recoveryProbability) {
-								nextState[i][j] = State.RECOVERED;
-							}
-						}
-					}
-				}
-			}
+		//wide box neighbourhoods are cheaper to count all at once with sliding windows than cell by cell
+		short[] counts = null;
+		if (usesBoxSums()) {
+			ensureNeighbourCounts();
+			counts = infectedNeighbours;
 		}
 
-		for (int i = 0; i < height; i++) {
-			for (int j = 0; j < width; j++) {
-				agents[i][j] = nextState[i][j];
+		int stripes = SynchronousStep.stripeCount(width * height);
+		RandomSource[] randoms = new RandomSource[stripes];
+		for (int i = 0; i < stripes; i++) {
+			randoms[i] = random.split();
+		}
+		getPool().invoke(new SynchronousStep(this, lattice, nextLattice, counts, randoms, 0, stripes));
+
+		PackedLattice swap = lattice;
+		lattice = nextLattice;
+		nextLattice = swap;
+		neighbourCountsStale = true;
+		events = null;
+		dirtyTiles.markAll();
+		recountPopulations();
+		ticks += width * height;
+	}
+
+	/**
+	 * Advances the model by one sweep, i.e. one attempted transition per cell, using the given scheme.
+	 * @param scheme
+	 */
+	public void sweep(UpdateScheme scheme) {
+		int cells = width * height;
+		switch (scheme) {
+		case SEQUENTIAL:
+			for (int i = 0; i < cells; i++) {
+				updateSequential();
 			}
+			break;
+		case PARALLEL:
+			updateParallel();
+			break;
+		case CHECKERBOARD:
+			updateCheckerboard();
+			break;
+		case KINETIC:
+			updateKinetic(cells);
+			break;
+		case ACTIVE:
+			updateActive(cells);
+			break;
 		}
-		ticks++;
+	}
 
+	/**
+	 * Return the number of threads used by parallel updates.
+	 * @return
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Set the number of threads used by parallel updates. Results for a given seed do not depend on this.
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		shutdown();
+	}
+
+	/**
+	 * Stops the threads used by parallel updates. They are restarted if another parallel update is run.
+	 */
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Return the pool parallel updates run on, creating it if needed.
+	 */
+	ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
 	}
 
 	/**
 	 * Updates a single agent based on its current neighbours.
 	 */
 	public void updateSequential() {
-		int x = Randoms.randomInt(0,width-1);
-		int y = Randoms.randomInt(0,height-1);
-		State actor = agents[y][x];
-		if (actor != State.IMMUNE) {
-			if (actor == State.SUSCEPTIBLE) {
-				//check for infection chance
-				State[] adjacentStates = getAdjacentStates(x,y);
-
-				boolean infectionChance = false;
-				for (State state : adjacentStates) {
-					if (state == State.INFECTED) {
-						infectionChance = true;
-					}
-				}
+		ensureNeighbourCounts();
+		int x = random.nextInt(width);
+		int y = random.nextInt(height);
+		updateCell(x, y, random);
+		ticks++;
+	}
+
+	/**
+	 * Runs one sweep of random sequential updates (one attempt per cell on average) across several threads.
+	 * The lattice is cut into horizontal bands of getBandHeight() rows. Even bands are updated in one sub-step and odd bands in the other,
+	 * in random order, each band making as many random sequential attempts within itself as it has cells.
+	 * Bands updated together are separated by a whole band, so their cells and the neighbour counts they touch never overlap;
+	 * under periodic boundaries the number of bands is made even so that this holds across the wrap too.
+	 * The only departure from updateSequential is that cells cannot change while their band is waiting for the other sub-step,
+	 * which leaves the statistics of the dynamics within sampling error for bands of a few rows or more.
+	 * @throws IllegalStateException on a contact network, which has no bands
+	 */
+	public void updateCheckerboard() {
+		if (network != null) {
+			throw new IllegalStateException("Checkerboard updates need a lattice");
+		}
+		ensureNeighbourCounts();
+		events = null;
+		int bands = Math.max(1, height / getBandHeight());
+		if (boundary == Boundary.PERIODIC && bands > 1) {
+			//the first and last bands touch across the wrap, so they must fall in different sub-steps
+			bands &= ~1;
+		}
+		int first = random.nextInt(2);
+		for (int parity = 0; parity < 2; parity++) {
+			int firstBand = (first + parity) & 1;
+			int count = (bands - firstBand + 1) / 2;
+			RandomSource[] randoms = new RandomSource[count];
+			for (int i = 0; i < count; i++) {
+				randoms[i] = random.split();
+			}
+			concurrentUpdate = true;
+			try {
+				getPool().invoke(new CheckerboardStep(this, randoms, firstBand, bands, 0, count));
+			} finally {
+				concurrentUpdate = false;
+			}
+		}
+		dirtyTiles.markAll();
+		recountPopulations();
+		ticks += width * height;
+	}
 
-				if (infectionChance) {
-					double r = Math.random();
+	/**
+	 * Performs the next transition using rejection-free kinetic Monte Carlo.
+	 * Rather than attempting random cells until one changes, the number of random sequential attempts until the next change is drawn directly
+	 * from its geometric distribution, and the changing cell is drawn from the cells able to change, weighted by their transition probabilities.
+	 * The trajectory has the same distribution as repeated calls to updateSequential(), and getTicks() advances by the equivalent number of attempts.
+	 * getTime() follows a continuous clock with exponential waiting times between transitions.
+	 * With a neighbourhood saturation above 1, infections of cells below saturation are drawn at the saturated rate and then thinned,
+	 * so an event may change nothing.
+	 * @return false if no cell can change, in which case nothing is done
+	 */
+	public boolean updateKinetic() {
+		ensureEventSets();
+		int cells = width * height;
+		double infectionRate = events.atRisk.size() * infectionProbability;
+		double recoveryRate = events.infected.size() * recoveryProbability;
+		double relapseRate = events.recovered.size() * relapseProbability;
+		double totalRate = infectionRate + recoveryRate + relapseRate;
+		if (totalRate <= 0) {
+			return false;
+		}
 
-					if (r <= infectionProbability) {
-						agents[y][x] = State.INFECTED;
-					}
-				}
-			} else if (actor == State.RECOVERED) {
-				double r = Math.random();
+		long attempts = SIRSRules.geometric(totalRate / cells, random);
+		ticks += attempts;
+		clockDrift += -Math.log(1 - random.nextDouble()) / totalRate - (double) attempts / cells;
+		applyKineticEvent(infectionRate, recoveryRate, totalRate);
+		return true;
+	}
 
-				if (r <= relapseProbability) {
-					agents[y][x] = State.SUSCEPTIBLE;
-				}
-			} else {
-				double r = Math.random();
+	/**
+	 * Advances the model by the given number of equivalent random sequential attempts using rejection-free kinetic Monte Carlo,
+	 * performing every transition which falls within them. Equivalent in distribution to calling updateSequential() that many times.
+	 * @param attempts
+	 */
+	public void updateKinetic(long attempts) {
+		ensureEventSets();
+		int cells = width * height;
+		long end = ticks + attempts;
+		while (ticks < end) {
+			double infectionRate = events.atRisk.size() * infectionProbability;
+			double recoveryRate = events.infected.size() * recoveryProbability;
+			double relapseRate = events.recovered.size() * relapseProbability;
+			double totalRate = infectionRate + recoveryRate + relapseRate;
+			long wait = totalRate > 0 ? SIRSRules.geometric(totalRate / cells, random) : Long.MAX_VALUE;
+			if (wait > end - ticks) {
+				//no transition before the end; attempts are memoryless, so the draw can simply be discarded
+				ticks = end;
+				return;
+			}
+			ticks += wait;
+			applyKineticEvent(infectionRate, recoveryRate, totalRate);
+		}
+	}
 
-				if (r <= recoveryProbability) {
-					agents[y][x] = State.RECOVERED;
-				}
+	/**
+	 * Performs one random sequential attempt on a cell drawn from the active set: infected cells, recovered cells and susceptible cells with an infected neighbour.
+	 * The chosen cell changes with its usual transition probability. Inactive cells would never change, so the attempts which would have landed on them
+	 * are skipped, and getTicks() advances by a geometrically distributed number of equivalent attempts.
+	 * Equivalent in distribution to updateSequential(), at a cost independent of the number of inactive cells.
+	 * @return false if there are no active cells, in which case nothing is done
+	 */
+	public boolean updateActive() {
+		ensureEventSets();
+		int active = events.activeCount();
+		if (active == 0) {
+			return false;
+		}
+		ticks += SIRSRules.geometric((double) active / (width * height), random);
+		int cell = events.pickActive(random);
+		updateCell(cellIndex.getX(cell), cellIndex.getY(cell), random);
+		return true;
+	}
+
+	/**
+	 * Advances the model by the given number of equivalent random sequential attempts, only visiting active cells.
+	 * Equivalent in distribution to calling updateSequential() that many times.
+	 * @param attempts
+	 */
+	public void updateActive(long attempts) {
+		ensureEventSets();
+		int cells = width * height;
+		long end = ticks + attempts;
+		while (ticks < end) {
+			int active = events.activeCount();
+			long skip = active > 0 ? SIRSRules.geometric((double) active / cells, random) : Long.MAX_VALUE;
+			if (skip > end - ticks) {
+				ticks = end;
+				return;
+			}
+			ticks += skip;
+			int cell = events.pickActive(random);
+			updateCell(cellIndex.getX(cell), cellIndex.getY(cell), random);
+		}
+	}
+
+	/**
+	 * Return the simulated time in sweeps (attempts per cell).
+	 * Equal to getTicks() divided by the number of cells, except that updateKinetic() advances it by exponentially distributed waiting times.
+	 * @return
+	 */
+	public double getTime() {
+		return (double) ticks / (width * height) + clockDrift;
+	}
+
+	/**
+	 * Chooses a transition class in proportion to its rate, then a uniform cell within it, and applies the transition.
+	 */
+	private void applyKineticEvent(double infectionRate, double recoveryRate, double totalRate) {
+		double r = random.nextDouble() * totalRate;
+		int cell;
+		int state;
+		if (r < infectionRate) {
+			cell = events.atRisk.pick(random);
+			state = Lattice.INFECTED;
+			int saturation = neighbourhood.getSaturation();
+			if (saturation > 1 && random.nextDouble() * saturation >= Math.min(infectedNeighbours[cell], saturation)) {
+				//rates assume every at risk cell is saturated; thin out the rest to their true rate
+				return;
+			}
+		} else if (r < infectionRate + recoveryRate || events.recovered.size() == 0) {
+			cell = events.infected.pick(random);
+			state = Lattice.RECOVERED;
+		} else {
+			cell = events.recovered.pick(random);
+			state = Lattice.SUSCEPTIBLE;
+		}
+		setState(cell, cellIndex.getX(cell), cellIndex.getY(cell), state);
+	}
+
+	/**
+	 * Builds the event sets if they are not being maintained.
+	 */
+	private void ensureEventSets() {
+		ensureNeighbourCounts();
+		if (events == null) {
+			events = new EventSets(lattice, infectedNeighbours);
+		}
+	}
+
+	/**
+	 * Return the height in rows of the bands used by updateCheckerboard().
+	 * At least twice the radius of the neighbourhood, so that the counts touched by concurrently updated bands never meet,
+	 * and at least enough rows to span a 32 cell word, so that those bands never share a word of the lattice.
+	 * When the cells lie in blocks, rounded up so that no word of the lattice straddles two bands.
+	 * @return
+	 */
+	public int getBandHeight() {
+		int rows = Math.max(bandHeight, Math.max(2 * neighbourhood.getRadius(), (32 + width - 1) / width));
+		int alignment = cellIndex.getRowAlignment();
+		return (rows + alignment - 1) / alignment * alignment;
+	}
+
+	/**
+	 * Set the preferred height in rows of the bands used by updateCheckerboard().
+	 * Taller bands follow random sequential dynamics more closely; shorter bands give more tasks to share between threads.
+	 * @param bandHeight
+	 */
+	public void setBandHeight(int bandHeight) {
+		this.bandHeight = bandHeight;
+	}
+
+	/**
+	 * Return the treatment of the lattice edges.
+	 * @return
+	 */
+	public Boundary getBoundary() {
+		return boundary;
+	}
+
+	/**
+	 * Set the treatment of the lattice edges. Takes effect from the next update without changing any cell.
+	 * @param boundary
+	 * @throws IllegalStateException on a contact network
+	 */
+	public void setBoundary(Boundary boundary) {
+		checkLattice();
+		this.boundary = boundary;
+		buildNeighbourTables();
+		neighbourCountsStale = true;
+		events = null;
+	}
+
+	/**
+	 * Return the cells which can pass on infection to each cell.
+	 * @return
+	 */
+	public Neighbourhood getNeighbourhood() {
+		return neighbourhood;
+	}
+
+	/**
+	 * Set the cells which can pass on infection to each cell. Takes effect from the next update without changing any cell.
+	 * @param neighbourhood
+	 * @throws IllegalStateException on a contact network, where the edges decide
+	 */
+	public void setNeighbourhood(Neighbourhood neighbourhood) {
+		checkLattice();
+		this.neighbourhood = neighbourhood;
+		buildNeighbourTables();
+		neighbourCountsStale = true;
+		events = null;
+	}
+
+	/**
+	 * Return the order the cells are stored in.
+	 * @return
+	 */
+	public CellLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Set the order the cells are stored in, moving every cell to its place in the new layout. Nothing else about the model changes,
+	 * but the lattice and the indices of its cells do, so event driven updates pick other cells from then on.
+	 * @param layout
+	 * @throws IllegalStateException on a contact network, where the cells are in node order
+	 */
+	public void setLayout(CellLayout layout) {
+		checkLattice();
+		if (layout == this.layout) {
+			return;
+		}
+		CellIndex previous = cellIndex;
+		this.layout = layout;
+		buildNeighbourTables();
+		PackedLattice moved = new PackedLattice(width * height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				moved.set(cellIndex.index(x, y), lattice.get(previous.index(x, y)));
+			}
+		}
+		lattice = moved;
+		nextLattice = null;
+		neighbourCountsStale = true;
+		events = null;
+		dirtyTiles.markAll();
+	}
+
+	/**
+	 * Return the flat index of each cell under the current layout.
+	 */
+	CellIndex getCellIndex() {
+		return cellIndex;
+	}
+
+	/**
+	 * Return the contact network the cells lie on, or null if they lie on the lattice.
+	 * @return
+	 */
+	public ContactNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Throws IllegalStateException if the cells lie on a contact network.
+	 */
+	private void checkLattice() {
+		if (network != null) {
+			throw new IllegalStateException("Not available on a contact network");
+		}
+	}
+
+	/**
+	 * Attempts one transition of the cell at x,y, drawing from the given random source.
+	 * Neighbour counts must be up to date.
+	 */
+	void updateCell(int x, int y, RandomSource random) {
+		int index = index(x,y);
+		int actor = lattice.get(index);
+		if (actor != Lattice.IMMUNE) {
+			int pressure = actor == Lattice.SUSCEPTIBLE ? infectedNeighbours[index] : 0;
+			int next = SIRSRules.attempt(actor, pressure, neighbourhood.getSaturation(), infectionProbability, recoveryProbability, relapseProbability, random);
+			if (next != actor) {
+				setState(index, x, y, next);
 			}
 		}
-		ticks++;
 	}
 
 	/**
 	 * Return number of transitions attempted.
 	 * @return
 	 */
-	public int getTicks() {
+	public long getTicks() {
 		return ticks;
 	}
 
 	/**
-	 * Return an array of States representing the adjacent states of a given x,y in the lattice.
+	 * Return the record of tiles changed since the view last caught up. The view clears it once it has redrawn them.
+	 */
+	DirtyTiles getDirtyTiles() {
+		return dirtyTiles;
+	}
+
+	/**
+	 * Return the difference between getTime() and ticks per cell, for checkpoints.
+	 */
+	double getClockDrift() {
+		return clockDrift;
+	}
+
+	/**
+	 * Return the event sets if they are being maintained, otherwise null. For checkpoints.
+	 */
+	EventSets getEventSets() {
+		return events;
+	}
+
+	/**
+	 * Restores the run state saved in a checkpoint, once the lattice has been filled in.
+	 * Populations are recounted and neighbour counts rebuilt when next needed; the event sets are taken as saved,
+	 * since the order of their members decides which cells later updates pick.
+	 * @param ticks
+	 * @param clockDrift
+	 * @param events Saved event sets, or null if none were being maintained
+	 */
+	void restore(long ticks, double clockDrift, EventSets events) {
+		this.ticks = ticks;
+		this.clockDrift = clockDrift;
+		nextLattice = null;
+		neighbourCountsStale = true;
+		dirtyTiles.markAll();
+		recountPopulations();
+		this.events = events;
+	}
+
+	/**
+	 * Return an array of States representing the adjacent states of a given x,y in the lattice: one per neighbour of the neighbourhood, in its order.
+	 * Under open boundaries edge cells have fewer; otherwise a cell can appear more than once on lattices narrower than the neighbourhood.
+	 * On a contact network, one per neighbour of node x in increasing order.
 	 * @param x X position of the agent in the lattice
 	 * @param y Y position of the agent in the lattice
 	 * @return
 	 */
 	public State[] getAdjacentStates(int x, int y) {
-		State leftState = null;
-		State rightState = null;
-		State bottomState = null;
-		State topState = null;
+		if (network != null) {
+			int[] offsets = network.getOffsets();
+			int[] targets = network.getTargets();
+			State[] adjacentStates = new State[offsets[x + 1] - offsets[x]];
+			for (int i = 0; i < adjacentStates.length; i++) {
+				adjacentStates[i] = State.fromCode(lattice.get(targets[offsets[x] + i]));
+			}
+			return adjacentStates;
+		}
+		//fill the slots in kernel order, overwriting empty ones, then drop the overwritten tail
+		State[] adjacentStates = new State[neighbourOffsets.length];
 		int stateCount = 0;
-		int statesFilled = 0;
-
-		if (x == 0) {
-			//fill rightState only
-			rightState = agents[y][x+1];
-			stateCount += 1;
-		} else if (x == width-1){
-			//fill leftState only
-			leftState = agents[y][x-1];
-			stateCount += 1;
-		} else{
-			//fill both leftState and rightState
-			leftState = agents[y][x-1];
-			rightState = agents[y][x+1];
-			stateCount += 2;
-		}
-
-		if (y == 0) {
-			//fill topState only
-			topState = agents[y+1][x];
-			stateCount += 1;
-		} else if (y == height-1) {
-			//fill bottomState only
-			bottomState = agents[y-1][x];
-			stateCount += 1;
+		for (int k = 0; k < neighbourOffsets.length; k++) {
+			int a = neighbourColumns[k];
+			int b = neighbourRows[k];
+			adjacentStates[stateCount] = State.fromCode(lattice.get(rows.targets[b][y] + columns.targets[a][x]));
+			stateCount += columns.weights[a][x] * rows.weights[b][y];
+		}
+		return stateCount == adjacentStates.length ? adjacentStates : Arrays.copyOf(adjacentStates, stateCount);
+	}
+
+	/**
+	 * Return the number of infected neighbours of a given x,y in the lattice, each counted by its weight in the neighbourhood.
+	 * @param x X position of the agent in the lattice
+	 * @param y Y position of the agent in the lattice
+	 * @return
+	 */
+	public int getInfectedNeighbourCount(int x, int y) {
+		ensureNeighbourCounts();
+		return infectedNeighbours[index(x,y)];
+	}
+
+	/**
+	 * Sets the cell at a given index to a new state, keeping the infected neighbour counts of its neighbours up to date.
+	 * All transitions of single cells should pass through here.
+	 */
+	private void setState(int index, int x, int y, int state) {
+		int previous = lattice.get(index);
+		if (previous == state) {
+			return;
+		}
+		lattice.set(index, state);
+		if (!concurrentUpdate) {
+			populations[previous]--;
+			populations[state]++;
+			dirtyTiles.mark(x, y);
+		}
+		if (events != null) {
+			int count = infectedNeighbours[index];
+			events.remove(index, previous, count);
+			events.add(index, state, count);
+		}
+		if (previous == Lattice.INFECTED) {
+			addToNeighbours(index, x, y, -1);
+		} else if (state == Lattice.INFECTED) {
+			addToNeighbours(index, x, y, 1);
+		}
+	}
+
+	/**
+	 * Adds delta, times the neighbour's weight, to the infected neighbour count of every cell which has the given cell in one of its neighbour slots.
+	 * Near the edges each slot can be filled from up to two cells along each axis; missing ones point back at the cell itself
+	 * with weight 0, so every boundary takes the same branch-free path.
+	 */
+	private void addToNeighbours(int index, int x, int y, int delta) {
+		if (network != null) {
+			addToContacts(index, delta);
+		} else if (blocked) {
+			addToNeighboursInBlocks(index, x, y, delta);
+		} else if (columns.interior[x] & rows.interior[y]) {
+			int[] offsets = neighbourOffsets;
+			int[] weights = neighbourWeights;
+			for (int k = 0; k < offsets.length; k++) {
+				addToCount(index - offsets[k], delta * weights[k]);
+			}
 		} else {
-			//fill both bottomState and topState
-			topState = agents[y+1][x];
-			bottomState = agents[y-1][x];
-			stateCount += 2;
+			addToNeighboursNearEdge(x, y, delta);
+		}
+	}
+
+	/**
+	 * The part of addToNeighbours for cells near the edges, kept apart so that the interior path stays small enough to inline.
+	 */
+	private void addToNeighboursNearEdge(int x, int y, int delta) {
+		for (int k = 0; k < neighbourOffsets.length; k++) {
+			int a = neighbourColumns[k];
+			int b = neighbourRows[k];
+			int weight = delta * neighbourWeights[k];
+			int column = columns.sources[a][x];
+			int otherColumn = columns.otherSources[a][x];
+			int columnWeight = columns.sourceWeights[a][x];
+			int otherColumnWeight = columns.otherSourceWeights[a][x];
+			int row = rows.sources[b][y];
+			int otherRow = rows.otherSources[b][y];
+			int rowWeight = rows.sourceWeights[b][y];
+			int otherRowWeight = rows.otherSourceWeights[b][y];
+			addToCount(row + column, weight * rowWeight * columnWeight);
+			addToCount(row + otherColumn, weight * rowWeight * otherColumnWeight);
+			addToCount(otherRow + column, weight * otherRowWeight * columnWeight);
+			addToCount(otherRow + otherColumn, weight * otherRowWeight * otherColumnWeight);
+		}
+	}
+
+	/**
+	 * The part of addToNeighbours for cells laid out in blocks, where neighbours are not at fixed flat offsets:
+	 * interior cells find them by index arithmetic, and the rest go through the edge path.
+	 */
+	private void addToNeighboursInBlocks(int index, int x, int y, int delta) {
+		if (!(columns.interior[x] & rows.interior[y])) {
+			addToNeighboursNearEdge(x, y, delta);
+			return;
+		}
+		int radius = columns.radius;
+		for (int k = 0; k < neighbourWeights.length; k++) {
+			addToCount(cellIndex.neighbour(index, radius - neighbourColumns[k], radius - neighbourRows[k]), delta * neighbourWeights[k]);
+		}
+	}
+
+	/**
+	 * The part of addToNeighbours for contact networks: every node in the cell's row of the network has the cell as a neighbour.
+	 */
+	private void addToContacts(int node, int delta) {
+		int[] targets = network.getTargets();
+		int end = network.getOffsets()[node + 1];
+		for (int i = network.getOffsets()[node]; i < end; i++) {
+			addToCount(targets[i], delta);
+		}
+	}
+
+	/**
+	 * Adds delta to the infected neighbour count of a single cell.
+	 */
+	private void addToCount(int index, int delta) {
+		int count = infectedNeighbours[index] += delta;
+		if (events != null) {
+			events.countChanged(index, lattice.get(index), count, delta);
+		}
+	}
+
+	/**
+	 * Return the total weight of the infected neighbours of the cell at index (x,y) in the given lattice.
+	 * Interior cells use flat index offsets, or the axis tables if the cells lie in blocks; cells near the edges go through the boundary tables.
+	 */
+	int countInfectedNeighbours(Lattice lattice, int index, int x, int y) {
+		if (network != null) {
+			return countInfectedContacts(lattice, index);
 		}
+		if (!(columns.interior[x] & rows.interior[y])) {
+			return countInfectedNeighboursNearEdge(lattice, x, y);
+		}
+		if (blocked) {
+			return countInfectedNeighboursInBlocks(lattice, index);
+		}
+		int count = 0;
+		for (int k = 0; k < neighbourOffsets.length; k++) {
+			count += neighbourWeights[k] * infected(lattice.get(index + neighbourOffsets[k]));
+		}
+		return count;
+	}
+
+	/**
+	 * The part of countInfectedNeighbours for cells near the edges, kept apart so that the interior path stays small enough to inline.
+	 */
+	private int countInfectedNeighboursNearEdge(Lattice lattice, int x, int y) {
+		int count = 0;
+		for (int k = 0; k < neighbourOffsets.length; k++) {
+			int a = neighbourColumns[k];
+			int b = neighbourRows[k];
+			count += neighbourWeights[k] * columns.weights[a][x] * rows.weights[b][y]
+					* infected(lattice.get(rows.targets[b][y] + columns.targets[a][x]));
+		}
+		return count;
+	}
+
+	/**
+	 * The part of countInfectedNeighbours for interior cells laid out in blocks.
+	 */
+	private int countInfectedNeighboursInBlocks(Lattice lattice, int index) {
+		int radius = columns.radius;
+		int count = 0;
+		for (int k = 0; k < neighbourWeights.length; k++) {
+			count += neighbourWeights[k] * infected(lattice.get(cellIndex.neighbour(index, neighbourColumns[k] - radius, neighbourRows[k] - radius)));
+		}
+		return count;
+	}
+
+	/**
+	 * The part of countInfectedNeighbours for contact networks: a walk along the node's row of the network.
+	 */
+	private int countInfectedContacts(Lattice lattice, int node) {
+		int[] targets = network.getTargets();
+		int end = network.getOffsets()[node + 1];
+		int count = 0;
+		for (int i = network.getOffsets()[node]; i < end; i++) {
+			count += infected(lattice.get(targets[i]));
+		}
+		return count;
+	}
+
+	/**
+	 * Return the chance that a susceptible cell under the given infection pressure is infected in one attempt.
+	 */
+	double infectionChance(int pressure) {
+		return SIRSRules.infectionChance(pressure, neighbourhood.getSaturation(), infectionProbability);
+	}
 
+	/**
+	 * Return 1 if the code is INFECTED, otherwise 0, without branching.
+	 */
+	private static int infected(int code) {
+		return ((code ^ Lattice.INFECTED) - 1) >>> 31;
+	}
 
+	/**
+	 * Fills the cell index and neighbour tables for the current size, layout, boundary and neighbourhood. Contact networks need no neighbour tables,
+	 * and keep their nodes in order.
+	 */
+	private void buildNeighbourTables() {
+		if (network != null) {
+			cellIndex = new CellIndex(CellLayout.ROWS, width, height);
+			blocked = false;
+			return;
+		}
+		cellIndex = new CellIndex(layout, width, height);
+		blocked = !cellIndex.isRowMajor();
+		int radius = neighbourhood.getRadius();
+		columns = new NeighbourAxis(boundary, width, cellIndex.columnOffsets, radius);
+		rows = new NeighbourAxis(boundary, height, cellIndex.rowOffsets, radius);
+		int size = neighbourhood.size();
+		neighbourOffsets = new int[size];
+		neighbourWeights = new int[size];
+		neighbourColumns = new int[size];
+		neighbourRows = new int[size];
+		for (int k = 0; k < size; k++) {
+			neighbourOffsets[k] = neighbourhood.getDy(k) * width + neighbourhood.getDx(k);
+			neighbourWeights[k] = neighbourhood.getWeight(k);
+			neighbourColumns[k] = neighbourhood.getDx(k) + radius;
+			neighbourRows[k] = neighbourhood.getDy(k) + radius;
+		}
+		boxRows = null;
+	}
 
-		State[] adjacentStates = new State[stateCount];
+	/**
+	 * Return true if counts are rebuilt with sliding windows rather than by visiting every neighbour of every cell.
+	 */
+	private boolean usesBoxSums() {
+		return neighbourhood.isBox() && neighbourhood.getRadius() >= BOX_SUM_RADIUS;
+	}
 
-		if (leftState != null) {
-			adjacentStates[statesFilled] = leftState;
-			statesFilled++;
+	/**
+	 * Rebuilds the infected neighbour counts if a bulk update has left them stale.
+	 */
+	private void ensureNeighbourCounts() {
+		if (neighbourCountsStale) {
+			rebuildNeighbourCounts();
 		}
+	}
 
-		if (rightState != null) {
-			adjacentStates[statesFilled] = rightState;
-			statesFilled++;
+	/**
+	 * Recalculates the infected neighbour count of every cell from the lattice.
+	 * Used after bulk changes which bypass setState.
+	 */
+	private void rebuildNeighbourCounts() {
+		if (usesBoxSums()) {
+			rebuildBoxCounts();
+		} else {
+			for (int i = 0; i < height; i++) {
+				for (int j = 0; j < width; j++) {
+					int index = index(j,i);
+					infectedNeighbours[index] = (short) countInfectedNeighbours(lattice, index, j, i);
+				}
+			}
 		}
+		neighbourCountsStale = false;
+	}
 
-		if (topState != null) {
-			adjacentStates[statesFilled] = topState;
-			statesFilled++;
+	/**
+	 * Recalculates the counts of a box neighbourhood in time independent of its radius, by sliding a window along each row
+	 * to sum the infected cells within the radius, then sliding one down the columns of those sums. The padded boundary tables
+	 * supply the cells beyond the edges. The cell itself is in the box, so is taken off at the end.
+	 * Row sums are kept at the flat index of their cell, so both passes work under any layout.
+	 */
+	private void rebuildBoxCounts() {
+		int window = 2 * neighbourhood.getRadius();
+		if (boxRows == null) {
+			boxRows = new int[width * height];
 		}
+		int[] columnOffsets = cellIndex.columnOffsets;
+		for (int y = 0; y < height; y++) {
+			int row = cellIndex.rowOffsets[y];
+			int sum = 0;
+			for (int p = 0; p < window; p++) {
+				sum += columns.paddedWeights[p] * infected(lattice.get(row + columns.padded[p]));
+			}
+			for (int x = 0; x < width; x++) {
+				sum += columns.paddedWeights[x + window] * infected(lattice.get(row + columns.padded[x + window]));
+				boxRows[row + columnOffsets[x]] = sum;
+				sum -= columns.paddedWeights[x] * infected(lattice.get(row + columns.padded[x]));
+			}
+		}
+		int[] sums = new int[width];
+		for (int p = 0; p < window; p++) {
+			addBoxRow(sums, p, 1);
+		}
+		for (int y = 0; y < height; y++) {
+			addBoxRow(sums, y + window, 1);
+			int row = cellIndex.rowOffsets[y];
+			for (int x = 0; x < width; x++) {
+				int index = row + columnOffsets[x];
+				infectedNeighbours[index] = (short) (sums[x] - infected(lattice.get(index)));
+			}
+			addBoxRow(sums, y, -1);
+		}
+	}
 
-		if (bottomState != null) {
-			adjacentStates[statesFilled] = bottomState;
-			statesFilled++;
+	/**
+	 * Adds sign times the row sums at a padded row position to the column sums.
+	 */
+	private void addBoxRow(int[] sums, int position, int sign) {
+		if (rows.paddedWeights[position] != 0) {
+			int start = rows.padded[position];
+			int[] columnOffsets = cellIndex.columnOffsets;
+			for (int x = 0; x < width; x++) {
+				sums[x] += sign * boxRows[start + columnOffsets[x]];
+			}
 		}
+	}
 
-		return adjacentStates;		
+	/**
+	 * Return the number of cells currently in the given state.
+	 * Maintained as cells change, so this is O(1) and needs no scan of the lattice.
+	 * @param state
+	 * @return
+	 */
+	public int getPopulation(State state) {
+		return populations[state.ordinal()];
+	}
+
+	/**
+	 * Recounts the population of each state from the lattice, a word at a time.
+	 * Used after bulk updates, which are cheaper to recount afterwards than to track cell by cell.
+	 */
+	private void recountPopulations() {
+		populations[Lattice.INFECTED] = lattice.count(Lattice.INFECTED);
+		populations[Lattice.RECOVERED] = lattice.count(Lattice.RECOVERED);
+		populations[Lattice.SUSCEPTIBLE] = lattice.count(Lattice.SUSCEPTIBLE);
+		populations[Lattice.IMMUNE] = lattice.size() - populations[Lattice.INFECTED] - populations[Lattice.RECOVERED] - populations[Lattice.SUSCEPTIBLE];
 	}
 
 	/**
@@ -419,7 +1300,7 @@ public class SIRSModel {
 	 * @return
 	 */
 	public State getState(int x, int y) {
-		return agents[y][x];
+		return State.fromCode(lattice.get(index(x,y)));
 	}
 
 
@@ -441,25 +1322,30 @@ public class SIRSModel {
 
 
 	/**
-	 * Sets up the lattice to its initial state by making all sites susceptible, then applying number of S,I and R sites based on proportions.
+	 * Sets up the lattice to its initial state: exactly immuneProportion of the sites immune and infectedProportion infected
+	 * (or as many as remain once the immune are placed), the rest susceptible, in a random arrangement: uniform on small lattices,
+	 * and on large ones uniform within each stripe of LatticeFill, with the split between stripes approximated.
+	 * Runs in linear time, in parallel on large lattices, and depends only on the random source, not on getParallelism().
 	 */
 	public void reset() {
+		int cells = width * height;
 		ticks = 0;
-		int immuneCount = (int) ((width * height) * immuneProportion);
-		int infectedCount = (int)((width * height) * infectedProportion);
-		for (int i = 0; i < height; i++) {
-			for (int j = 0; j < width; j++) {
-				agents[i][j] = State.SUSCEPTIBLE;
-			}
-		}
-
-		for (int i = 0; i < infectedCount; i++) {
-			this.infectRandomCell();
-		}
-		
-		for (int i = 0; i < immuneCount; i++) {
-			this.immunizeRandomCell();
+		clockDrift = 0;
+		events = null;
+		int immuneCount = (int) Math.min(cells, (long) (cells * immuneProportion));
+		int infectedCount = (int) Math.min(cells - immuneCount, (long) (cells * infectedProportion));
+		LatticeFill fill = new LatticeFill(lattice, infectedCount, immuneCount, random);
+		if (cells >= LatticeFill.PARALLEL_CELLS) {
+			getPool().invoke(fill);
+		} else {
+			fill.fill();
 		}
+		dirtyTiles.markAll();
+		neighbourCountsStale = true;
+		Arrays.fill(populations, 0);
+		populations[Lattice.INFECTED] = infectedCount;
+		populations[Lattice.IMMUNE] = immuneCount;
+		populations[Lattice.SUSCEPTIBLE] = cells - infectedCount - immuneCount;
 	}
 
 	/**
@@ -487,10 +1373,11 @@ public class SIRSModel {
 	}
 
 	/**
-	 * Sets the size of a square lattice, and re-initialises it.
+	 * Sets the size of a square lattice, and re-initialises it. A model on a contact network moves onto the lattice.
 	 * @param size
 	 */
 	public void setSize(int size) {
+		network = null;
 		width = size;
 		height = size;
 		initialise();
@@ -0,0 +1,57 @@
+package sirs;
+
+/**
+ * The transition rules of a single random sequential attempt, and the geometric skip over attempts which cannot change anything,
+ * shared by SIRSModel and ChunkedSIRSModel so that both engines follow exactly the same dynamics and draw the same random numbers.
+ * @author Ross
+ *
+ */
+final class SIRSRules {
+	private SIRSRules() {
+	}
+
+	/**
+	 * Return the state a cell moves to in one attempt, which is its own state if it does not change.
+	 * A susceptible cell is infected with infectionChance(pressure), an infected cell recovers with the recovery probability
+	 * and a recovered cell relapses with the relapse probability; immune cells never change.
+	 * Draws one random number, except for immune cells and susceptible cells under no pressure, which draw none.
+	 * @param actor Code of the cell
+	 * @param pressure Total weight of the cell's infected neighbours; only read for susceptible cells
+	 * @param saturation Pressure from which a susceptible cell is infected with the full infection probability
+	 */
+	static int attempt(int actor, int pressure, int saturation, double infectionProbability, double recoveryProbability, double relapseProbability,
+			RandomSource random) {
+		if (actor == Lattice.SUSCEPTIBLE) {
+			if (pressure != 0 && random.nextDouble() < infectionChance(pressure, saturation, infectionProbability)) {
+				return Lattice.INFECTED;
+			}
+		} else if (actor == Lattice.RECOVERED) {
+			if (random.nextDouble() < relapseProbability) {
+				return Lattice.SUSCEPTIBLE;
+			}
+		} else if (actor == Lattice.INFECTED) {
+			if (random.nextDouble() < recoveryProbability) {
+				return Lattice.RECOVERED;
+			}
+		}
+		return actor;
+	}
+
+	/**
+	 * Return the chance that a susceptible cell under the given infection pressure is infected in one attempt.
+	 */
+	static double infectionChance(int pressure, int saturation, double infectionProbability) {
+		return infectionProbability * Math.min(pressure, saturation) / saturation;
+	}
+
+	/**
+	 * Return the number of attempts up to and including the first success, where each attempt succeeds with the given probability.
+	 */
+	static long geometric(double probability, RandomSource random) {
+		if (probability >= 1) {
+			return 1;
+		}
+		double u = 1 - random.nextDouble();
+		return 1 + (long) (Math.log(u) / Math.log1p(-probability));
+	}
+}
@@ -0,0 +1,1448 @@
+package sirs;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Self contained checks of the invariants the simulator relies on, run without a test framework:
+ * each check compares a fast path with a slow, obviously correct recount or with a second run that must agree with it.
+ * Prints each failure and a summary, and exits with status 1 if anything failed.
+ * @author Ross
+ *
+ */
+public class SelfTest {
+	private static final int[][] SIZES = {{1, 1}, {1, 9}, {7, 5}, {16, 16}, {33, 20}, {64, 48}};
+	private static final int SWEEPS = 3;
+	private static final Neighbourhood[] NEIGHBOURHOODS = {Neighbourhood.vonNeumann(), Neighbourhood.moore(), Neighbourhood.vonNeumann(2),
+			Neighbourhood.moore(2), Neighbourhood.weighted(new int[][] {{0, 1, 0}, {2, 0, 2}, {0, 1, 0}}, 3)};
+
+	private int checks;
+	private int failures;
+
+	public static void main(String[] args) throws IOException {
+		SelfTest test = new SelfTest();
+		test.checkPackedLattice();
+		test.checkNeighbourCounts();
+		test.checkRandomSource();
+		test.checkParallelUpdate();
+		test.checkCheckerboard();
+		test.checkKinetic();
+		test.checkActive();
+		test.checkPopulations();
+		test.checkBatchRunner();
+		test.checkParameterSweep();
+		test.checkPopulationLogger();
+		test.checkTimeSeries();
+		test.checkCheckpoint();
+		test.checkRaster();
+		test.checkDirtyTiles();
+		test.checkSnapshots();
+		test.checkSimulationLoop();
+		test.checkLatticeFill();
+		test.checkExporter();
+		test.checkBoundaries();
+		test.checkNeighbourhoods();
+		test.checkNetwork();
+		test.checkChunked();
+		test.checkLayouts();
+		System.out.println(test.checks + " checks, " + test.failures + " failed");
+		if (test.failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Records the outcome of a check, printing it if it failed.
+	 */
+	private void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAILED: " + description);
+		}
+	}
+
+	/**
+	 * Random writes to packed lattices of sizes either side of a word boundary must read back as from an int[], and count and copy alike.
+	 */
+	private void checkPackedLattice() {
+		RandomSource random = new Xoshiro256(1);
+		for (int size : new int[] {1, 31, 32, 33, 1000}) {
+			PackedLattice lattice = new PackedLattice(size);
+			int[] codes = new int[size];
+			for (int i = 0; i < 4 * size; i++) {
+				int index = random.nextInt(size);
+				int state = random.nextInt(4);
+				lattice.set(index, state);
+				codes[index] = state;
+			}
+			boolean same = true;
+			for (int i = 0; i < size; i++) {
+				same &= lattice.get(i) == codes[i];
+			}
+			check(same, "packed lattice of " + size + " cells reads back what was written");
+			for (int state = 0; state < 4; state++) {
+				int expected = 0;
+				for (int code : codes) {
+					expected += code == state ? 1 : 0;
+				}
+				check(lattice.count(state) == expected, "packed lattice of " + size + " cells counts code " + state);
+			}
+			PackedLattice copy = new PackedLattice(size);
+			copy.copyFrom(lattice);
+			check(Arrays.equals(copy.getWords(), lattice.getWords()), "packed lattice of " + size + " cells copies");
+			lattice.fill(Lattice.INFECTED);
+			check(lattice.count(Lattice.INFECTED) == size, "packed lattice of " + size + " cells fills");
+		}
+	}
+
+	/**
+	 * Sequential updates must keep every infected neighbour count equal to a recount, as must infecting and immunizing cells directly.
+	 */
+	private void checkNeighbourCounts() {
+		long seed = 1;
+		for (int[] size : SIZES) {
+			SIRSModel model = new SIRSModel(size[0], size[1], 0.8, 0.3, 0.3, 0.1, 0.3, seed++, 1);
+			String name = size[0] + "x" + size[1] + " sequential";
+			//build the counts, so that the updates must keep them up to date
+			model.getInfectedNeighbourCount(0, 0);
+			for (int i = 0; i < SWEEPS; i++) {
+				model.sweep(UpdateScheme.SEQUENTIAL);
+				checkCounts(model, name + " sweep " + i);
+			}
+			model.infectRandomCell();
+			model.immunizeRandomCell();
+			checkCounts(model, name + " after infecting and immunizing");
+			boolean adjacentMatch = true;
+			for (int y = 0; y < model.getHeight(); y++) {
+				for (int x = 0; x < model.getWidth(); x++) {
+					int infected = 0;
+					for (State state : model.getAdjacentStates(x, y)) {
+						infected += state == State.INFECTED ? 1 : 0;
+					}
+					adjacentMatch &= infected == model.getInfectedNeighbourCount(x, y);
+				}
+			}
+			check(adjacentMatch, name + ": getAdjacentStates agrees with the counts");
+		}
+	}
+
+	/**
+	 * Compares the infected neighbour counts of a model with a recount from its cells.
+	 */
+	private void checkCounts(SIRSModel model, String name) {
+		int[] pressures = bruteForcePressures(model);
+		boolean countsMatch = true;
+		for (int y = 0; y < model.getHeight(); y++) {
+			for (int x = 0; x < model.getWidth(); x++) {
+				countsMatch &= model.getInfectedNeighbourCount(x, y) == pressures[y * model.getWidth() + x];
+			}
+		}
+		check(countsMatch, name + ": infected neighbour counts match a recount");
+	}
+
+	/**
+	 * Return the total weight of the infected neighbours of every cell, at y * width + x, found from the neighbourhood and boundary alone.
+	 */
+	private static int[] bruteForcePressures(SIRSModel model) {
+		int width = model.getWidth();
+		int height = model.getHeight();
+		int[] pressures = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				pressures[y * width + x] = model.getNetwork() == null ? latticePressure(model, x, y) : contactPressure(model, x);
+			}
+		}
+		return pressures;
+	}
+
+	private static int latticePressure(SIRSModel model, int x, int y) {
+		Neighbourhood neighbourhood = model.getNeighbourhood();
+		Boundary boundary = model.getBoundary();
+		int pressure = 0;
+		for (int k = 0; k < neighbourhood.size(); k++) {
+			int nx = boundary.neighbour(x, neighbourhood.getDx(k), model.getWidth());
+			int ny = boundary.neighbour(y, neighbourhood.getDy(k), model.getHeight());
+			if (nx >= 0 && ny >= 0 && model.getState(nx, ny) == State.INFECTED) {
+				pressure += neighbourhood.getWeight(k);
+			}
+		}
+		return pressure;
+	}
+
+	/**
+	 * Random sources and models must repeat exactly for a seed, and split streams must be reproducible but distinct from their parent.
+	 */
+	private void checkRandomSource() {
+		Xoshiro256 a = new Xoshiro256(42);
+		Xoshiro256 b = new Xoshiro256(42);
+		Xoshiro256 c = new Xoshiro256(43);
+		boolean same = true;
+		boolean different = false;
+		for (int i = 0; i < 1000; i++) {
+			long value = a.nextLong();
+			same &= value == b.nextLong();
+			different |= value != c.nextLong();
+		}
+		check(same, "random source repeats for a seed");
+		check(different, "random source differs between seeds");
+
+		Xoshiro256 childA = a.split();
+		Xoshiro256 childB = b.split();
+		boolean childrenSame = true;
+		boolean childDiffers = false;
+		for (int i = 0; i < 1000; i++) {
+			long value = childA.nextLong();
+			childrenSame &= value == childB.nextLong();
+			childDiffers |= value != a.nextLong();
+			b.nextLong();
+		}
+		check(childrenSame, "split streams repeat for a seed");
+		check(childDiffers, "split stream differs from its parent");
+
+		long[] state = a.getState();
+		long first = a.nextLong();
+		a.setState(state);
+		check(a.nextLong() == first, "random source continues from a saved state");
+
+		boolean inRange = true;
+		for (int bound : new int[] {1, 7, 1 << 30}) {
+			for (int i = 0; i < 1000; i++) {
+				int value = a.nextInt(bound);
+				inRange &= value >= 0 && value < bound;
+			}
+		}
+		for (int i = 0; i < 1000; i++) {
+			double value = a.nextDouble();
+			inRange &= value >= 0 && value < 1;
+		}
+		check(inRange, "random draws fall within their bounds");
+
+		SIRSModel first1 = new SIRSModel(33, 20, 0.8, 0.3, 0.3, 0.1, 0.3, 9, 1);
+		SIRSModel second = new SIRSModel(33, 20, 0.8, 0.3, 0.3, 0.1, 0.3, 9, 1);
+		SIRSModel reseeded = new SIRSModel(33, 20, 0.8, 0.3, 0.3, 0.1, 0.3, 10, 1);
+		reseeded.setSeed(9);
+		reseeded.reset();
+		check(Arrays.deepEquals(first1.getAgents(), reseeded.getAgents()), "setSeed and reset reproduce a fresh model");
+		for (int i = 0; i < SWEEPS; i++) {
+			first1.sweep(UpdateScheme.SEQUENTIAL);
+			second.sweep(UpdateScheme.SEQUENTIAL);
+			reseeded.sweep(UpdateScheme.SEQUENTIAL);
+		}
+		check(Arrays.deepEquals(first1.getAgents(), second.getAgents()) && Arrays.deepEquals(first1.getAgents(), reseeded.getAgents()),
+				"models with the same seed follow the same trajectory");
+	}
+
+	/**
+	 * A synchronous sweep may only make transitions allowed by the lattice before it, and must not depend on the number of threads.
+	 */
+	private void checkParallelUpdate() {
+		long seed = 20;
+		for (int[] size : SIZES) {
+			SIRSModel model = new SIRSModel(size[0], size[1], 0.8, 0.3, 0.3, 0.1, 0.3, seed++, 2);
+			for (int i = 0; i < SWEEPS; i++) {
+				State[][] before = model.getAgents();
+				int[] pressures = bruteForcePressures(model);
+				model.sweep(UpdateScheme.PARALLEL);
+				State[][] after = model.getAgents();
+				boolean legal = true;
+				for (int y = 0; y < size[1]; y++) {
+					for (int x = 0; x < size[0]; x++) {
+						State from = before[y][x];
+						State to = after[y][x];
+						legal &= to == from || (from == State.SUSCEPTIBLE && to == State.INFECTED && pressures[y * size[0] + x] > 0)
+								|| (from == State.INFECTED && to == State.RECOVERED) || (from == State.RECOVERED && to == State.SUSCEPTIBLE);
+					}
+				}
+				check(legal, size[0] + "x" + size[1] + " parallel sweep " + i + ": every transition is allowed by the lattice before it");
+				checkCounts(model, size[0] + "x" + size[1] + " parallel sweep " + i);
+			}
+			model.shutdown();
+		}
+		checkThreadIndependence(CellLayout.ROWS, UpdateScheme.PARALLEL, 2);
+	}
+
+	/**
+	 * The same seed must give the same lattice after a number of sweeps, on one thread or several.
+	 * The lattice is large enough for reset() to fill it across the pool.
+	 */
+	private void checkThreadIndependence(CellLayout layout, UpdateScheme scheme, int sweeps) {
+		long[][] words = new long[2][];
+		int[] threads = {1, 4};
+		for (int i = 0; i < threads.length; i++) {
+			SIRSModel model = new SIRSModel(1100, 1000, 0.8, 0.3, 0.3, 0.1, 0.3, 4, threads[i]);
+			model.setLayout(layout);
+			model.reset();
+			for (int sweep = 0; sweep < sweeps; sweep++) {
+				model.sweep(scheme);
+			}
+			words[i] = ((PackedLattice) model.getLattice()).getWords().clone();
+			model.shutdown();
+		}
+		check(Arrays.equals(words[0], words[1]), layout + " " + scheme + " after " + sweeps + " sweeps: lattice is the same on 1 and 4 threads");
+	}
+
+	/**
+	 * Checkerboard sweeps update bands concurrently, and must still keep the counts right and not depend on the number of threads.
+	 */
+	private void checkCheckerboard() {
+		long seed = 30;
+		for (int[] size : SIZES) {
+			SIRSModel model = new SIRSModel(size[0], size[1], 0.8, 0.3, 0.3, 0.1, 0.3, seed++, 4);
+			model.getInfectedNeighbourCount(0, 0);
+			for (int i = 0; i < SWEEPS; i++) {
+				model.sweep(UpdateScheme.CHECKERBOARD);
+				checkCounts(model, size[0] + "x" + size[1] + " checkerboard sweep " + i);
+			}
+			check(model.getTicks() == (long) SWEEPS * size[0] * size[1], size[0] + "x" + size[1] + " checkerboard: a sweep is one attempt per cell");
+			model.shutdown();
+		}
+		checkThreadIndependence(CellLayout.ROWS, UpdateScheme.CHECKERBOARD, 2);
+	}
+
+	/**
+	 * Kinetic updates must keep the counts and the event sets up to date, and advance the clock by whole sweeps of ticks.
+	 */
+	private void checkKinetic() {
+		long seed = 40;
+		for (int[] size : SIZES) {
+			SIRSModel model = new SIRSModel(size[0], size[1], 0.8, 0.3, 0.3, 0.1, 0.3, seed++, 1);
+			String name = size[0] + "x" + size[1] + " kinetic";
+			for (int i = 0; i < SWEEPS; i++) {
+				model.sweep(UpdateScheme.KINETIC);
+				checkCounts(model, name + " sweep " + i);
+				checkEventSets(model, name + " sweep " + i);
+			}
+			check(model.getTicks() == (long) SWEEPS * size[0] * size[1], name + ": ticks advance by one attempt per cell per sweep");
+			check(model.getTime() > 0, name + ": the clock advances");
+		}
+	}
+
+	/**
+	 * Compares the event sets of a model, if it keeps them, with the cells able to change.
+	 */
+	private void checkEventSets(SIRSModel model, String name) {
+		EventSets events = model.getEventSets();
+		if (events == null) {
+			return;
+		}
+		int width = model.getWidth();
+		int height = model.getHeight();
+		int[] pressures = bruteForcePressures(model);
+		//0 for no set, then 1, 2 and 3 for the at risk, infected and recovered sets
+		int[] membership = new int[width * height];
+		boolean unique = addMembers(events.atRisk, 1, membership) & addMembers(events.infected, 2, membership)
+				& addMembers(events.recovered, 3, membership);
+		check(unique, name + ": each cell is in at most one event set, at most once");
+		boolean membersMatch = true;
+		CellIndex cellIndex = model.getCellIndex();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int state = model.getState(x, y).ordinal();
+				int expected = 0;
+				if (state == Lattice.SUSCEPTIBLE && pressures[y * width + x] > 0) {
+					expected = 1;
+				} else if (state == Lattice.INFECTED) {
+					expected = 2;
+				} else if (state == Lattice.RECOVERED) {
+					expected = 3;
+				}
+				membersMatch &= membership[cellIndex.index(x, y)] == expected;
+			}
+		}
+		check(membersMatch, name + ": event sets hold exactly the cells able to change");
+	}
+
+	/**
+	 * Marks the members of a set in membership with the given number.
+	 * @return false if a member was already marked
+	 */
+	private static boolean addMembers(CellSet set, int number, int[] membership) {
+		boolean unique = true;
+		for (int i = 0; i < set.size(); i++) {
+			unique &= membership[set.get(i)] == 0;
+			membership[set.get(i)] = number;
+		}
+		return unique;
+	}
+
+	/**
+	 * Active updates must keep the counts and active set up to date, and do nothing once no cell can change.
+	 */
+	private void checkActive() {
+		long seed = 50;
+		for (int[] size : SIZES) {
+			SIRSModel model = new SIRSModel(size[0], size[1], 0.8, 0.3, 0.3, 0.1, 0.3, seed++, 1);
+			String name = size[0] + "x" + size[1] + " active";
+			for (int i = 0; i < SWEEPS; i++) {
+				model.sweep(UpdateScheme.ACTIVE);
+				checkCounts(model, name + " sweep " + i);
+				checkEventSets(model, name + " sweep " + i);
+			}
+			check(model.getTicks() == (long) SWEEPS * size[0] * size[1], name + ": ticks advance by one attempt per cell per sweep");
+		}
+		SIRSModel quiet = new SIRSModel(20, 20, 0.8, 0.3, 0.3, 0, 0, 51, 1);
+		quiet.setImmuneProportion(0);
+		quiet.reset();
+		State[][] before = quiet.getAgents();
+		check(!quiet.updateActive() && Arrays.deepEquals(before, quiet.getAgents()), "active update does nothing without infected or recovered cells");
+	}
+
+	/**
+	 * The live population counters must match a count of the lattice after every scheme and every direct change.
+	 */
+	private void checkPopulations() {
+		long seed = 60;
+		for (int[] size : SIZES) {
+			for (UpdateScheme scheme : UpdateScheme.values()) {
+				SIRSModel model = new SIRSModel(size[0], size[1], 0.8, 0.3, 0.3, 0.1, 0.3, seed++, 2);
+				String name = size[0] + "x" + size[1] + " " + scheme;
+				for (int i = 0; i < SWEEPS; i++) {
+					model.sweep(scheme);
+					checkPopulations(model, name + " sweep " + i);
+				}
+				model.infectRandomCell();
+				model.immunizeRandomCell();
+				checkPopulations(model, name + " after infecting and immunizing");
+				model.setImmuneProportion(0.3);
+				model.reset();
+				checkPopulations(model, name + " after reset");
+				model.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Compares the population counters of a model with a count of its cells.
+	 */
+	private void checkPopulations(SIRSModel model, String name) {
+		int[] populations = new int[4];
+		for (int y = 0; y < model.getHeight(); y++) {
+			for (int x = 0; x < model.getWidth(); x++) {
+				populations[model.getState(x, y).ordinal()]++;
+			}
+		}
+		boolean populationsMatch = true;
+		for (State state : State.values()) {
+			populationsMatch &= model.getPopulation(state) == populations[state.ordinal()];
+		}
+		check(populationsMatch, name + ": populations match a recount");
+	}
+
+	/**
+	 * Two headless runs with the same seed must write the same output, one row per sweep after the header.
+	 */
+	private void checkBatchRunner() throws IOException {
+		File[] files = {File.createTempFile("sirs-selftest", ".csv"), File.createTempFile("sirs-selftest", ".csv")};
+		try {
+			for (File file : files) {
+				BatchRunner runner = new BatchRunner();
+				runner.configure(new String[] {"--size=40", "--seed=11", "--sweeps=20", "--scheme=kinetic", "--output=" + file.getPath()});
+				runQuietly(runner);
+			}
+			byte[] output = Files.readAllBytes(files[0].toPath());
+			check(Arrays.equals(output, Files.readAllBytes(files[1].toPath())), "batch runs with the same seed write the same output");
+			String[] lines = new String(output, "US-ASCII").split("\n");
+			check(lines[0].equals("sweep,ticks,time,susceptible,infected,recovered,immune"), "batch output starts with its header");
+			String[] last = lines[lines.length - 1].split(",");
+			check(Long.parseLong(last[0]) == lines.length - 2 && Long.parseLong(last[1]) == Long.parseLong(last[0]) * 1600,
+					"batch output has a row per sweep, each one attempt per cell");
+		} finally {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Runs a batch run with its timing report to standard error discarded.
+	 */
+	private static void runQuietly(BatchRunner runner) throws IOException {
+		java.io.PrintStream err = System.err;
+		System.setErr(new java.io.PrintStream(new ByteArrayOutputStream()));
+		try {
+			runner.run();
+		} finally {
+			System.setErr(err);
+		}
+	}
+
+	/**
+	 * A sweep must give the same table on one thread as on several, up to the order replicas are summed in.
+	 */
+	private void checkParameterSweep() throws IOException {
+		File[] files = {File.createTempFile("sirs-selftest", ".csv"), File.createTempFile("sirs-selftest", ".csv")};
+		try {
+			int[] threads = {1, 4};
+			for (int i = 0; i < files.length; i++) {
+				Properties settings = new Properties();
+				settings.setProperty("infection", "0.5:0.9:2");
+				settings.setProperty("relapse", "0.1:0.3:2");
+				settings.setProperty("size", "20");
+				settings.setProperty("replicas", "3");
+				settings.setProperty("warmup", "5");
+				settings.setProperty("sweeps", "10");
+				settings.setProperty("seed", "12");
+				settings.setProperty("threads", Integer.toString(threads[i]));
+				settings.setProperty("output", files[i].getPath());
+				ParameterSweep sweep = new ParameterSweep();
+				sweep.configure(settings);
+				sweep.run();
+				sweep.write();
+			}
+			String[] one = new String(Files.readAllBytes(files[0].toPath()), "US-ASCII").split("\n");
+			String[] several = new String(Files.readAllBytes(files[1].toPath()), "US-ASCII").split("\n");
+			check(one.length == 5 && several.length == 5, "sweep writes a header and a row per grid point");
+			boolean same = one.length == several.length;
+			for (int i = 1; same && i < one.length; i++) {
+				String[] a = one[i].split(",");
+				String[] b = several[i].split(",");
+				same &= a[2].equals(b[2]) && Integer.parseInt(a[2]) == 3;
+				for (int column = 0; column < a.length; column++) {
+					double x = Double.parseDouble(a[column]);
+					double y = Double.parseDouble(b[column]);
+					same &= Math.abs(x - y) <= 1e-5 * Math.max(1, Math.abs(x));
+				}
+			}
+			check(same, "sweep gives the same table on 1 and 4 threads");
+		} finally {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * The logger must write every record in order when it may block, account for every record it drops, and pass on writer failures.
+	 */
+	private void checkPopulationLogger() throws IOException {
+		RecordingSink sink = new RecordingSink(0, -1);
+		PopulationLogger logger = new PopulationLogger(sink, 4, 1, PopulationLogger.OverflowPolicy.BLOCK);
+		for (int i = 0; i < 1000; i++) {
+			logger.log(i, i, 2 * i, 3 * i, 4 * i);
+		}
+		logger.close();
+		boolean inOrder = sink.ticks.size() == 1000;
+		for (int i = 0; inOrder && i < 1000; i++) {
+			inOrder &= sink.ticks.get(i) == i;
+		}
+		check(inOrder && sink.closed && logger.getDropped() == 0, "blocking logger writes every record in order and closes its sink");
+
+		sink = new RecordingSink(0, -1);
+		logger = new PopulationLogger(sink, 16, 3, PopulationLogger.OverflowPolicy.BLOCK);
+		for (int i = 0; i < 30; i++) {
+			logger.log(i, 0, 0, 0, 0);
+		}
+		logger.close();
+		check(sink.ticks.size() == 10 && sink.ticks.get(1) == 3, "logger records every interval-th call");
+
+		sink = new RecordingSink(1, -1);
+		logger = new PopulationLogger(sink, 2, 1, PopulationLogger.OverflowPolicy.DROP);
+		for (int i = 0; i < 100; i++) {
+			logger.log(i, 0, 0, 0, 0);
+		}
+		logger.close();
+		check(sink.ticks.size() + logger.getDropped() == 100 && logger.getDropped() > 0, "dropping logger writes or counts every record");
+
+		sink = new RecordingSink(0, 5);
+		logger = new PopulationLogger(sink, 4, 1, PopulationLogger.OverflowPolicy.BLOCK);
+		boolean thrown = false;
+		for (int i = 0; i < 100000 && !thrown; i++) {
+			try {
+				logger.log(i, 0, 0, 0, 0);
+			} catch (IOException e) {
+				thrown = true;
+			}
+		}
+		check(thrown, "logger passes a write failure on to the producer");
+		boolean closeThrown = false;
+		try {
+			logger.close();
+		} catch (IOException e) {
+			closeThrown = true;
+		}
+		check(closeThrown && sink.closed, "closing a failed logger reports the failure and closes its sink");
+
+		sink = new RecordingSink(0, 5);
+		sink.unchecked = true;
+		logger = new PopulationLogger(sink, 4, 1, PopulationLogger.OverflowPolicy.BLOCK);
+		thrown = false;
+		for (int i = 0; i < 100000 && !thrown; i++) {
+			try {
+				logger.log(i, 0, 0, 0, 0);
+			} catch (IOException e) {
+				thrown = e.getCause() instanceof IllegalStateException;
+			}
+		}
+		check(thrown, "logger passes an unchecked sink failure on to a blocked producer");
+		closeThrown = false;
+		try {
+			logger.close();
+		} catch (IOException e) {
+			closeThrown = true;
+		}
+		check(closeThrown, "closing a logger whose sink threw an unchecked exception reports the failure");
+	}
+
+	/**
+	 * Sink keeping the ticks written to it, optionally slowly or failing after a number of records.
+	 */
+	private static class RecordingSink implements PopulationSink {
+		final List<Long> ticks = new ArrayList<Long>();
+		private final long delayMillis;
+		private final int failAfter;
+		boolean unchecked; //fail with an IllegalStateException rather than an IOException
+		volatile boolean closed;
+
+		/**
+		 * @param delayMillis Time each write takes
+		 * @param failAfter Records written before every write fails, or -1 to never fail
+		 */
+		RecordingSink(long delayMillis, int failAfter) {
+			this.delayMillis = delayMillis;
+			this.failAfter = failAfter;
+		}
+
+		@Override
+		public void write(long tick, int infected, int recovered, int susceptible, int immune) throws IOException {
+			if (failAfter >= 0 && ticks.size() >= failAfter) {
+				if (unchecked) {
+					throw new IllegalStateException("Sink bug");
+				}
+				throw new IOException("Disk full");
+			}
+			if (delayMillis > 0) {
+				try {
+					Thread.sleep(delayMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			ticks.add(tick);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	/**
+	 * Records written across a block boundary and a mid-block flush must read back with the header the writer was given,
+	 * whether or not a weight grid sits between the header and the records, and version 1 files must still read.
+	 */
+	private void checkTimeSeries() throws IOException {
+		SIRSModel plain = new SIRSModel(30, 20, 0.6, 0.2, 0.05, 0.1, 0.2, 6, 1);
+		SIRSModel weighted = new SIRSModel(30, 20, 0.6, 0.2, 0.05, 0.1, 0.2, 6, 1);
+		weighted.setBoundary(Boundary.PERIODIC);
+		weighted.setLayout(CellLayout.Z_ORDER);
+		weighted.setNeighbourhood(Neighbourhood.weighted(new int[][] {{0, 1, 0}, {2, 0, 2}, {0, 1, 0}}, 3));
+		File file = File.createTempFile("sirs-selftest", ".sirs");
+		try {
+			int records = TimeSeriesWriter.BLOCK_RECORDS + 17;
+			for (SIRSModel model : new SIRSModel[] {plain, weighted}) {
+				String name = "time series of a " + model.getBoundary() + " " + model.getNeighbourhood() + " model";
+				writeTimeSeries(file, model, records);
+				TimeSeriesReader reader = new TimeSeriesReader(file);
+				try {
+					checkTimeSeries(reader, records, name);
+					check(reader.getBoundary() == model.getBoundary() && reader.getLayout() == model.getLayout()
+							&& Arrays.deepEquals(reader.getNeighbourhood().toGrid(), model.getNeighbourhood().toGrid())
+							&& reader.getNeighbourhood().getSaturation() == model.getNeighbourhood().getSaturation(),
+							name + ": header holds the boundary, layout and neighbourhood");
+				} finally {
+					reader.close();
+				}
+			}
+
+			//a version 1 file is the same as a version 2 file of a default model, with none of the newer fields set
+			writeTimeSeries(file, plain, records);
+			RandomAccessFile patch = new RandomAccessFile(file, "rw");
+			try {
+				patch.seek(8);
+				patch.writeInt(Integer.reverseBytes(1));
+				patch.seek(TimeSeriesWriter.BOUNDARY_OFFSET);
+				patch.write(new byte[TimeSeriesWriter.HEADER_BYTES - TimeSeriesWriter.BOUNDARY_OFFSET]);
+			} finally {
+				patch.close();
+			}
+			TimeSeriesReader reader = new TimeSeriesReader(file);
+			try {
+				checkTimeSeries(reader, records, "version 1 time series");
+				check(reader.getBoundary() == Boundary.OPEN && reader.getLayout() == CellLayout.ROWS
+						&& reader.getNeighbourhood() == SIRSModel.DEFAULT_NEIGHBOURHOOD, "version 1 time series reads with the default settings");
+			} finally {
+				reader.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Writes records numbered from 0, flushing part way through the first block.
+	 */
+	private static void writeTimeSeries(File file, SIRSModel model, int records) throws IOException {
+		TimeSeriesWriter writer = new TimeSeriesWriter(file, model);
+		try {
+			for (int i = 0; i < records; i++) {
+				writer.write(i * 600L, i, 2 * i, 3 * i, 4 * i);
+				if (i == 100) {
+					writer.flush();
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Compares a time series written by writeTimeSeries with the records and model parameters given to it.
+	 */
+	private void checkTimeSeries(TimeSeriesReader reader, int records, String name) {
+		check(reader.size() == records, name + ": holds every record written");
+		check(reader.getWidth() == 30 && reader.getHeight() == 20 && reader.getSeed() == 6
+				&& reader.getInfectionProbability() == 0.6 && reader.getRecoveryProbability() == 0.2 && reader.getRelapseProbability() == 0.05
+				&& reader.getImmuneProportion() == 0.1 && reader.getInfectedProportion() == 0.2, name + ": header holds the model's parameters");
+		boolean same = true;
+		for (int i = 0; i < records; i++) {
+			same &= reader.get(TimeSeriesReader.Column.TICK, i) == i * 600L
+					&& reader.get(TimeSeriesReader.Column.INFECTED, i) == i
+					&& reader.get(TimeSeriesReader.Column.RECOVERED, i) == 2 * i
+					&& reader.get(TimeSeriesReader.Column.SUSCEPTIBLE, i) == 3 * i
+					&& reader.get(TimeSeriesReader.Column.IMMUNE, i) == 4 * i;
+		}
+		check(same, name + ": reads back every column of every record");
+	}
+
+	/**
+	 * A model loaded from a checkpoint must continue exactly as the saved one, including kinetic runs whose event set order matters.
+	 */
+	private void checkCheckpoint() throws IOException {
+		File file = File.createTempFile("sirs-selftest", ".ckpt");
+		try {
+			long seed = 7;
+			for (UpdateScheme scheme : UpdateScheme.values()) {
+				for (CellLayout layout : CellLayout.values()) {
+					SIRSModel saved = new SIRSModel(48, 40, 0.8, 0.3, 0.3, 0.1, 0.3, seed++, 2);
+					saved.setBoundary(Boundary.PERIODIC);
+					saved.setNeighbourhood(Neighbourhood.weighted(new int[][] {{0, 1, 0}, {2, 0, 2}, {0, 1, 0}}, 3));
+					saved.setLayout(layout);
+					saved.reset();
+					saved.sweep(scheme);
+					Checkpoint.save(saved, file);
+					SIRSModel loaded = Checkpoint.load(file);
+					String name = "checkpoint " + scheme + " " + layout;
+					check(Arrays.deepEquals(saved.getAgents(), loaded.getAgents()), name + ": restores the lattice");
+					check(loaded.getBoundary() == saved.getBoundary() && loaded.getLayout() == saved.getLayout()
+							&& Arrays.deepEquals(loaded.getNeighbourhood().toGrid(), saved.getNeighbourhood().toGrid()), name + ": restores the settings");
+					for (int i = 0; i < SWEEPS; i++) {
+						saved.sweep(scheme);
+						loaded.sweep(scheme);
+					}
+					check(Arrays.deepEquals(saved.getAgents(), loaded.getAgents()) && saved.getTicks() == loaded.getTicks()
+							&& saved.getTime() == loaded.getTime(), name + ": continues as the saved model");
+					saved.shutdown();
+					loaded.shutdown();
+				}
+			}
+			//larger than the buffer sections are streamed through, in words and in event set members
+			SIRSModel saved = new SIRSModel(2100, 2100, 0.8, 0.3, 0.3, 0.1, 0.3, seed, 1);
+			saved.updateKinetic();
+			Checkpoint.save(saved, file);
+			SIRSModel loaded = Checkpoint.load(file);
+			check(Arrays.equals(((PackedLattice) saved.getLattice()).getWords(), ((PackedLattice) loaded.getLattice()).getWords()),
+					"checkpoint restores a lattice larger than its buffer");
+			saved.sweep(UpdateScheme.KINETIC);
+			loaded.sweep(UpdateScheme.KINETIC);
+			check(Arrays.equals(((PackedLattice) saved.getLattice()).getWords(), ((PackedLattice) loaded.getLattice()).getWords()),
+					"checkpoint restores event sets larger than its buffer");
+		} finally {
+			file.delete();
+		}
+
+		File[] files = {File.createTempFile("sirs-selftest", ".csv"), File.createTempFile("sirs-selftest", ".csv"), File.createTempFile("sirs-selftest", ".ckpt")};
+		try {
+			String[] settings = {"--size=40", "--seed=8", "--scheme=kinetic", "--checkpoint-every=5"};
+			BatchRunner straight = new BatchRunner();
+			straight.configure(concat(settings, "--sweeps=30", "--output=" + files[0].getPath()));
+			runQuietly(straight);
+			BatchRunner first = new BatchRunner();
+			first.configure(concat(settings, "--sweeps=15", "--output=" + files[1].getPath(), "--checkpoint=" + files[2].getPath()));
+			runQuietly(first);
+			//resumes from the checkpoint it keeps replacing, as a run restarted in place does
+			BatchRunner restarted = new BatchRunner();
+			restarted.configure(concat(settings, "--sweeps=30", "--output=" + files[1].getPath(), "--checkpoint=" + files[2].getPath(),
+					"--restart=" + files[2].getPath()));
+			runQuietly(restarted);
+			check(Arrays.equals(Files.readAllBytes(files[0].toPath()), Files.readAllBytes(files[1].toPath())),
+					"a run restarted from the checkpoint it saves to writes the same output as a straight run");
+			check(!new File(files[2].getPath() + ".tmp").exists(), "saving a checkpoint leaves no temporary file");
+		} finally {
+			for (File each : files) {
+				each.delete();
+			}
+		}
+	}
+
+	private static String[] concat(String[] first, String... rest) {
+		String[] all = Arrays.copyOf(first, first.length + rest.length);
+		System.arraycopy(rest, 0, all, first.length, rest.length);
+		return all;
+	}
+
+	/**
+	 * Unpacking to pixels must give each cell's code, on one thread or across the pool, and the painted image each cell's colour.
+	 */
+	private void checkRaster() {
+		RandomSource random = new Xoshiro256(13);
+		for (int size : new int[] {1, 33, 100000, (1 << 21) + 5}) {
+			PackedLattice lattice = new PackedLattice(size);
+			for (int i = 0; i < size; i++) {
+				lattice.set(i, random.nextInt(4));
+			}
+			long[] words = lattice.getWords();
+			byte[] pixels = new byte[size];
+			new RasterFill(words, pixels, 0, words.length).fill();
+			byte[] pooled = new byte[size];
+			ForkJoinPool.commonPool().invoke(new RasterFill(words, pooled, 0, words.length));
+			boolean same = true;
+			for (int i = 0; i < size; i++) {
+				same &= pixels[i] == lattice.get(i);
+			}
+			check(same, size + " cells unpack to their codes");
+			check(Arrays.equals(pixels, pooled), size + " cells unpack the same across the pool");
+		}
+
+		for (CellLayout layout : CellLayout.values()) {
+			SIRSModel model = new SIRSModel(60, 40, 0.8, 0.3, 0.3, 0.1, 0.3, 14, 1);
+			model.setLayout(layout);
+			ModelComponent component = new ModelComponent(model);
+			component.setSize(600, 400);
+			checkPainted(component, model, layout + " full paint");
+		}
+	}
+
+	/**
+	 * Paints a component and compares the colour at the centre of every cell with the model.
+	 */
+	private void checkPainted(ModelComponent component, SIRSModel model, String name) {
+		BufferedImage image = new BufferedImage(component.getWidth(), component.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		component.paint(graphics);
+		graphics.dispose();
+		int cellWidth = component.getWidth() / model.getWidth();
+		int cellHeight = component.getHeight() / model.getHeight();
+		boolean same = true;
+		for (int y = 0; y < model.getHeight(); y++) {
+			for (int x = 0; x < model.getWidth(); x++) {
+				Color expected = colour(component, model.getState(x, y));
+				same &= image.getRGB(x * cellWidth + cellWidth / 2, y * cellHeight + cellHeight / 2) == expected.getRGB();
+			}
+		}
+		check(same, name + ": every cell is painted in its state's colour");
+	}
+
+	private static Color colour(ModelComponent component, State state) {
+		switch (state) {
+		case INFECTED:
+			return component.getInfectedColor();
+		case RECOVERED:
+			return component.getRecoveredColor();
+		case SUSCEPTIBLE:
+			return component.getSusceptibleColor();
+		default:
+			return component.getImmuneColor();
+		}
+	}
+
+	/**
+	 * Every cell changed by an update must lie in a tile marked dirty, and a frame which redraws only those tiles must show the model.
+	 */
+	private void checkDirtyTiles() {
+		for (CellLayout layout : CellLayout.values()) {
+			SIRSModel model = new SIRSModel(70, 50, 0.8, 0.3, 0.3, 0.1, 0.3, 15, 1);
+			model.setLayout(layout);
+			DirtyTiles dirty = model.getDirtyTiles();
+			dirty.clear();
+			State[][] before = model.getAgents();
+			for (int i = 0; i < 200; i++) {
+				model.updateSequential();
+			}
+			State[][] after = model.getAgents();
+			boolean[] marked = new boolean[dirty.getColumns() * dirty.getRows()];
+			for (int i = 0; i < dirty.size(); i++) {
+				marked[dirty.get(i)] = true;
+			}
+			boolean covered = !dirty.isAll();
+			for (int y = 0; y < 50; y++) {
+				for (int x = 0; x < 70; x++) {
+					if (before[y][x] != after[y][x]) {
+						covered &= marked[(y >>> DirtyTiles.TILE_SHIFT) * dirty.getColumns() + (x >>> DirtyTiles.TILE_SHIFT)];
+					}
+				}
+			}
+			check(covered, layout + ": every changed cell lies in a dirty tile");
+			dirty.mark(3, 3);
+			dirty.mark(4, 4);
+			int listed = dirty.size();
+			dirty.mark(5, 5);
+			check(dirty.size() == listed, layout + ": a tile marked twice is listed once");
+
+			ModelComponent component = new ModelComponent(model);
+			component.setSize(700, 500);
+			checkPainted(component, model, layout + " first frame");
+			for (int frame = 0; frame < 5; frame++) {
+				for (int i = 0; i < 100; i++) {
+					model.updateSequential();
+				}
+				component.updateSnapshot();
+				component.repaintChanged();
+				checkPainted(component, model, layout + " frame " + frame);
+			}
+		}
+	}
+
+	/**
+	 * The reader must get the latest published snapshot, nothing when none is new, and a list of changed tiles which
+	 * brings its previous copy up to date even when it skipped snapshots.
+	 */
+	private void checkSnapshots() {
+		for (CellLayout layout : CellLayout.values()) {
+			SIRSModel model = new SIRSModel(70, 50, 0.8, 0.3, 0.3, 0.1, 0.3, 16, 1);
+			model.setLayout(layout);
+			SnapshotBuffer buffer = new SnapshotBuffer();
+			check(buffer.take() == null, layout + ": nothing to take before the first publish");
+			int[] view = new int[70 * 50];
+			State[][] published = null;
+			int[] populations = new int[4];
+			boolean viewsMatch = true;
+			boolean latest = true;
+			for (int round = 0; round < 30; round++) {
+				int publishes = round % 3;
+				for (int p = 0; p < publishes; p++) {
+					for (int i = 0; i < 150; i++) {
+						model.updateSequential();
+					}
+					buffer.publish(model);
+					published = model.getAgents();
+					for (State state : State.values()) {
+						populations[state.ordinal()] = model.getPopulation(state);
+					}
+				}
+				LatticeSnapshot snapshot = buffer.take();
+				if (publishes == 0) {
+					latest &= snapshot == null;
+					continue;
+				}
+				latest &= snapshot != null;
+				if (snapshot == null) {
+					continue;
+				}
+				DirtyTiles changed = snapshot.getChanged();
+				for (int y = 0; y < 50; y++) {
+					for (int x = 0; x < 70; x++) {
+						int tile = (y >>> DirtyTiles.TILE_SHIFT) * changed.getColumns() + (x >>> DirtyTiles.TILE_SHIFT);
+						if (changed.isAll() || isListed(changed, tile)) {
+							view[y * 70 + x] = snapshot.getState(x, y).ordinal();
+						}
+					}
+				}
+				for (int y = 0; y < 50; y++) {
+					for (int x = 0; x < 70; x++) {
+						viewsMatch &= view[y * 70 + x] == published[y][x].ordinal() && snapshot.getState(x, y) == published[y][x];
+					}
+				}
+				for (State state : State.values()) {
+					latest &= snapshot.getPopulation(state) == populations[state.ordinal()];
+				}
+			}
+			check(latest, layout + ": each take returns the latest snapshot, or nothing if none is new");
+			check(viewsMatch, layout + ": redrawing only the changed tiles keeps a copy up to date");
+		}
+	}
+
+	private static boolean isListed(DirtyTiles tiles, int tile) {
+		for (int i = 0; i < tiles.size(); i++) {
+			if (tiles.get(i) == tile) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Fixed pacing runs a set batch per frame; frame budget pacing sizes batches to the measured cost of an update;
+	 * tasks run on the simulation thread; and nothing runs once stopped. Timing bounds are loose, to allow for busy machines.
+	 */
+	private void checkSimulationLoop() {
+		final AtomicInteger updates = new AtomicInteger();
+		final AtomicInteger frames = new AtomicInteger();
+		final AtomicReference<Thread> updateThread = new AtomicReference<Thread>();
+		SimulationLoop loop = new SimulationLoop(new SimulationLoop.Steps() {
+			@Override
+			public void update(int count) {
+				updateThread.set(Thread.currentThread());
+				long end = System.nanoTime() + count * 20000L;
+				while (System.nanoTime() < end) {
+					//each update costs 20 microseconds
+				}
+				updates.addAndGet(count);
+			}
+
+			@Override
+			public void frame() {
+				frames.incrementAndGet();
+			}
+		}, 20);
+		loop.setUpdatesPerFrame(7);
+		loop.start();
+		sleep(300);
+		loop.stop();
+		sleep(100);
+		check(frames.get() >= 3 && updates.get() == 7 * frames.get(), "fixed pacing runs the set number of updates per frame");
+		int stoppedAt = updates.get();
+		sleep(100);
+		check(updates.get() == stoppedAt, "a stopped loop runs no more updates");
+
+		final AtomicReference<Thread> taskThread = new AtomicReference<Thread>();
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				taskThread.set(Thread.currentThread());
+			}
+		});
+		sleep(100);
+		check(taskThread.get() != null && taskThread.get() == updateThread.get(), "tasks run on the simulation thread");
+
+		loop.setPacing(SimulationLoop.Pacing.FRAME_BUDGET);
+		loop.setFrameBudget(0.5);
+		loop.start();
+		sleep(500);
+		loop.stop();
+		int budgeted = loop.getLastUpdates();
+		//20 ms frames at half budget and 20 microseconds an update is 500 updates
+		check(budgeted >= 125 && budgeted <= 2000, "frame budget pacing sizes batches to the cost of an update: " + budgeted);
+
+		frames.set(0);
+		loop.setPacing(SimulationLoop.Pacing.MAX_THROUGHPUT);
+		loop.start();
+		sleep(300);
+		loop.stop();
+		check(frames.get() >= 3 && loop.getLastUpdates() > 7, "maximum throughput pacing still produces frames");
+		loop.shutdown();
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Filling must place exactly the requested numbers, and the same cells whether stripes are filled in turn or across the pool.
+	 */
+	private void checkLatticeFill() {
+		int[] sizes = {1, 100, SynchronousStep.STRIPE_CELLS, SynchronousStep.STRIPE_CELLS + 1, 100000, LatticeFill.PARALLEL_CELLS + 7};
+		double[][] proportions = {{0, 0}, {0.1, 0}, {0.3, 0.2}, {0.5, 0.5}, {1, 0}};
+		long seed = 17;
+		for (int size : sizes) {
+			for (double[] proportion : proportions) {
+				int infected = (int) (size * proportion[0]);
+				int immune = (int) Math.min(size - infected, (long) (size * proportion[1]));
+				PackedLattice sequential = new PackedLattice(size);
+				new LatticeFill(sequential, infected, immune, new Xoshiro256(seed)).fill();
+				PackedLattice pooled = new PackedLattice(size);
+				ForkJoinPool.commonPool().invoke(new LatticeFill(pooled, infected, immune, new Xoshiro256(seed)));
+				seed++;
+				String name = size + " cells, " + infected + " infected and " + immune + " immune";
+				check(sequential.count(Lattice.INFECTED) == infected && sequential.count(Lattice.IMMUNE) == immune
+						&& sequential.count(Lattice.SUSCEPTIBLE) == size - infected - immune, name + ": fill places exact numbers");
+				check(Arrays.equals(sequential.getWords(), pooled.getWords()), name + ": fill is the same across the pool");
+			}
+		}
+		SIRSModel model = new SIRSModel(123, 45, 0.8, 0.3, 0.3, 0.25, 0.1, 18, 1);
+		check(model.getPopulation(State.IMMUNE) == (int) (123 * 45 * 0.25) && model.getPopulation(State.INFECTED) == (int) (123 * 45 * 0.1),
+				"reset places exactly the immune and infected proportions");
+	}
+
+	/**
+	 * Every export format must list the cells row after row, whatever the layout, and a snapshot must export as its model does.
+	 */
+	private void checkExporter() throws IOException {
+		for (CellLayout layout : CellLayout.values()) {
+			SIRSModel model = new SIRSModel(40, 24, 0.8, 0.3, 0.3, 0.1, 0.3, 19, 1);
+			model.setLayout(layout);
+			model.sweep(UpdateScheme.SEQUENTIAL);
+			int width = model.getWidth();
+			int height = model.getHeight();
+			LatticeExporter exporter = new LatticeExporter(model);
+
+			StringBuilder text = new StringBuilder();
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					text.append(model.getState(x, y)).append(' ');
+				}
+				text.append('\n');
+			}
+			StringWriter written = new StringWriter();
+			exporter.writeText(written, "\n");
+			check(written.toString().equals(text.toString()), layout + ": text export lists the cells row by row");
+			check(model.toString().equals(text.toString().replace("\n", "\r\n")), layout + ": toString matches the text export");
+			check(model.toHTMLString().equals("<HTML>" + text.toString().replace("\n", "<BR>") + "</HTML>"), layout + ": HTML export wraps the text");
+
+			ByteArrayOutputStream pgm = new ByteArrayOutputStream();
+			exporter.writePgm(pgm);
+			ByteArrayOutputStream expectedPgm = new ByteArrayOutputStream();
+			expectedPgm.write(("P5\n" + width + " " + height + "\n3\n").getBytes("US-ASCII"));
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					expectedPgm.write(model.getState(x, y).ordinal());
+				}
+			}
+			check(Arrays.equals(pgm.toByteArray(), expectedPgm.toByteArray()), layout + ": PGM export holds each cell's code");
+
+			ByteArrayOutputStream pbm = new ByteArrayOutputStream();
+			exporter.writePbm(pbm, State.INFECTED);
+			ByteArrayOutputStream expectedPbm = new ByteArrayOutputStream();
+			expectedPbm.write(("P4\n" + width + " " + height + "\n").getBytes("US-ASCII"));
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x += 8) {
+					int bits = 0;
+					for (int k = 0; k < 8 && x + k < width; k++) {
+						bits |= model.getState(x + k, y) == State.INFECTED ? 0x80 >>> k : 0;
+					}
+					expectedPbm.write(bits);
+				}
+			}
+			check(Arrays.equals(pbm.toByteArray(), expectedPbm.toByteArray()), layout + ": PBM export marks the infected cells");
+
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			exporter.writePacked(packed);
+			PackedLattice rows = new PackedLattice(width * height);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					rows.set(y * width + x, model.getState(x, y).ordinal());
+				}
+			}
+			ByteBuffer expectedPacked = ByteBuffer.allocate(LatticeExporter.PACKED_HEADER_BYTES + rows.getWords().length * 8).order(ByteOrder.LITTLE_ENDIAN);
+			expectedPacked.putLong(LatticeExporter.PACKED_MAGIC).putInt(LatticeExporter.PACKED_VERSION).putInt(width).putInt(height);
+			expectedPacked.position(LatticeExporter.PACKED_HEADER_BYTES);
+			for (long word : rows.getWords()) {
+				expectedPacked.putLong(word);
+			}
+			check(Arrays.equals(packed.toByteArray(), expectedPacked.array()), layout + ": packed export holds the cells row by row");
+
+			SnapshotBuffer buffer = new SnapshotBuffer();
+			buffer.publish(model);
+			ByteArrayOutputStream fromSnapshot = new ByteArrayOutputStream();
+			new LatticeExporter(buffer.take()).writePacked(fromSnapshot);
+			check(Arrays.equals(fromSnapshot.toByteArray(), packed.toByteArray()), layout + ": a snapshot exports as its model");
+		}
+	}
+
+	/**
+	 * Boundaries must fill slots off the edge as documented, and every scheme must keep the counts right under each.
+	 */
+	private void checkBoundaries() {
+		check(Boundary.OPEN.neighbour(0, -1, 5) == -1 && Boundary.OPEN.neighbour(4, 1, 5) == -1 && Boundary.OPEN.neighbour(2, 1, 5) == 3,
+				"open boundary leaves slots off the edge empty");
+		check(Boundary.PERIODIC.neighbour(0, -1, 5) == 4 && Boundary.PERIODIC.neighbour(4, 1, 5) == 0 && Boundary.PERIODIC.neighbour(4, 12, 5) == 1,
+				"periodic boundary wraps around");
+		check(Boundary.REFLECTING.neighbour(0, -1, 5) == 1 && Boundary.REFLECTING.neighbour(4, 1, 5) == 3 && Boundary.REFLECTING.neighbour(0, -2, 1) == 0,
+				"reflecting boundary mirrors about the edge cells");
+		SIRSModel model = new SIRSModel(10, 10, 0.8, 0.3, 0.3, 0, 0.3, 21, 1);
+		check(model.getAdjacentStates(0, 0).length == 2, "open corner has two neighbours");
+		model.setBoundary(Boundary.PERIODIC);
+		check(model.getAdjacentStates(0, 0).length == 4, "periodic corner has four neighbours");
+		checkGrid(Boundary.values(), new Neighbourhood[] {Neighbourhood.vonNeumann()}, CellLayout.ROWS);
+	}
+
+	/**
+	 * Runs every scheme on every combination of size and the given boundaries and neighbourhoods, recounting after each sweep.
+	 */
+	private void checkGrid(Boundary[] boundaries, Neighbourhood[] neighbourhoods, CellLayout layout) {
+		long seed = 100;
+		for (int[] size : SIZES) {
+			for (Boundary boundary : boundaries) {
+				for (Neighbourhood neighbourhood : neighbourhoods) {
+					for (UpdateScheme scheme : UpdateScheme.values()) {
+						SIRSModel model = new SIRSModel(size[0], size[1], 0.8, 0.3, 0.3, 0.1, 0.3, seed++, 2);
+						model.setBoundary(boundary);
+						model.setNeighbourhood(neighbourhood);
+						model.setLayout(layout);
+						model.reset();
+						String name = size[0] + "x" + size[1] + " " + boundary + " " + neighbourhood + " " + layout + " " + scheme;
+						model.getInfectedNeighbourCount(0, 0);
+						for (int i = 0; i < SWEEPS; i++) {
+							model.sweep(scheme);
+							checkCounts(model, name + " sweep " + i);
+							checkPopulations(model, name + " sweep " + i);
+							checkEventSets(model, name + " sweep " + i);
+						}
+						model.shutdown();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Kernels must hold the documented cells and survive their text form, and every scheme must count them right under every boundary.
+	 */
+	private void checkNeighbourhoods() {
+		check(Neighbourhood.vonNeumann(2).size() == 12 && Neighbourhood.moore(2).size() == 24 && Neighbourhood.moore().size() == 8,
+				"kernels hold every cell within their radius");
+		boolean parsed = true;
+		for (Neighbourhood neighbourhood : new Neighbourhood[] {Neighbourhood.vonNeumann(), Neighbourhood.vonNeumann(3), Neighbourhood.moore(), Neighbourhood.moore(2)}) {
+			Neighbourhood copy = Neighbourhood.parse(neighbourhood.toString());
+			parsed &= Arrays.deepEquals(copy.toGrid(), neighbourhood.toGrid()) && copy.getSaturation() == neighbourhood.getSaturation();
+		}
+		check(parsed, "kernels parse back from their text form");
+		checkGrid(Boundary.values(), NEIGHBOURHOODS, CellLayout.ROWS);
+	}
+
+	/**
+	 * Networks must be simple, symmetric and sorted, and every scheme but checkerboard must count contacts right on them.
+	 */
+	private void checkNetwork() {
+		RandomSource random = new Xoshiro256(22);
+		ContactNetwork edges = ContactNetwork.fromEdges(5, new int[] {0, 1, 2, 2, 3, 4}, new int[] {1, 0, 2, 3, 4, 3}, 6);
+		check(edges.getEdgeCount() == 3 && edges.getDegree(2) == 1, "edges are merged and self loops dropped");
+		ContactNetwork regular = ContactNetwork.randomRegular(500, 4, random);
+		boolean regularDegrees = true;
+		for (int i = 0; i < regular.size(); i++) {
+			regularDegrees &= regular.getDegree(i) == 4;
+		}
+		check(regularDegrees, "random regular network has the given degree everywhere");
+		ContactNetwork[] networks = {edges, regular, ContactNetwork.erdosRenyi(500, 0.01, random), ContactNetwork.smallWorld(500, 6, 0.1, random)};
+		for (ContactNetwork network : networks) {
+			check(isSimpleAndSymmetric(network), network.size() + " node network is simple, symmetric and sorted");
+		}
+
+		for (UpdateScheme scheme : UpdateScheme.values()) {
+			SIRSModel model = new SIRSModel(regular, 0.8, 0.3, 0.3, 0.1, 0.3, 23, 2);
+			if (scheme == UpdateScheme.CHECKERBOARD) {
+				boolean thrown = false;
+				try {
+					model.sweep(scheme);
+				} catch (IllegalStateException e) {
+					thrown = true;
+				}
+				check(thrown, "checkerboard refuses a network");
+				continue;
+			}
+			model.getInfectedNeighbourCount(0, 0);
+			for (int i = 0; i < SWEEPS; i++) {
+				model.sweep(scheme);
+				checkCounts(model, "network " + scheme + " sweep " + i);
+				checkPopulations(model, "network " + scheme + " sweep " + i);
+				checkEventSets(model, "network " + scheme + " sweep " + i);
+			}
+			model.shutdown();
+		}
+	}
+
+	private static boolean isSimpleAndSymmetric(ContactNetwork network) {
+		int[] offsets = network.getOffsets();
+		int[] targets = network.getTargets();
+		for (int i = 0; i < network.size(); i++) {
+			for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+				int j = targets[k];
+				if (j == i || (k > offsets[i] && targets[k - 1] >= j) || Arrays.binarySearch(targets, offsets[j], offsets[j + 1], i) < 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return the number of infected contacts of a node.
+	 */
+	private static int contactPressure(SIRSModel model, int node) {
+		ContactNetwork network = model.getNetwork();
+		int pressure = 0;
+		for (int k = network.getOffsets()[node]; k < network.getOffsets()[node + 1]; k++) {
+			pressure += model.getState(network.getTargets()[k], 0) == State.INFECTED ? 1 : 0;
+		}
+		return pressure;
+	}
+
+	/**
+	 * A chunked lattice must read back as a dense one while packing uniform tiles away, and a chunked model must keep every
+	 * tile holding a cell able to change in its active set.
+	 */
+	private void checkChunked() {
+		RandomSource random = new Xoshiro256(24);
+		int width = 150;
+		int height = 130;
+		ChunkedLattice lattice = new ChunkedLattice(width, height, Lattice.SUSCEPTIBLE);
+		int[][] dense = new int[height][width];
+		for (int[] row : dense) {
+			Arrays.fill(row, Lattice.SUSCEPTIBLE);
+		}
+		for (int i = 0; i < 3000; i++) {
+			if (i % 500 == 0) {
+				int x = random.nextInt(width);
+				int y = random.nextInt(height);
+				int w = random.nextInt(100);
+				int h = random.nextInt(100);
+				int state = random.nextInt(4);
+				lattice.fill(x, y, w, h, state);
+				for (int j = y; j < Math.min(height, y + h); j++) {
+					for (int k = x; k < Math.min(width, x + w); k++) {
+						dense[j][k] = state;
+					}
+				}
+			}
+			int x = random.nextInt(width);
+			int y = random.nextInt(height);
+			int state = random.nextInt(4);
+			lattice.set(x, y, state);
+			dense[y][x] = state;
+		}
+		boolean same = true;
+		long[] counts = new long[4];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				same &= lattice.get(x, y) == dense[y][x];
+				counts[dense[y][x]]++;
+			}
+		}
+		check(same, "chunked lattice reads back as a dense one");
+		boolean counted = true;
+		for (int state = 0; state < 4; state++) {
+			counted &= lattice.count(state) == counts[state];
+		}
+		check(counted, "chunked lattice counts each code");
+		lattice.fill(0, 0, width, height, Lattice.RECOVERED);
+		check(lattice.getAllocatedTiles() == 0 && lattice.count(Lattice.RECOVERED) == (long) width * height, "a uniform chunked lattice stores no tiles");
+
+		long seed = 25;
+		for (Boundary boundary : Boundary.values()) {
+			for (Neighbourhood neighbourhood : new Neighbourhood[] {Neighbourhood.vonNeumann(), Neighbourhood.moore(2)}) {
+				ChunkedSIRSModel model = new ChunkedSIRSModel(300, 200, 0.8, 0.3, 0.1, neighbourhood, boundary, seed++);
+				model.fill(0, 90, 20, 20, State.INFECTED);
+				model.fill(200, 0, 50, 50, State.IMMUNE);
+				String name = "chunked " + boundary + " " + neighbourhood;
+				for (int i = 0; i < SWEEPS; i++) {
+					model.sweep();
+					checkChunkedModel(model, name + " sweep " + i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compares the populations, neighbour counts and active tiles of a chunked model with a recount from its cells.
+	 */
+	private void checkChunkedModel(ChunkedSIRSModel model, String name) {
+		ChunkedLattice lattice = model.getLattice();
+		Neighbourhood neighbourhood = model.getNeighbourhood();
+		Boundary boundary = model.getBoundary();
+		long[] populations = new long[4];
+		boolean countsMatch = true;
+		boolean activeCovers = true;
+		for (int y = 0; y < model.getHeight(); y++) {
+			for (int x = 0; x < model.getWidth(); x++) {
+				int state = lattice.get(x, y);
+				populations[state]++;
+				int pressure = 0;
+				for (int k = 0; k < neighbourhood.size(); k++) {
+					int nx = boundary.neighbour(x, neighbourhood.getDx(k), model.getWidth());
+					int ny = boundary.neighbour(y, neighbourhood.getDy(k), model.getHeight());
+					if (nx >= 0 && ny >= 0 && lattice.get(nx, ny) == Lattice.INFECTED) {
+						pressure += neighbourhood.getWeight(k);
+					}
+				}
+				countsMatch &= model.countInfectedNeighbours(x, y) == pressure;
+				boolean canChange = state == Lattice.INFECTED || state == Lattice.RECOVERED || (state == Lattice.SUSCEPTIBLE && pressure > 0);
+				activeCovers &= !canChange || model.isActiveTile(lattice.tileOf(x, y));
+			}
+		}
+		boolean populationsMatch = true;
+		for (State state : State.values()) {
+			populationsMatch &= model.getPopulation(state) == populations[state.ordinal()];
+		}
+		check(populationsMatch, name + ": populations match a recount");
+		check(countsMatch, name + ": infected neighbour counts match a recount");
+		check(activeCovers, name + ": every cell able to change lies in an active tile");
+	}
+
+	/**
+	 * Z order must number the cells once each and find neighbours by index as x,y arithmetic would, and models stored in it
+	 * must behave exactly as in rows: the same sequential trajectory, right counts under every setting, and no dependence on threads.
+	 */
+	private void checkLayouts() {
+		int[][] sizes = {{1, 1}, {8, 8}, {16, 4}, {64, 32}, {12, 8}, {7, 5}, {32, 128}, {96, 40}};
+		for (int[] size : sizes) {
+			int width = size[0];
+			int height = size[1];
+			for (CellLayout layout : CellLayout.values()) {
+				CellIndex cellIndex = new CellIndex(layout, width, height);
+				String name = width + "x" + height + " " + layout;
+				boolean[] seen = new boolean[width * height];
+				boolean bijective = true;
+				boolean inverse = true;
+				boolean neighbours = true;
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						int index = cellIndex.index(x, y);
+						bijective &= index >= 0 && index < seen.length && !seen[index];
+						if (index >= 0 && index < seen.length) {
+							seen[index] = true;
+						}
+						inverse &= cellIndex.getX(index) == x && cellIndex.getY(index) == y;
+						for (int dy = -9; dy <= 9; dy++) {
+							for (int dx = -9; dx <= 9; dx++) {
+								if (x + dx >= 0 && x + dx < width && y + dy >= 0 && y + dy < height) {
+									neighbours &= cellIndex.neighbour(index, dx, dy) == cellIndex.index(x + dx, y + dy);
+								}
+							}
+						}
+					}
+				}
+				check(bijective, name + ": indices are a permutation of the cells");
+				check(inverse, name + ": getX and getY invert index");
+				check(neighbours, name + ": neighbour by index matches index of x + dx, y + dy");
+				check(layout == CellLayout.Z_ORDER || cellIndex.isRowMajor(), name + ": rows are row major");
+			}
+		}
+
+		SIRSModel rows = new SIRSModel(64, 48, 0.8, 0.3, 0.3, 0.1, 0.3, 5, 1);
+		SIRSModel blocks = new SIRSModel(64, 48, 0.8, 0.3, 0.3, 0.1, 0.3, 5, 1);
+		blocks.setLayout(CellLayout.Z_ORDER);
+		for (int i = 0; i < SWEEPS; i++) {
+			rows.sweep(UpdateScheme.SEQUENTIAL);
+			blocks.sweep(UpdateScheme.SEQUENTIAL);
+		}
+		check(Arrays.deepEquals(rows.getAgents(), blocks.getAgents()), "sequential trajectory is the same in rows and in Z order");
+
+		checkGrid(Boundary.values(), NEIGHBOURHOODS, CellLayout.Z_ORDER);
+		checkThreadIndependence(CellLayout.Z_ORDER, UpdateScheme.PARALLEL, 2);
+		checkThreadIndependence(CellLayout.Z_ORDER, UpdateScheme.CHECKERBOARD, 2);
+	}
+}
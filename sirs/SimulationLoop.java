@@ -0,0 +1,241 @@
+package sirs;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a simulation on one long-lived thread, separate from the event dispatch thread.
+ * While started, the loop runs frames: a batch of updates followed by a call to frame(), e.g. to publish a snapshot.
+ * How big the batches are and how often frames come is set by the Pacing. Frames that fall behind schedule are dropped
+ * rather than replayed in a burst, so a slow frame never causes a run of back to back catch-up frames.
+ * Anything else which touches the model, such as resets and setting changes, is passed in with execute() and runs
+ * on the same thread between batches, so the model is only ever used from one thread. Pausing and resuming reuse the thread.
+ * @author Ross
+ *
+ */
+public class SimulationLoop {
+	/**
+	 * How much work is done per frame.
+	 */
+	public enum Pacing {
+		/**
+		 * A fixed number of updates every period.
+		 */
+		FIXED,
+		/**
+		 * As many updates as fit in a share of each period, from the measured cost of an update.
+		 */
+		FRAME_BUDGET,
+		/**
+		 * Updates continuously, with a frame every period.
+		 */
+		MAX_THROUGHPUT;
+	}
+
+	/**
+	 * What the loop runs.
+	 */
+	public interface Steps {
+		/**
+		 * Runs a number of model updates.
+		 * @param updates
+		 */
+		void update(int updates);
+
+		/**
+		 * Called after each frame's updates.
+		 */
+		void frame();
+	}
+
+	public static final double DEFAULT_FRAME_BUDGET = 0.75;
+	private static final long BATCH_NANOS = 1000000L; //length of a batch in MAX_THROUGHPUT, bounding the delay before stop() or execute() take effect
+	private static final int MAX_BATCH = 1 << 24;
+
+	private final ScheduledExecutorService executor;
+	private final Steps steps;
+	private final long periodNanos;
+	private volatile Pacing pacing = Pacing.FIXED;
+	private volatile int updatesPerFrame = 100; //used by FIXED
+	private volatile double frameBudget = DEFAULT_FRAME_BUDGET; //share of the period FRAME_BUDGET spends updating
+	private volatile int lastUpdates; //updates in the last frame, however paced
+	private Runner runner; //null while stopped
+
+	/**
+	 * Creates a stopped loop.
+	 * @param steps Work to run while started
+	 * @param period Milliseconds between frames
+	 */
+	public SimulationLoop(Steps steps, long period) {
+		this.steps = steps;
+		periodNanos = period * 1000000L;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "sirs-simulation");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts running frames, if not already started.
+	 */
+	public synchronized void start() {
+		if (runner == null) {
+			runner = new Runner();
+			executor.schedule(runner, periodNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Stops running frames. A batch already under way finishes.
+	 */
+	public synchronized void stop() {
+		runner = null;
+	}
+
+	/**
+	 * Return true if frames are being run.
+	 * @return
+	 */
+	public synchronized boolean isRunning() {
+		return runner != null;
+	}
+
+	private synchronized boolean isCurrent(Runner candidate) {
+		return runner == candidate;
+	}
+
+	public Pacing getPacing() {
+		return pacing;
+	}
+
+	public void setPacing(Pacing pacing) {
+		this.pacing = pacing;
+	}
+
+	/**
+	 * Return the number of updates per frame under FIXED pacing.
+	 * @return
+	 */
+	public int getUpdatesPerFrame() {
+		return updatesPerFrame;
+	}
+
+	/**
+	 * Set the number of updates per frame under FIXED pacing.
+	 * @param updatesPerFrame
+	 */
+	public void setUpdatesPerFrame(int updatesPerFrame) {
+		this.updatesPerFrame = updatesPerFrame;
+	}
+
+	/**
+	 * Return the share of each period spent updating under FRAME_BUDGET pacing.
+	 * @return
+	 */
+	public double getFrameBudget() {
+		return frameBudget;
+	}
+
+	/**
+	 * Set the share of each period spent updating under FRAME_BUDGET pacing, between 0 and 1.
+	 * @param frameBudget
+	 */
+	public void setFrameBudget(double frameBudget) {
+		this.frameBudget = frameBudget;
+	}
+
+	/**
+	 * Return the number of updates run in the last frame.
+	 * @return
+	 */
+	public int getLastUpdates() {
+		return lastUpdates;
+	}
+
+	/**
+	 * Runs a task on the simulation thread, after any batch under way.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Stops frames, waits for queued tasks to finish and ends the thread.
+	 */
+	public void shutdown() {
+		stop();
+		executor.shutdown();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs one batch per call and reschedules itself until stopped. Each start() makes a new runner, so a stopped one
+	 * still in the queue lapses.
+	 */
+	private class Runner implements Runnable {
+		private double nanosPerUpdate; //running average, 0 until measured
+		private long nextFrame = System.nanoTime() + periodNanos; //when the next frame is due
+		private int frameUpdates; //updates since the last frame
+
+		@Override
+		public void run() {
+			if (!isCurrent(this)) {
+				return;
+			}
+			Pacing pacing = SimulationLoop.this.pacing;
+			int updates = batchSize(pacing);
+			long start = System.nanoTime();
+			steps.update(updates);
+			long end = System.nanoTime();
+			measure(updates, end - start);
+			frameUpdates += updates;
+
+			if (pacing == Pacing.MAX_THROUGHPUT && end < nextFrame) {
+				//keep updating until a frame is due, letting other tasks in between batches
+				executor.execute(this);
+				return;
+			}
+			steps.frame();
+			lastUpdates = frameUpdates;
+			frameUpdates = 0;
+			nextFrame += periodNanos;
+			long now = System.nanoTime();
+			if (nextFrame < now) {
+				//behind schedule: drop the missed frames instead of running them back to back
+				nextFrame = now + (pacing == Pacing.MAX_THROUGHPUT ? periodNanos : 0);
+			}
+			if (pacing == Pacing.MAX_THROUGHPUT) {
+				executor.execute(this);
+			} else {
+				executor.schedule(this, nextFrame - now, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		private int batchSize(Pacing pacing) {
+			if (pacing == Pacing.FIXED || nanosPerUpdate == 0) {
+				return Math.max(1, updatesPerFrame);
+			}
+			double nanos = pacing == Pacing.FRAME_BUDGET ? periodNanos * frameBudget : BATCH_NANOS;
+			return (int) Math.max(1, Math.min(MAX_BATCH, nanos / nanosPerUpdate));
+		}
+
+		/**
+		 * Folds the time a batch took into the average cost of an update, weighting recent batches most.
+		 */
+		private void measure(int updates, long nanos) {
+			double cost = (double) nanos / updates;
+			nanosPerUpdate = nanosPerUpdate == 0 ? cost : 0.8 * nanosPerUpdate + 0.2 * cost;
+		}
+	}
+}
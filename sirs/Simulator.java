@@ -18,8 +18,6 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -31,6 +29,7 @@ import javax.swing.JPanel;
 import javax.swing.JScrollBar;
 import javax.swing.JTabbedPane;
 import javax.swing.SwingConstants;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -50,6 +49,8 @@ public class Simulator extends JFrame implements WindowListener{
 	private JButton resetButton;
 	private JButton resetColorsButton;
 	private JButton updateLatticeButton;
+	private JButton pacingButton;
+	private JButton boundaryButton;
 	private JCheckBox automaticSettingsUpdateBox;
 	private JCheckBox immunityCheckBox;
 	private JCheckBox logBox;
@@ -58,10 +59,11 @@ public class Simulator extends JFrame implements WindowListener{
 	private JCheckBox rectangularCellBox;
 	private ProportionBar populationBar;
 
-	private BufferedWriter buffer;
-	private FileWriter writer;
+	private PopulationLogger logger;
 	private File logFile;
 	private String logFileName = "sirslog";
+	private int logInterval = 1; //timer ticks between log records
+	private boolean binaryLog; //set to log binary time series rather than CSV
 
 	private boolean running = false;	
 	private boolean automaticSettingsUpdate = true;
@@ -83,6 +85,7 @@ public class Simulator extends JFrame implements WindowListener{
 	private int size;
 	private int updatesPerTick = 100;
 	private long period = 16; //~60fps
+	private Boundary boundary = SIRSModel.DEFAULT_BOUNDARY; //chosen here, applied to the model on the simulation thread
 
 	private int infectedCount;
 	private int recoveredCount;
@@ -148,6 +151,8 @@ public class Simulator extends JFrame implements WindowListener{
 	private Point modelLocation;
 	private Point toggleButtonLocation;
 	private Point settingsButtonLocation;
+	private Point pacingButtonLocation;
+	private Point boundaryButtonLocation;
 	private Point resetButtonLocation;
 	private Point automaticSettingsUpdateBoxLocation;
 	private Point logBoxLocation;
@@ -165,7 +170,9 @@ public class Simulator extends JFrame implements WindowListener{
 	private Point circularCellBoxLabelLocation;
 	private Point rectangularCellBoxLabelLocation;
 
-	private Timer modelTimer;
+	private SimulationLoop simulation; //runs the model on its own thread
+	private SnapshotBuffer snapshots = new SnapshotBuffer(); //hands the lattice from the simulation thread to the display
+	private Timer displayTimer; //shows the latest snapshot on the event dispatch thread
 
 	private static final Dimension DEFAULT_SIZE = new Dimension(1600,900);
 
@@ -214,43 +221,91 @@ public class Simulator extends JFrame implements WindowListener{
 	}
 
 	/**
-	 * Opens the log file for writing simulation data out.
+	 * Opens the log file for writing simulation data out, as CSV lines or, if binary logs are set, a binary time series
+	 * (see TimeSeriesWriter) which TimeSeriesReader converts to CSV.
 	 */
 	private void initLogger() {
+		String extension = binaryLog ? ".sirs" : ".csv";
 		int append = 0;
-		logFile = new File(logFileName + append + ".csv");
+		logFile = new File(logFileName + append + extension);
 		while (logFile.exists()) {
 			append++;
-			logFile = new File(logFileName + append + ".csv");
+			logFile = new File(logFileName + append + extension);
 		}
 		try {
-			writer = new FileWriter(logFile);
-			buffer = new BufferedWriter(writer);
+			PopulationSink sink;
+			if (binaryLog) {
+				sink = new TimeSeriesWriter(logFile, model);
+			} else {
+				sink = new CsvPopulationSink(new BufferedWriter(new FileWriter(logFile), 1 << 16));
+			}
+			logger = new PopulationLogger(sink, PopulationLogger.DEFAULT_CAPACITY, logInterval, PopulationLogger.OverflowPolicy.DROP);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Writes data out to the log file for the current step.
+	 * Queues data for the current step to be written to the log file in the background.
+	 * Runs on the simulation thread.
 	 */
 	private void logData() {
-		String out = infectedCount + "," + recoveredCount + "," + susceptibleCount + "," + immuneCount +"\r\n";
-		try {
-			buffer.write(out);
-			buffer.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (logger != null) {
+			try {
+				logger.log(model.getTicks(), model.getPopulation(State.INFECTED), model.getPopulation(State.RECOVERED),
+						model.getPopulation(State.SUSCEPTIBLE), model.getPopulation(State.IMMUNE));
+			} catch (IOException e) {
+				//writing the log failed; closing it reports the failure and stops logging
+				closeLogger();
+			}
 		}
 	}
 
 	private void closeLogger() {
+		if (logger == null) {
+			return;
+		}
 		try {
-			buffer.close();
-			writer.close();
+			logger.close();
+			if (logger.getDropped() > 0) {
+				System.err.println(logger.getDropped() + " log records dropped");
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		logger = null;
+	}
+
+	/**
+	 * Return the number of timer ticks between records written to the log.
+	 * @return
+	 */
+	public int getLogInterval() {
+		return logInterval;
+	}
+
+	/**
+	 * Set the number of timer ticks between records written to the log. Applies from the next log file opened.
+	 * @param logInterval
+	 */
+	public void setLogInterval(int logInterval) {
+		this.logInterval = logInterval;
+	}
+
+	/**
+	 * Return true if logs are written as binary time series rather than CSV.
+	 * @return
+	 */
+	public boolean isBinaryLog() {
+		return binaryLog;
+	}
+
+	/**
+	 * Set whether logs are written as binary time series (sirslogN.sirs) rather than CSV (sirslogN.csv). Applies from the next log file opened.
+	 * @param binaryLog
+	 */
+	public void setBinaryLog(boolean binaryLog) {
+		this.binaryLog = binaryLog;
 	}
 
 	/**
@@ -323,33 +378,17 @@ public class Simulator extends JFrame implements WindowListener{
 	}
 
 	/**
-	 * Count the number of infected, susceptible and cured cells.
+	 * Read the number of infected, susceptible and cured cells from the snapshot on display.
 	 */
 	private void countPopulation() {
-		State[][] agents = model.getAgents();
-		int width = model.getWidth();
-		int height = model.getHeight();
-
-		infectedCount = 0;
-		recoveredCount = 0;
-		susceptibleCount = 0;
-		immuneCount = 0;
-
-		for (int i = 0; i < height; i++) {
-			for (int j = 0; j < width; j++) {
-				State agent = agents[i][j];
-
-				if (agent == State.INFECTED) {
-					infectedCount++;
-				} else if (agent == State.RECOVERED) {
-					recoveredCount++;
-				} else if (agent == State.SUSCEPTIBLE) {
-					susceptibleCount++;
-				} else if (agent == State.IMMUNE) {
-					immuneCount++;
-				} 
-			}
+		LatticeSnapshot snapshot = modelComponent.getSnapshot();
+		if (snapshot == null) {
+			return;
 		}
+		infectedCount = snapshot.getPopulation(State.INFECTED);
+		recoveredCount = snapshot.getPopulation(State.RECOVERED);
+		susceptibleCount = snapshot.getPopulation(State.SUSCEPTIBLE);
+		immuneCount = snapshot.getPopulation(State.IMMUNE);
 	}
 
 	/**
@@ -365,8 +404,30 @@ public class Simulator extends JFrame implements WindowListener{
 
 	}
 
+	/**
+	 * Creates the simulation thread, stopped, and starts refreshing the display from the snapshots it publishes.
+	 */
 	private void initTimer() {
-		modelTimer = new Timer();
+		simulation = new SimulationLoop(new SimulationLoop.Steps() {
+			@Override
+			public void update(int updates) {
+				updateModel(updates);
+			}
+
+			@Override
+			public void frame() {
+				logData();
+				snapshots.publish(model);
+			}
+		}, period);
+		simulation.setUpdatesPerFrame(updatesPerTick);
+		displayTimer = new Timer((int) period, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				refreshDisplay();
+			}
+		});
+		displayTimer.start();
 	}
 
 	/**
@@ -411,11 +472,17 @@ public class Simulator extends JFrame implements WindowListener{
 
 				if (previousLoggingState != enableLogging) {
 					//check to open or close logger
-					if (enableLogging) {
-						initLogger();
-					} else {
-						closeLogger();
-					}
+					final boolean open = enableLogging;
+					simulation.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (open) {
+								initLogger();
+							} else {
+								closeLogger();
+							}
+						}
+					});
 				}
 			}
 		});
@@ -468,40 +535,44 @@ public class Simulator extends JFrame implements WindowListener{
 	 * Begin/resume the simulation.
 	 */
 	public void startTimer() {
-		modelTimer = new Timer();
-		modelTimer.scheduleAtFixedRate(new TimerTask() {
-			@Override
-			public void run() {
-				updateModel();
-				updateTickCountLabel();
-			}
-
-		},period,period);
+		simulation.start();
 	}
 
 	/**
 	 * Update the UI to show the number of steps the simulation has been running for.
 	 */
 	protected void updateTickCountLabel() {
-		tickCountLabel.setText("Update Count: " + model.getTicks());
+		LatticeSnapshot snapshot = modelComponent.getSnapshot();
+		if (snapshot != null) {
+			tickCountLabel.setText("Update Count: " + snapshot.getTicks());
+		}
 	}
 
 	/**
-	 * Runs a number of sequential updates on the simulation model based on the simulation settings.
-	 * Also logs data if the settings if told to.
+	 * Runs a number of sequential updates on the simulation model. Runs on the simulation thread, which decides how many
+	 * from the pacing; after each frame's updates it logs data if the settings say to and publishes a snapshot for the display.
 	 */
-	protected void updateModel() {
-		for (int i = 0; i < updatesPerTick; i++) {
+	protected void updateModel(int updates) {
+		for (int i = 0; i < updates; i++) {
 			model.updateSequential();
 		}
-		updatePopulationBar();
+	}
 
-		if (enableLogging) {
-			logData();
+	/**
+	 * Shows the latest snapshot published by the simulation thread, if there is a new one. Runs on the event dispatch thread,
+	 * so the simulation never waits for painting and painting never sees a lattice part way through an update.
+	 */
+	private void refreshDisplay() {
+		if (!modelComponent.updateSnapshot()) {
+			return;
 		}
-
 		if (repaintOnUpdate) {
-			modelComponent.repaint();
+			modelComponent.repaintChanged();
+		}
+		updatePopulationBar();
+		updateTickCountLabel();
+		if (simulation.getPacing() != SimulationLoop.Pacing.FIXED && simulation.isRunning()) {
+			tickLabel.setText(simulation.getLastUpdates() + " Updates per tick");
 		}
 	}
 
@@ -509,7 +580,7 @@ public class Simulator extends JFrame implements WindowListener{
 	 * Pause the simulation.
 	 */
 	public void stopTimer() {
-		modelTimer.cancel();
+		simulation.stop();
 	}
 
 	/**
@@ -517,7 +588,10 @@ public class Simulator extends JFrame implements WindowListener{
 	 */
 	private void initModel() {
 		model = new SIRSModel(width,height,0);
+		snapshots.publish(model);
 		modelComponent = new ModelComponent(model);
+		modelComponent.setSnapshots(snapshots);
+		modelComponent.updateSnapshot();
 		modelComponent.setSize(600,600);
 		modelComponent.setLocation(modelLocation);
 		sirsPanel.add(modelComponent);
@@ -530,12 +604,15 @@ public class Simulator extends JFrame implements WindowListener{
 	private void updateLatticeModel() {
 		width = size;
 		height = size;
-		if (enableImmunity) {
-			model.setImmuneProportion((double)immuneProportion / 100);
-		} else {
-			model.setImmuneProportion(0);
-		}
-		model.setSize(size);
+		final double proportion = enableImmunity ? (double)immuneProportion / 100 : 0;
+		final int newSize = size;
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				model.setImmuneProportion(proportion);
+				model.setSize(newSize);
+			}
+		});
 		reset();
 	}
 
@@ -674,6 +751,8 @@ public class Simulator extends JFrame implements WindowListener{
 		//buttons
 		toggleButtonLocation = new Point(25,720);
 		settingsButtonLocation = new Point(975,250);
+		pacingButtonLocation = new Point(800,250);
+		boundaryButtonLocation = new Point(770,710);
 		resetButtonLocation = new Point(375,720);
 		resetColorsButtonLocation = new Point(975,455);
 		updateLatticeButtonLocation = new Point(975,710);
@@ -705,6 +784,17 @@ public class Simulator extends JFrame implements WindowListener{
 		toggleButton.setSize(300,100);
 		sirsPanel.add(toggleButton);
 
+		pacingButton = new JButton(getPacingText(SimulationLoop.Pacing.FIXED));
+		pacingButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				cyclePacing();
+			}
+		});
+		pacingButton.setLocation(pacingButtonLocation);
+		pacingButton.setSize(160,40);
+		sirsPanel.add(pacingButton);
+
 		settingsButton = new JButton("Update Settings");
 		settingsButton.addActionListener(new ActionListener() {
 			@Override
@@ -753,6 +843,17 @@ public class Simulator extends JFrame implements WindowListener{
 		updateLatticeButton.setLocation(updateLatticeButtonLocation);
 		updateLatticeButton.setSize(200,40);
 		sirsPanel.add(updateLatticeButton);
+
+		boundaryButton = new JButton(getBoundaryText(SIRSModel.DEFAULT_BOUNDARY));
+		boundaryButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				cycleBoundary();
+			}
+		});
+		boundaryButton.setLocation(boundaryButtonLocation);
+		boundaryButton.setSize(180,40);
+		sirsPanel.add(boundaryButton);
 	}
 
 	/**
@@ -785,14 +886,18 @@ public class Simulator extends JFrame implements WindowListener{
 		running = false;
 		toggleButton.setText("Start");
 		stopTimer();
-		model.reset();
-		updatePopulationBar();
-		updateTickCountLabel();
-		if (enableLogging) {
-			closeLogger();
-			initLogger();
-		}
-		repaint();
+		final boolean restartLogger = enableLogging;
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				model.reset();
+				if (restartLogger) {
+					closeLogger();
+					initLogger();
+				}
+				snapshots.publish(model);
+			}
+		});
 	}
 
 	/**
@@ -800,11 +905,68 @@ public class Simulator extends JFrame implements WindowListener{
 	 */
 	protected void updateSettings() {
 		if (ready) {
-			model.setInfectionProbability(infectionProbability);
-			model.setRelapseProbability(relapseProbability);
-			model.setRecoveryProbability(recoveryProbability);
+			final double infection = infectionProbability;
+			final double relapse = relapseProbability;
+			final double recovery = recoveryProbability;
+			simulation.execute(new Runnable() {
+				@Override
+				public void run() {
+					model.setInfectionProbability(infection);
+					model.setRelapseProbability(relapse);
+					model.setRecoveryProbability(recovery);
+				}
+			});
 			updatesPerTick = tickBar.getValue();
+			simulation.setUpdatesPerFrame(updatesPerTick);
+		}
+	}
+
+	/**
+	 * Switches to the next pacing mode: a fixed number of updates per tick, as many as fit the frame time, or as many as possible.
+	 */
+	private void cyclePacing() {
+		SimulationLoop.Pacing[] modes = SimulationLoop.Pacing.values();
+		SimulationLoop.Pacing pacing = modes[(simulation.getPacing().ordinal() + 1) % modes.length];
+		simulation.setPacing(pacing);
+		pacingButton.setText(getPacingText(pacing));
+		tickBar.setEnabled(pacing == SimulationLoop.Pacing.FIXED);
+		if (pacing == SimulationLoop.Pacing.FIXED) {
+			tickLabel.setText(updatesPerTick + " Updates per tick");
+		}
+	}
+
+	/**
+	 * Switches the model to the next boundary treatment.
+	 */
+	private void cycleBoundary() {
+		Boundary[] modes = Boundary.values();
+		final Boundary boundary = modes[(this.boundary.ordinal() + 1) % modes.length];
+		this.boundary = boundary;
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				model.setBoundary(boundary);
+			}
+		});
+		boundaryButton.setText(getBoundaryText(boundary));
+	}
+
+	private static String getBoundaryText(Boundary boundary) {
+		if (boundary == Boundary.PERIODIC) {
+			return "Boundary: Periodic";
+		} else if (boundary == Boundary.REFLECTING) {
+			return "Boundary: Reflecting";
 		}
+		return "Boundary: Open";
+	}
+
+	private static String getPacingText(SimulationLoop.Pacing pacing) {
+		if (pacing == SimulationLoop.Pacing.FRAME_BUDGET) {
+			return "Pacing: Frame Budget";
+		} else if (pacing == SimulationLoop.Pacing.MAX_THROUGHPUT) {
+			return "Pacing: Max Speed";
+		}
+		return "Pacing: Fixed";
 	}
 
 	/**
@@ -880,6 +1042,9 @@ public class Simulator extends JFrame implements WindowListener{
 				tickLabel.setText(tickBar.getValue() + " Updates per tick");
 				if (automaticSettingsUpdate) {
 					updatesPerTick = tickBar.getValue();
+					if (simulation != null) {
+						simulation.setUpdatesPerFrame(updatesPerTick);
+					}
 				}
 			}
 		});
@@ -968,10 +1133,17 @@ public class Simulator extends JFrame implements WindowListener{
 
 	/**
 	 * Entry Point
-	 * @param args
+	 * @param args --log-format=binary to log binary time series rather than CSV
 	 */
 	public static void main(String[] args) {
 		Simulator gui = new Simulator();
+		for (String arg : args) {
+			if (arg.equals("--log-format=binary")) {
+				gui.setBinaryLog(true);
+			} else if (!arg.equals("--log-format=csv")) {
+				System.err.println("Unknown option: " + arg);
+			}
+		}
 	}
 
 
@@ -1002,15 +1174,30 @@ public class Simulator extends JFrame implements WindowListener{
 
 	@Override
 	public void windowClosed(WindowEvent arg0) {
+		shutdownSimulation();
 		System.exit(0);
 		
 	}
 
 	@Override
 	public void windowClosing(WindowEvent arg0) {
+		shutdownSimulation();
 		System.exit(0);
 	}
 
+	/**
+	 * Stops the simulation thread once it has closed the log.
+	 */
+	private void shutdownSimulation() {
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeLogger();
+			}
+		});
+		simulation.shutdown();
+	}
+
 	@Override
 	public void windowDeactivated(WindowEvent arg0) {
 		// TODO Auto-generated method stub
@@ -1039,16 +1226,21 @@ public class Simulator extends JFrame implements WindowListener{
 	 * Update the shape of cells in the model based on the settings given in the UI
 	 */
 	private void updateCellShape() {
+		final CellShape shape;
 		if (circularCellBox.isSelected()) {
-			model.setCellShape(CellShape.CIRCULAR);
+			shape = CellShape.CIRCULAR;
 		} else if(rectangularCellBox.isSelected()) {
-			model.setCellShape(CellShape.RECTANGULAR);
+			shape = CellShape.RECTANGULAR;
 		} else {
 			new Error("No shape selected").printStackTrace();
+			return;
 		}
-		
-		if (repaintOnUpdate) {
-			modelComponent.repaint();
-		}
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				model.setCellShape(shape);
+				snapshots.publish(model);
+			}
+		});
 	}
 }
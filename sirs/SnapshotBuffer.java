@@ -0,0 +1,75 @@
+package sirs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Triple buffer handing LatticeSnapshots from the simulation thread to the display thread without locks.
+ * The writer fills its back snapshot and swaps it into the middle slot; the reader swaps its front snapshot with the middle one
+ * when a newer one is waiting. Neither side ever waits for the other, the writer never touches the snapshot being read,
+ * and the reader always gets the most recent complete snapshot, skipping any it was too slow to see.
+ * Each snapshot is brought up to date by copying only the tiles the model has changed since that snapshot was last filled,
+ * and carries the tiles changed since the snapshot the reader last took, so the reader can redraw only those.
+ * @author Ross
+ *
+ */
+public class SnapshotBuffer {
+	private static final int FRESH = 4; //set in middle when it holds a snapshot the reader has not taken
+
+	private final LatticeSnapshot[] snapshots = new LatticeSnapshot[3];
+	private final AtomicInteger middle = new AtomicInteger(1);
+	private int back = 0; //writer only
+	private int front = 2; //reader only
+	private long version; //writer only
+
+	/**
+	 * Copies the current state of a model into a snapshot and makes it the latest.
+	 * Must be called on the thread that updates the model, which is the only writer.
+	 * @param model
+	 */
+	public void publish(SIRSModel model) {
+		DirtyTiles changes = model.getDirtyTiles();
+		for (int i = 0; i < snapshots.length; i++) {
+			LatticeSnapshot snapshot = snapshots[i];
+			if (snapshot == null || snapshot.getWidth() != model.getWidth() || snapshot.getHeight() != model.getHeight()) {
+				//the reader may still be showing the old front snapshot, so a replacement for it waits for its next turn as back
+				if (i == back || snapshot == null) {
+					snapshots[i] = new LatticeSnapshot(model.getWidth(), model.getHeight());
+				}
+			} else {
+				snapshot.getStale().addAll(changes);
+			}
+		}
+		LatticeSnapshot target = snapshots[back];
+		DirtyTiles changed = target.getChanged();
+		changed.clear();
+		int latest = middle.get();
+		if ((latest & FRESH) != 0) {
+			//the reader has not taken the previous snapshot, and may never, so its changes are passed on too;
+			//should it take it after all, this snapshot lists more tiles than it needs to, never fewer
+			LatticeSnapshot previous = snapshots[latest & 3];
+			if (previous.getWidth() == target.getWidth() && previous.getHeight() == target.getHeight()) {
+				changed.addAll(previous.getChanged());
+			} else {
+				changed.markAll();
+			}
+		}
+		changed.addAll(changes);
+		changes.clear();
+
+		target.copyFrom(model, ++version);
+		back = middle.getAndSet(back | FRESH) & 3;
+	}
+
+	/**
+	 * Return the most recently published snapshot if it is newer than the last one taken, otherwise null.
+	 * The returned snapshot stays unchanged until the next call. Must only be called from one thread.
+	 * @return
+	 */
+	public LatticeSnapshot take() {
+		if ((middle.get() & FRESH) == 0) {
+			return null;
+		}
+		front = middle.getAndSet(front) & 3;
+		return snapshots[front];
+	}
+}
@@ -3,6 +3,17 @@ package sirs;
 public enum State {
 	RECOVERED,SUSCEPTIBLE,INFECTED, IMMUNE;
 	
+	private static final State[] CODES = values();
+	
+	/**
+	 * Return the State for a lattice cell code (see Lattice).
+	 * @param code
+	 * @return
+	 */
+	public static State fromCode(int code) {
+		return CODES[code];
+	}
+	
 	public String toString() {
 		if (this == RECOVERED) {
 			return "R";
@@ -0,0 +1,125 @@
+package sirs;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * One synchronous update of every cell, split into stripes across a fork-join pool.
+ * Each cell's next state is computed from the current lattice only and written into the target lattice,
+ * so stripes never observe each other's writes. Stripes are contiguous runs of whole words, so no two
+ * tasks ever write the same word of the target.
+ * @author Ross
+ *
+ */
+class SynchronousStep extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of cells in a stripe. A multiple of 32 so stripes start on word boundaries.
+	 * Stripes depend only on lattice size, never on thread count, so results are reproducible for a given seed.
+	 */
+	static final int STRIPE_CELLS = 1 << 14;
+
+	private final SIRSModel model;
+	private final PackedLattice current;
+	private final PackedLattice target;
+	private final short[] counts;
+	private final RandomSource[] randoms;
+	private final int firstStripe;
+	private final int lastStripe;
+
+	/**
+	 * @param model Model supplying dimensions, probabilities and neighbourhood
+	 * @param current Lattice to read from
+	 * @param target Lattice to write the next states into
+	 * @param counts Infected neighbour counts of the current lattice, or null to count each cell's neighbours as it is visited
+	 * @param randoms One random source per stripe
+	 * @param firstStripe First stripe to update
+	 * @param lastStripe Stripe after the last one to update
+	 */
+	SynchronousStep(SIRSModel model, PackedLattice current, PackedLattice target, short[] counts, RandomSource[] randoms, int firstStripe, int lastStripe) {
+		this.model = model;
+		this.current = current;
+		this.target = target;
+		this.counts = counts;
+		this.randoms = randoms;
+		this.firstStripe = firstStripe;
+		this.lastStripe = lastStripe;
+	}
+
+	/**
+	 * Return the number of stripes a lattice of the given size is split into.
+	 */
+	static int stripeCount(int size) {
+		return (size + STRIPE_CELLS - 1) / STRIPE_CELLS;
+	}
+
+	@Override
+	protected void compute() {
+		if (lastStripe - firstStripe > 1) {
+			int middle = (firstStripe + lastStripe) >>> 1;
+			invokeAll(new SynchronousStep(model, current, target, counts, randoms, firstStripe, middle),
+					new SynchronousStep(model, current, target, counts, randoms, middle, lastStripe));
+		} else {
+			updateStripe(firstStripe);
+		}
+	}
+
+	/**
+	 * Updates every cell of a stripe, assembling each target word in a register before storing it.
+	 */
+	private void updateStripe(int stripe) {
+		RandomSource random = randoms[stripe];
+		double recoveryProbability = model.getRecoveryProbability();
+		double relapseProbability = model.getRelapseProbability();
+		int width = model.getWidth();
+		int size = current.size();
+		long[] source = current.getWords();
+		long[] words = target.getWords();
+
+		CellIndex cellIndex = model.getCellIndex();
+		boolean rowMajor = cellIndex.isRowMajor();
+
+		int start = stripe * STRIPE_CELLS;
+		int end = Math.min(start + STRIPE_CELLS, size);
+		int x = start % width;
+		int y = start / width;
+
+		for (int index = start; index < end; index += 32) {
+			int word = index >>> 5;
+			long in = source[word];
+			long out = in;
+			int cells = Math.min(32, end - index);
+			for (int k = 0; k < cells; k++) {
+				int shift = k << 1;
+				int state = (int) (in >>> shift) & 3;
+				int next = state;
+				if (state == Lattice.SUSCEPTIBLE) {
+					if (!rowMajor && counts == null) {
+						x = cellIndex.getX(index + k);
+						y = cellIndex.getY(index + k);
+					}
+					int pressure = counts != null ? counts[index + k] : model.countInfectedNeighbours(current, index + k, x, y);
+					if (pressure != 0 && random.nextDouble() < model.infectionChance(pressure)) {
+						next = Lattice.INFECTED;
+					}
+				} else if (state == Lattice.INFECTED) {
+					if (random.nextDouble() < recoveryProbability) {
+						next = Lattice.RECOVERED;
+					}
+				} else if (state == Lattice.RECOVERED) {
+					if (random.nextDouble() < relapseProbability) {
+						next = Lattice.SUSCEPTIBLE;
+					}
+				}
+				if (next != state) {
+					out = (out & ~(3L << shift)) | ((long) next << shift);
+				}
+				if (++x == width) {
+					x = 0;
+					y++;
+				}
+			}
+			words[word] = out;
+		}
+	}
+}
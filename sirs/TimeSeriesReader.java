@@ -0,0 +1,265 @@
+package sirs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory mapped reader for files written by TimeSeriesWriter.
+ * Any record can be read in constant time, and ranges can be read whole, every n-th record, or averaged down to a number of points.
+ * Files larger than a single mapping are mapped in segments of whole blocks.
+ * @author Ross
+ *
+ */
+public class TimeSeriesReader {
+	/**
+	 * Columns of a time series, in file order.
+	 */
+	public enum Column {
+		TICK, SUSCEPTIBLE, INFECTED, RECOVERED, IMMUNE;
+	}
+
+	private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] segments;
+	private final int blocksPerSegment;
+	private final long records;
+	private final Boundary boundary;
+	private final CellLayout layout;
+	private final Neighbourhood neighbourhood;
+
+	/**
+	 * Opens and maps a time series file. Files from version 1, which predate the boundary, layout and neighbourhood fields,
+	 * read as having the defaults.
+	 * @param path
+	 * @throws IOException if the file cannot be read or is not a time series
+	 */
+	public TimeSeriesReader(File path) throws IOException {
+		file = new RandomAccessFile(path, "r");
+		FileChannel channel = file.getChannel();
+		header = channel.map(FileChannel.MapMode.READ_ONLY, 0, TimeSeriesWriter.HEADER_BYTES);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		int version = header.getInt(8);
+		if (header.getLong(0) != TimeSeriesWriter.MAGIC || version < 1 || version > TimeSeriesWriter.VERSION
+				|| header.getInt(12) != TimeSeriesWriter.BLOCK_RECORDS) {
+			file.close();
+			throw new IOException(path + " is not a SIRS time series");
+		}
+		int boundaryOrdinal = header.getInt(TimeSeriesWriter.BOUNDARY_OFFSET);
+		int layoutOrdinal = header.getInt(TimeSeriesWriter.LAYOUT_OFFSET);
+		int side = 2 * header.getInt(TimeSeriesWriter.RADIUS_OFFSET) + 1;
+		long dataOffset = version == 1 ? TimeSeriesWriter.HEADER_BYTES : header.getLong(TimeSeriesWriter.DATA_OFFSET);
+		if (boundaryOrdinal < 0 || boundaryOrdinal >= Boundary.values().length || layoutOrdinal < 0 || layoutOrdinal >= CellLayout.values().length
+				|| side < 1 || dataOffset < TimeSeriesWriter.HEADER_BYTES + (long) (side > 1 ? side * side * 4 : 0)) {
+			file.close();
+			throw new IOException(path + " has an unsupported header");
+		}
+		boundary = Boundary.values()[boundaryOrdinal];
+		layout = CellLayout.values()[layoutOrdinal];
+		if (side > 1) {
+			MappedByteBuffer weights = channel.map(FileChannel.MapMode.READ_ONLY, TimeSeriesWriter.HEADER_BYTES, side * side * 4);
+			weights.order(ByteOrder.LITTLE_ENDIAN);
+			int[][] grid = new int[side][side];
+			for (int i = 0; i < side; i++) {
+				for (int j = 0; j < side; j++) {
+					grid[i][j] = weights.getInt((i * side + j) * 4);
+				}
+			}
+			neighbourhood = Neighbourhood.weighted(grid, header.getInt(TimeSeriesWriter.SATURATION_OFFSET));
+		} else {
+			neighbourhood = SIRSModel.DEFAULT_NEIGHBOURHOOD;
+		}
+
+		long completeBlocks = Math.max(0, channel.size() - dataOffset) / TimeSeriesWriter.BLOCK_BYTES;
+		records = Math.min(header.getLong(TimeSeriesWriter.COUNT_OFFSET), completeBlocks * TimeSeriesWriter.BLOCK_RECORDS);
+		long blocks = (records + TimeSeriesWriter.BLOCK_RECORDS - 1) / TimeSeriesWriter.BLOCK_RECORDS;
+		blocksPerSegment = Math.max(1, MAX_SEGMENT_BYTES / TimeSeriesWriter.BLOCK_BYTES);
+		segments = new MappedByteBuffer[(int) ((blocks + blocksPerSegment - 1) / blocksPerSegment)];
+		for (int i = 0; i < segments.length; i++) {
+			long first = (long) i * blocksPerSegment;
+			long length = Math.min(blocksPerSegment, blocks - first) * TimeSeriesWriter.BLOCK_BYTES;
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + first * TimeSeriesWriter.BLOCK_BYTES, length);
+			segments[i].order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Return the number of records in the file.
+	 * @return
+	 */
+	public long size() {
+		return records;
+	}
+
+	public long getCreated() {
+		return header.getLong(TimeSeriesWriter.CREATED_OFFSET);
+	}
+
+	public int getWidth() {
+		return header.getInt(TimeSeriesWriter.WIDTH_OFFSET);
+	}
+
+	public int getHeight() {
+		return header.getInt(TimeSeriesWriter.HEIGHT_OFFSET);
+	}
+
+	public double getInfectionProbability() {
+		return header.getDouble(TimeSeriesWriter.INFECTION_OFFSET);
+	}
+
+	public double getRecoveryProbability() {
+		return header.getDouble(TimeSeriesWriter.RECOVERY_OFFSET);
+	}
+
+	public double getRelapseProbability() {
+		return header.getDouble(TimeSeriesWriter.RELAPSE_OFFSET);
+	}
+
+	public double getImmuneProportion() {
+		return header.getDouble(TimeSeriesWriter.IMMUNE_OFFSET);
+	}
+
+	public double getInfectedProportion() {
+		return header.getDouble(TimeSeriesWriter.INFECTED_OFFSET);
+	}
+
+	public long getSeed() {
+		return header.getLong(TimeSeriesWriter.SEED_OFFSET);
+	}
+
+	public Boundary getBoundary() {
+		return boundary;
+	}
+
+	public CellLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Return the neighbourhood of the model. Any but the default reads back as a weighted kernel with the same weights and saturation.
+	 * @return
+	 */
+	public Neighbourhood getNeighbourhood() {
+		return neighbourhood;
+	}
+
+	/**
+	 * Return the value of a column for a single record.
+	 * @param column
+	 * @param record Index of the record, 0 <= record < size()
+	 * @return
+	 */
+	public long get(Column column, long record) {
+		if (record < 0 || record >= records) {
+			throw new IndexOutOfBoundsException("Record " + record + " of " + records);
+		}
+		long block = record / TimeSeriesWriter.BLOCK_RECORDS;
+		int k = (int) (record % TimeSeriesWriter.BLOCK_RECORDS);
+		MappedByteBuffer segment = segments[(int) (block / blocksPerSegment)];
+		int base = (int) (block % blocksPerSegment) * TimeSeriesWriter.BLOCK_BYTES;
+		if (column == Column.TICK) {
+			return segment.getLong(base + k * 8);
+		}
+		int offset = TimeSeriesWriter.BLOCK_RECORDS * 8 + (column.ordinal() - 1) * TimeSeriesWriter.BLOCK_RECORDS * 4;
+		return segment.getInt(base + offset + k * 4);
+	}
+
+	/**
+	 * Return every stride-th value of a column from record from (inclusive) to record to (exclusive).
+	 * @param column
+	 * @param from
+	 * @param to
+	 * @param stride
+	 * @return
+	 */
+	public long[] read(Column column, long from, long to, int stride) {
+		to = Math.min(to, records);
+		int points = (int) Math.max(0, (to - from + stride - 1) / stride);
+		long[] values = new long[points];
+		for (int i = 0; i < points; i++) {
+			values[i] = get(column, from + (long) i * stride);
+		}
+		return values;
+	}
+
+	/**
+	 * Return the column from record from (inclusive) to record to (exclusive) reduced to at most the given number of points,
+	 * each the mean of an equal share of the range.
+	 * @param column
+	 * @param from
+	 * @param to
+	 * @param points
+	 * @return
+	 */
+	public double[] downsample(Column column, long from, long to, int points) {
+		to = Math.min(to, records);
+		long length = Math.max(0, to - from);
+		points = (int) Math.min(points, length);
+		double[] values = new double[points];
+		for (int i = 0; i < points; i++) {
+			long start = from + length * i / points;
+			long end = from + length * (i + 1) / points;
+			double sum = 0;
+			for (long r = start; r < end; r++) {
+				sum += get(column, r);
+			}
+			values[i] = sum / (end - start);
+		}
+		return values;
+	}
+
+	/**
+	 * Writes every record as CSV with a header row: tick, susceptible, infected, recovered, immune.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void exportCsv(Writer out) throws IOException {
+		out.write("tick,susceptible,infected,recovered,immune\n");
+		StringBuilder line = new StringBuilder(64);
+		for (long r = 0; r < records; r++) {
+			line.setLength(0);
+			line.append(get(Column.TICK, r)).append(',').append(get(Column.SUSCEPTIBLE, r)).append(',').append(get(Column.INFECTED, r))
+					.append(',').append(get(Column.RECOVERED, r)).append(',').append(get(Column.IMMUNE, r)).append('\n');
+			out.append(line);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Releases the file. Mapped memory is released when the reader is garbage collected.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Converts a time series file to CSV.
+	 * Usage: java -cp <jar> sirs.TimeSeriesReader input [output.csv]
+	 * @param args
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: java -cp <jar> sirs.TimeSeriesReader input [output.csv]");
+			System.exit(2);
+		}
+		TimeSeriesReader reader = new TimeSeriesReader(new File(args[0]));
+		Writer out = args.length > 1 ? new FileWriter(args[1]) : new OutputStreamWriter(System.out);
+		out = new BufferedWriter(out, 1 << 16);
+		try {
+			reader.exportCsv(out);
+		} finally {
+			out.close();
+			reader.close();
+		}
+	}
+}
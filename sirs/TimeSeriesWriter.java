@@ -0,0 +1,191 @@
+package sirs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes population time series in a compact binary columnar format, read back with TimeSeriesReader.
+ *
+ * The file starts with a fixed HEADER_BYTES header holding the format, record count, creation time and model parameters,
+ * including its boundary, layout and neighbourhood. For any neighbourhood but the default the weight grid follows the header,
+ * row by row (4 bytes each), padded to a multiple of 8 bytes. Then come blocks of BLOCK_RECORDS records, starting at the
+ * offset the header records. Within a block each column is stored contiguously:
+ * ticks (8 bytes each), then susceptible, infected, recovered and immune populations (4 bytes each). All values are little endian.
+ * The last block is written whole, padded with zeros. The record count in the header is updated after every block and every flush,
+ * so a file cut short by a crash is readable up to its last complete block or flush.
+ * @author Ross
+ *
+ */
+public class TimeSeriesWriter implements PopulationSink {
+	static final long MAGIC = 0x3130535453524953L; //"SIRSTS01" read little endian
+	static final int VERSION = 2;
+	static final int HEADER_BYTES = 128;
+	static final int BLOCK_RECORDS = 4096;
+	static final int RECORD_BYTES = 8 + 4 * 4;
+	static final int BLOCK_BYTES = BLOCK_RECORDS * RECORD_BYTES;
+
+	/**
+	 * Header field offsets
+	 */
+	static final int COUNT_OFFSET = 16;
+	static final int CREATED_OFFSET = 24;
+	static final int WIDTH_OFFSET = 32;
+	static final int HEIGHT_OFFSET = 36;
+	static final int INFECTION_OFFSET = 40;
+	static final int RECOVERY_OFFSET = 48;
+	static final int RELAPSE_OFFSET = 56;
+	static final int IMMUNE_OFFSET = 64;
+	static final int INFECTED_OFFSET = 72;
+	static final int SEED_OFFSET = 80;
+	static final int BOUNDARY_OFFSET = 88; //zero, and so open, in version 1 files
+	static final int LAYOUT_OFFSET = 92; //zero, and so rows, in version 1 files
+	static final int RADIUS_OFFSET = 96; //neighbourhood radius, or zero for the default neighbourhood with no grid saved
+	static final int SATURATION_OFFSET = 100;
+	static final int DATA_OFFSET = 104; //offset of the first block, which is HEADER_BYTES in version 1 files
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer block;
+	private final ByteBuffer count;
+	private final long dataOffset;
+	private long records;
+	private long flushed; //records already in the file
+
+	/**
+	 * Creates (or truncates) a file and writes the header describing the given model.
+	 * @param path
+	 * @param model Model whose parameters are recorded in the header
+	 * @throws IOException
+	 */
+	public TimeSeriesWriter(File path, SIRSModel model) throws IOException {
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+
+		Neighbourhood neighbourhood = model.getNeighbourhood();
+		int[][] grid = neighbourhood == SIRSModel.DEFAULT_NEIGHBOURHOOD ? new int[0][] : neighbourhood.toGrid();
+		dataOffset = HEADER_BYTES + ((grid.length * grid.length * 4 + 7) & ~7);
+		ByteBuffer header = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(0, MAGIC);
+		header.putInt(8, VERSION);
+		header.putInt(12, BLOCK_RECORDS);
+		header.putLong(COUNT_OFFSET, 0);
+		header.putLong(CREATED_OFFSET, System.currentTimeMillis());
+		header.putInt(WIDTH_OFFSET, model.getWidth());
+		header.putInt(HEIGHT_OFFSET, model.getHeight());
+		header.putDouble(INFECTION_OFFSET, model.getInfectionProbability());
+		header.putDouble(RECOVERY_OFFSET, model.getRecoveryProbability());
+		header.putDouble(RELAPSE_OFFSET, model.getRelapseProbability());
+		header.putDouble(IMMUNE_OFFSET, model.getImmuneProportion());
+		header.putDouble(INFECTED_OFFSET, model.getInfectedProportion());
+		header.putLong(SEED_OFFSET, model.getSeed());
+		header.putInt(BOUNDARY_OFFSET, model.getBoundary().ordinal());
+		header.putInt(LAYOUT_OFFSET, model.getLayout().ordinal());
+		header.putInt(RADIUS_OFFSET, grid.length / 2);
+		header.putInt(SATURATION_OFFSET, neighbourhood.getSaturation());
+		header.putLong(DATA_OFFSET, dataOffset);
+		for (int i = 0; i < grid.length; i++) {
+			for (int j = 0; j < grid.length; j++) {
+				header.putInt(HEADER_BYTES + (i * grid.length + j) * 4, grid[i][j]);
+			}
+		}
+		writeFully(header, 0);
+
+		block = ByteBuffer.allocateDirect(BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Override
+	public void write(long tick, int infected, int recovered, int susceptible, int immune) throws IOException {
+		int k = (int) (records % BLOCK_RECORDS);
+		block.putLong(k * 8, tick);
+		int column = BLOCK_RECORDS * 8;
+		block.putInt(column + k * 4, susceptible);
+		column += BLOCK_RECORDS * 4;
+		block.putInt(column + k * 4, infected);
+		column += BLOCK_RECORDS * 4;
+		block.putInt(column + k * 4, recovered);
+		column += BLOCK_RECORDS * 4;
+		block.putInt(column + k * 4, immune);
+		records++;
+		if (k == BLOCK_RECORDS - 1) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Return the number of records written.
+	 * @return
+	 */
+	public long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Writes the records added since the last flush, even if their block is only partly filled, and updates the record count in the header.
+	 * A block is written whole the first time, so its padding is zeros; after that only the new part of each column is written.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (records > flushed) {
+			writeBlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			channel.force(false);
+		} finally {
+			file.close();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		long index = (records - 1) / BLOCK_RECORDS;
+		long position = dataOffset + index * BLOCK_BYTES;
+		int from = (int) Math.max(0, flushed - index * BLOCK_RECORDS);
+		int to = (int) (records - index * BLOCK_RECORDS);
+		if (from == 0) {
+			block.clear();
+			writeFully(block, position);
+		} else {
+			writeColumn(position, 0, 8, from, to);
+			for (int column = BLOCK_RECORDS * 8; column < BLOCK_BYTES; column += BLOCK_RECORDS * 4) {
+				writeColumn(position, column, 4, from, to);
+			}
+		}
+		flushed = records;
+		count.clear();
+		count.putLong(0, records);
+		writeFully(count, COUNT_OFFSET);
+		if (records % BLOCK_RECORDS == 0) {
+			//start the next block from zeros so its padding is clean
+			for (int i = 0; i < BLOCK_BYTES; i += 8) {
+				block.putLong(i, 0);
+			}
+		}
+	}
+
+	/**
+	 * Writes records from to to of one column of the current block.
+	 */
+	private void writeColumn(long position, int column, int width, int from, int to) throws IOException {
+		block.clear();
+		block.limit(column + to * width);
+		block.position(column + from * width);
+		writeFully(block, position + column + from * width);
+		block.clear();
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package sirs;
+
+/**
+ * Ways of advancing an SIRSModel, see SIRSModel.sweep(UpdateScheme).
+ * @author Ross
+ *
+ */
+public enum UpdateScheme {
+	/**
+	 * Random sequential updates of single cells, one thread.
+	 */
+	SEQUENTIAL,
+	/**
+	 * Synchronous updates of every cell at once, multithreaded.
+	 */
+	PARALLEL,
+	/**
+	 * Random sequential updates within alternating bands, multithreaded.
+	 */
+	CHECKERBOARD,
+	/**
+	 * Rejection-free kinetic Monte Carlo.
+	 */
+	KINETIC,
+	/**
+	 * Random sequential updates of active cells only.
+	 */
+	ACTIVE;
+}
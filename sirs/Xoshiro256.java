@@ -0,0 +1,121 @@
+package sirs;
+
+/**
+ * xoshiro256** generator (Blackman and Vigna), seeded through SplitMix64.
+ * Small, fast, unsynchronised and fully determined by its seed, so runs can be reproduced exactly.
+ * @author Ross
+ *
+ */
+public class Xoshiro256 implements RandomSource {
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	private static long seedUniquifier = System.nanoTime();
+
+	private long s0;
+	private long s1;
+	private long s2;
+	private long s3;
+
+	/**
+	 * Creates a generator with the given seed.
+	 * @param seed
+	 */
+	public Xoshiro256(long seed) {
+		setSeed(seed);
+	}
+
+	/**
+	 * Creates a generator with an arbitrary seed.
+	 */
+	public Xoshiro256() {
+		this(randomSeed());
+	}
+
+	/**
+	 * Return a seed which differs between calls and between runs.
+	 * @return
+	 */
+	public static synchronized long randomSeed() {
+		seedUniquifier += GOLDEN_GAMMA;
+		return mix(seedUniquifier ^ System.nanoTime());
+	}
+
+	/**
+	 * Resets the generator to the start of the sequence for the given seed.
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		long x = seed;
+		s0 = mix(x += GOLDEN_GAMMA);
+		s1 = mix(x += GOLDEN_GAMMA);
+		s2 = mix(x += GOLDEN_GAMMA);
+		s3 = mix(x += GOLDEN_GAMMA);
+	}
+
+	/**
+	 * Return the four words of generator state, so the sequence can be resumed later with setState.
+	 * @return
+	 */
+	public long[] getState() {
+		return new long[] {s0, s1, s2, s3};
+	}
+
+	/**
+	 * Restores state returned by getState. The generator continues exactly where the saved one left off.
+	 * @param state
+	 */
+	public void setState(long[] state) {
+		s0 = state[0];
+		s1 = state[1];
+		s2 = state[2];
+		s3 = state[3];
+	}
+
+	/**
+	 * SplitMix64 output function.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	@Override
+	public long nextLong() {
+		long result = Long.rotateLeft(s1 * 5, 7) * 9;
+		long t = s1 << 17;
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		s2 ^= t;
+		s3 = Long.rotateLeft(s3, 45);
+		return result;
+	}
+
+	@Override
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Lemire's multiply-shift with rejection, so results are unbiased without a division in the common case.
+	 */
+	@Override
+	public int nextInt(int bound) {
+		long m = (nextLong() >>> 32) * bound;
+		long low = m & 0xffffffffL;
+		if (low < bound) {
+			long threshold = (0x100000000L - bound) % bound;
+			while (low < threshold) {
+				m = (nextLong() >>> 32) * bound;
+				low = m & 0xffffffffL;
+			}
+		}
+		return (int) (m >>> 32);
+	}
+
+	@Override
+	public Xoshiro256 split() {
+		return new Xoshiro256(nextLong());
+	}
+}